@@ -10,183 +10,247 @@ package ci646.weatheravg;
  * Currently only deals in temperature data.
  */
 
+import ci646.weatheravg.cache.CacheFile;
+import ci646.weatheravg.cache.ExpiringLruCache;
+import ci646.weatheravg.metrics.Metrics;
+import ci646.weatheravg.model.Aggregate;
 import ci646.weatheravg.model.Average;
 import ci646.weatheravg.model.Location;
+import ci646.weatheravg.model.Record;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
 import com.typesafe.config.ConfigFactory;
 import lombok.extern.slf4j.Slf4j;
 
+import static ci646.weatheravg.Json.jsonify;
+import static ci646.weatheravg.metrics.TimedRoute.timed;
 import static spark.Spark.*;
 
-import ci646.weatheravg.model.Record;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.sql.Timestamp;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class Application {
 
-    private static Gson gson = new GsonBuilder()
-            .setDateFormat("yyyy-MM-dd'T'HH:mm").create();
+    private static Gson gson = Json.gson();
     private static Config conf         = ConfigFactory.load();
     private static String weatherService = conf.getString("web.weatherService");
+    private static WeatherClient client = new WeatherClient(weatherService, gson,
+            conf.getLong("client.connectTimeout"), conf.getLong("client.readTimeout"),
+            conf.getInt("client.maxConcurrent"), conf.getBoolean("client.binaryRecords"));
+    // Whether averages are worked out here from the records, rather than asked for from weather-data
+    private static boolean averagesFromRecords = averagesFromRecords(conf.getString("client.averagesFrom"));
+    // Locations hardly ever change, so there's no need to ask weather-data for one on every request
+    private static ExpiringLruCache<Long, Location> locations = new ExpiringLruCache<>(
+            conf.getInt("cache.locations.maxSize"), conf.getLong("cache.locations.ttl"),
+            conf.getLong("cache.locations.negativeTtl"));
+    // Averages for periods that ended a while ago hardly ever change, so they are kept for a long time.
+    // Other averages are only kept for a short time, and periods with no data, or locations that don't
+    // exist, aren't cached at all.
+    private static ExpiringLruCache<String, Average> averages = new ExpiringLruCache<>(
+            conf.getInt("cache.averages.maxSize"), conf.getLong("cache.averages.openTtl"), 0);
+    private static long openTtl = conf.getLong("cache.averages.openTtl");
+    private static long closedTtl = conf.getLong("cache.averages.closedTtl");
+    // How long after a period ends before its records are assumed to be complete
+    private static long closedAfter = conf.getLong("cache.averages.closedAfter");
 
     public static void main(String[] args) {
         //Read in the config
 
         int port            = conf.getInt("web.port");
         String host         = conf.getString("web.host");
+        int minThreads      = conf.getInt("web.threads.min");
+        int maxThreads      = conf.getInt("web.threads.max");
+        int threadIdleTO    = conf.getInt("web.threads.idleTimeout");
+        boolean virtualThreads = conf.getBoolean("web.threads.virtual");
 
         // Configure Spark
         port(port);
+        if (virtualThreads) {
+            // Each request gets a thread of its own, so waiting on weather-data doesn't use up a pool
+            ExecutorJettyServer.install(ExecutorJettyServer.newVirtualThreadExecutor());
+        } else {
+            threadPool(maxThreads, minThreads, threadIdleTO);
+        }
 
-        // Handle GET requests for the average of all data associated with a location
-        get("/:locid", "application/json", (req, res) -> {
-            String locID = req.params(":locID");
-            log.info("received GET avg for location "+locID);
-            // get all location info so we can return it with the result
-            String locjson = readUrl(weatherService+"/locations/"+ locID);
-            Location l = gson.fromJson(locjson, Location.class);
-
-            // get the records from the weather-data service
-            String json = readUrl(weatherService+"/records/"+ locID);
-            if(json.equals(new JsonObject().toString())) { // No data in the response
-                return new JsonObject();
-            } else {
-                Record[] temps = gson.fromJson(json, Record[].class);
-                Average a = recordsToAverage(temps, l);
-                return jsonify(Optional.of(a));
-            }
+        // Reload the averages for closed periods saved by the last run, and save them regularly. Only
+        // those that will be kept longer than an open period's are worth saving.
+        String averagesFile = conf.getString("cache.averages.file");
+        if (!averagesFile.isEmpty()) {
+            CacheFile<Average> file = new CacheFile<>(Paths.get(averagesFile), gson, Average.class);
+            averages.putAll(file.load());
+            long saveInterval = conf.getLong("cache.averages.saveInterval");
+            ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "averages-cache-saver");
+                t.setDaemon(true);
+                return t;
+            });
+            saver.scheduleWithFixedDelay(() -> file.save(averages.values(openTtl)),
+                    saveInterval, saveInterval, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> file.save(averages.values(openTtl))));
+        }
+
+        // Request and upstream call statistics, for Prometheus to scrape. Before /:locid, which would match it.
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.prometheus();
         });
 
+        // Handle GET requests for the average of all data associated with a location
+        get("/:locid", "application/json", timed("GET /:locid", (req, res) -> {
+            long locID = Long.parseLong(req.params(":locID"));
+            log.debug("received GET avg for location {}", locID);
+            // get the location info, so we can return it with the result, at the same time as the
+            // summary statistics from the weather-data service. New records can arrive at any time,
+            // so this is only cached briefly.
+            String key = locID + "/all/" + Average.TYPE.TEMPERATURE;
+            return jsonify(Optional.ofNullable(averages.get(key, k -> average(locID, null, null), openTtl).join()));
+        }));
+
+        // Handle GET requests for the location cache statistics
+        get("/stats/locations", "application/json", timed("GET /stats/locations", (req, res) -> {
+            JsonObject stats = new JsonObject();
+            stats.addProperty("size", locations.size());
+            stats.addProperty("hits", locations.getHits());
+            stats.addProperty("misses", locations.getMisses());
+            stats.addProperty("evictions", locations.getEvictions());
+            return gson.toJson(stats);
+        }));
+
+        // Handle GET requests for the average cache statistics
+        get("/stats/averages", "application/json", timed("GET /stats/averages", (req, res) -> {
+            JsonObject stats = new JsonObject();
+            stats.addProperty("size", averages.size());
+            stats.addProperty("hits", averages.getHits());
+            stats.addProperty("misses", averages.getMisses());
+            stats.addProperty("evictions", averages.getEvictions());
+            return gson.toJson(stats);
+        }));
+
         // Handle GET requests for the average of all data recorded at a given location in a given month
-        get("/:loc/:y/:m", "application/json", (req, res) -> {
+        get("/:loc/:y/:m", "application/json", timed("GET /:loc/:y/:m", (req, res) -> {
             String locID = req.params(":loc");
             String yearStr = req.params(":y");
             String monthStr = req.params(":m");
-            log.info(String.format("received GET avg for location %s YEAR %s MONTH %s", locID, yearStr, monthStr));
+            log.debug("received GET avg for location {} YEAR {} MONTH {}", locID, yearStr, monthStr);
 
             DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
             boolean isLY = LocalDate.parse(yearStr+"-"+monthStr+"-"+"01",
                     DateTimeFormatter.ofPattern("yyyy-MM-dd")).isLeapYear();
             LocalDateTime startDate = LocalDateTime.parse(yearStr+"-"+monthStr+"-"+"01T00:00", dtf);
+            // up to the last minute of the month, so that the last day is included
             LocalDateTime endDate = startDate.withDayOfMonth(
-                    startDate.getMonth().length(isLY));
+                    startDate.getMonth().length(isLY)).withHour(23).withMinute(59);
 
             String fromStr = startDate.format(dtf);
             String toStr = endDate.format(dtf);
 
-            Average a = averageForRange(Long.parseLong(locID), fromStr, toStr);
-            return jsonify(Optional.of(a));
-        });
+            return jsonify(averageForRange(Long.parseLong(locID), fromStr, toStr));
+        }));
 
         // Handle GET requests for the average of all data recorded at a given location on a given day
-        get("/:loc/:y/:m/:d", "application/json", (req, res) -> {
+        get("/:loc/:y/:m/:d", "application/json", timed("GET /:loc/:y/:m/:d", (req, res) -> {
             String locID = req.params(":loc");
             String yearStr = req.params(":y");
             String monthStr = req.params(":m");
             String dayStr = req.params(":d");
-            log.info(String.format("received GET avg for location %s YEAR %s MONTH %s DAY %s",
-                    locID, yearStr, monthStr, dayStr));
+            log.debug("received GET avg for location {} YEAR {} MONTH {} DAY {}", locID, yearStr, monthStr, dayStr);
             String fromStr = yearStr+"-"+monthStr+"-"+dayStr+"T00:00";
             String toStr = yearStr+"-"+monthStr+"-"+dayStr+"T23:59";
-            Average a = averageForRange(Long.parseLong(locID), fromStr, toStr);
-            return jsonify(Optional.of(a));
-        });
+            return jsonify(averageForRange(Long.parseLong(locID), fromStr, toStr));
+        }));
 
     }
 
     /**
-     * Read the contents from a HTTP GET request to a URL
-     * @param urlString
+     * Get a location, from the cache if possible. Completes with null if weather-data has no location
+     * with this ID.
+     * @param locID
      * @return
-     * @throws Exception
      */
-    private static String readUrl(String urlString) throws Exception {
-        BufferedReader reader = null;
-        try {
-            URL url = new URL(urlString);
-            reader = new BufferedReader(new InputStreamReader(url.openStream()));
-            StringBuffer buffer = new StringBuffer();
-            int read;
-            char[] chars = new char[1024];
-            while ((read = reader.read(chars)) != -1)
-                buffer.append(chars, 0, read);
-
-            return buffer.toString();
-        } finally {
-            if (reader != null)
-                reader.close();
+    private static CompletableFuture<Location> location(long locID) {
+        return locations.get(locID, id -> client.location(id)
+                .thenApply(l -> l == null || l.getName() == null ? null : l));
+    }
+
+    /**
+     * Which way to get averages, from the client.averagesFrom setting.
+     * @param from "aggregates" or "records"
+     * @return whether to average the records here
+     */
+    private static boolean averagesFromRecords(String from) {
+        switch (from) {
+            case "aggregates":
+                return false;
+            case "records":
+                return true;
+            default:
+                throw new ConfigException.BadValue("client.averagesFrom", "must be aggregates or records");
         }
     }
 
     /**
-     * Turn an Optional object into a JSON String
-     * @param o
-     * @param <T>
+     * Get the average (temperature) for a location, over all of its records or those in a date range,
+     * with the location fetched in parallel. Completes with null if there are no records or no such
+     * location.
+     * @param locID
+     * @param fromStr the beginning of the range, as yyyy-MM-ddTHH:mm, or null for all records
+     * @param toStr the end of the range, or null for all records
      * @return
      */
-    private static <T> String jsonify(Optional<T> o) {
-        if (o == null || o.isEmpty()) {
-            return gson.toJson(new JsonObject());
-        } else {
-            return gson.toJson(o.get());
+    private static CompletableFuture<Average> average(long locID, String fromStr, String toStr) {
+        if (averagesFromRecords) {
+            CompletableFuture<Record[]> records = fromStr == null ? client.records(locID)
+                    : client.records(locID, fromStr, toStr);
+            return location(locID).thenCombine(records,
+                    (l, r) -> aggregateToAverage(RecordAggregator.aggregate(r, locID).orElse(null), l).orElse(null));
         }
+        CompletableFuture<Aggregate> aggregate = fromStr == null ? client.aggregate(locID)
+                : client.aggregate(locID, fromStr, toStr);
+        return location(locID).thenCombine(aggregate, (l, a) -> aggregateToAverage(a, l).orElse(null));
     }
 
     /**
-     * Calculate the average (temperature) from an array of records.
-     * @param records
+     * Turn the summary statistics for some records into their average (temperature). There is
+     * no average if there were no records, or no such location.
+     * @param a
      * @param l
      * @return
      */
-    private static Average recordsToAverage(Record[] records, Location l) {
-        float sum = (float) Arrays.stream(records).mapToDouble(Record::getTemperature).sum();
-        Timestamp from = Arrays.stream(records).min(Comparator.comparing(Record::getDate))
-                .orElseThrow(NoSuchElementException::new)
-                .getDate();
-        Timestamp to = Arrays.stream(records).max(Comparator.comparing(Record::getDate))
-                .orElseThrow(NoSuchElementException::new)
-                .getDate();
-        float avg = sum / records.length;
-        return new Average(l, from, to, avg, Average.TYPE.TEMPERATURE);
+    private static Optional<Average> aggregateToAverage(Aggregate a, Location l) {
+        if (a == null || a.getCount() == 0 || l == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new Average(l, a.getFrom(), a.getTo(), a.getAvgTemperature(),
+                Average.TYPE.TEMPERATURE));
     }
 
     /**
      * Retrieve the average (temperature) for a date range, where the beginning and
-     * end of the range are represented as strings in the format yyyy-MM-ddTHH:mm
+     * end of the range are represented as strings in the format yyyy-MM-ddTHH:mm.
+     * The average is calculated by the weather-data service, so only the result is transferred, unless
+     * averages are set to be worked out here from the records.
+     * Results are cached: for a long time if the range ended long enough ago that no more records
+     * are expected for it, briefly otherwise.
      * @param locID
      * @param fromStr
      * @param toStr
      * @return
-     * @throws Exception
      */
-    private static Average averageForRange(long locID, String fromStr, String toStr)
-            throws Exception {
-        String locjson = readUrl(weatherService+"/locations/"+ locID);
-        Location l = gson.fromJson(locjson, Location.class);
-
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
-        boolean isLY = LocalDate.parse(fromStr.substring(0,10),
-                DateTimeFormatter.ofPattern("yyyy-MM-dd")).isLeapYear();
-        LocalDateTime startDate = LocalDateTime.parse(fromStr, dtf);
-        LocalDateTime endDate = LocalDateTime.parse(toStr, dtf);
-
-        String json = null;
-        json = readUrl(String.format("http://localhost:4567/records/%s/%s/%s", locID, fromStr, toStr));
-        log.info(json);
-        Record[] temps = gson.fromJson(json, Record[].class);
-        return recordsToAverage(temps, l);
+    private static Optional<Average> averageForRange(long locID, String fromStr, String toStr) {
+        String key = String.format("%d/%s/%s/%s", locID, fromStr, toStr, Average.TYPE.TEMPERATURE);
+        long end = LocalDateTime.parse(toStr).toInstant(ZoneOffset.UTC).toEpochMilli();
+        long ttl = end + closedAfter < System.currentTimeMillis() ? closedTtl : openTtl;
+        return Optional.ofNullable(averages.get(key, k -> average(locID, fromStr, toStr), ttl).join());
     }
 }
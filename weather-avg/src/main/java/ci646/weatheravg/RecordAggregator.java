@@ -0,0 +1,123 @@
+package ci646.weatheravg;
+/**
+ * Calculates the summary statistics of some records in a single pass, as weather-data's RecordAggregator
+ * does, for averages worked out here from fetched records rather than asked for from weather-data. Sums
+ * use Kahan summation and the spread about the mean uses Welford's method, so long runs of similar values
+ * don't lose precision. Wind directions are summed as unit vectors, for their circular mean and standard
+ * deviation.
+ */
+
+import ci646.weatheravg.model.Aggregate;
+import ci646.weatheravg.model.Record;
+
+import java.sql.Timestamp;
+import java.util.Optional;
+
+public class RecordAggregator {
+
+    // Temperature, humidity and wind speed, in that order, then wind direction for min and max
+    private static final int METRICS = 3;
+
+    private long count = 0;
+    private long first = Long.MAX_VALUE;
+    private long last = Long.MIN_VALUE;
+    private final double[] sum = new double[METRICS];
+    private final double[] sumC = new double[METRICS];     // Kahan compensation for sum
+    private final double[] mean = new double[METRICS];
+    private final double[] m2 = new double[METRICS];
+    private final float[] min = new float[METRICS + 1];
+    private final float[] max = new float[METRICS + 1];
+    private double sin = 0;
+    private double sinC = 0;
+    private double cos = 0;
+    private double cosC = 0;
+
+    /**
+     * The summary statistics of some records, or empty if there are none.
+     * @param records
+     * @param locID
+     * @return
+     */
+    public static Optional<Aggregate> aggregate(Record[] records, long locID) {
+        RecordAggregator agg = new RecordAggregator();
+        for (Record r : records) {
+            agg.add(r);
+        }
+        return agg.result(locID);
+    }
+
+    public void add(Record r) {
+        count++;
+        long ts = r.getDate().getTime();
+        if (ts < first) {
+            first = ts;
+        }
+        if (ts > last) {
+            last = ts;
+        }
+        if (count == 1) {
+            min[0] = max[0] = r.getTemperature();
+            min[1] = max[1] = r.getHumidity();
+            min[2] = max[2] = r.getWindSpeed();
+            min[3] = max[3] = r.getWindDirection();
+        }
+        add(0, r.getTemperature());
+        add(1, r.getHumidity());
+        add(2, r.getWindSpeed());
+        min[3] = Math.min(min[3], r.getWindDirection());
+        max[3] = Math.max(max[3], r.getWindDirection());
+        double radians = Math.toRadians(r.getWindDirection());
+        double y = Math.sin(radians) - sinC;
+        double t = sin + y;
+        sinC = (t - sin) - y;
+        sin = t;
+        y = Math.cos(radians) - cosC;
+        t = cos + y;
+        cosC = (t - cos) - y;
+        cos = t;
+    }
+
+    private void add(int i, float value) {
+        double x = value;
+        // Kahan
+        double y = x - sumC[i];
+        double t = sum[i] + y;
+        sumC[i] = (t - sum[i]) - y;
+        sum[i] = t;
+        // Welford
+        double delta = x - mean[i];
+        mean[i] += delta / count;
+        m2[i] += delta * (x - mean[i]);
+        min[i] = Math.min(min[i], value);
+        max[i] = Math.max(max[i], value);
+    }
+
+    /**
+     * The summary statistics so far, or empty if no records have been added. The mean wind direction is
+     * the direction of the sum of the unit vectors, in [0, 360), and its standard deviation is the
+     * circular one, sqrt(-2 ln R) where R is the length of the mean unit vector.
+     * @param locID
+     * @return
+     */
+    public Optional<Aggregate> result(long locID) {
+        if (count == 0) {
+            return Optional.empty();
+        }
+        double direction = Math.toDegrees(Math.atan2(sin, cos));
+        double r = Math.min(1, Math.hypot(sin, cos) / count);
+        return Optional.of(new Aggregate(locID, null, new Timestamp(first), new Timestamp(last), count,
+                avg(0), std(0), min[0], max[0],
+                avg(1), std(1), min[1], max[1],
+                avg(2), std(2), min[2], max[2],
+                (float) (direction < 0 ? direction + 360 : direction),
+                (float) Math.toDegrees(Math.sqrt(Math.max(0, -2 * Math.log(r)))), min[3], max[3]));
+    }
+
+    private float avg(int i) {
+        return (float) (sum[i] / count);
+    }
+
+    private float std(int i) {
+        return (float) Math.sqrt(Math.max(0, m2[i]) / count);
+    }
+}
@@ -0,0 +1,105 @@
+package ci646.weatheravg;
+/**
+ * Reads records in the compact binary columnar format that weather-data sends to clients accepting
+ * CONTENT_TYPE. See weather-data's RecordBinaryWriter for the layout: a header, then blocks of rows a
+ * column at a time, with IDs and times as zigzag varint deltas and measurements as raw floats.
+ */
+
+import ci646.weatheravg.model.Record;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecordBinaryReader {
+
+    public static final String CONTENT_TYPE = "application/x-weather-records";
+    private static final int MAGIC = 0x57524543;    // "WREC"
+    private static final int VERSION = 1;
+    // The most rows weather-data puts in a block, so a bad count can't make us allocate without limit
+    private static final int BLOCK_SIZE = 4096;
+
+    private final DataInputStream in;
+
+    public RecordBinaryReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Decode a whole response body.
+     * @param body
+     * @return
+     * @throws IOException if the body isn't in the format
+     */
+    public static Record[] decode(byte[] body) throws IOException {
+        return new RecordBinaryReader(new ByteArrayInputStream(body)).readAll().toArray(new Record[0]);
+    }
+
+    /**
+     * Read every record up to the end marker.
+     * @return
+     * @throws IOException if the stream isn't in the format
+     */
+    public List<Record> readAll() throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a binary record stream");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported binary record format version " + version);
+        }
+        List<Record> records = new ArrayList<>();
+        long recordID = 0, locID = 0, ts = 0;
+        int n;
+        while ((n = in.readInt()) != 0) {
+            if (n < 0 || n > BLOCK_SIZE) {
+                throw new IOException("bad block size " + n);
+            }
+            long[] recordIDs = new long[n];
+            long[] locIDs = new long[n];
+            long[] tss = new long[n];
+            for (int i = 0; i < n; i++) {
+                recordIDs[i] = recordID += readVarLong();
+            }
+            for (int i = 0; i < n; i++) {
+                locIDs[i] = locID += readVarLong();
+            }
+            for (int i = 0; i < n; i++) {
+                tss[i] = ts += readVarLong();
+            }
+            float[] temperatures = readFloats(n);
+            float[] humidities = readFloats(n);
+            float[] windSpeeds = readFloats(n);
+            float[] windDirections = readFloats(n);
+            for (int i = 0; i < n; i++) {
+                records.add(new Record(recordIDs[i], locIDs[i], new Timestamp(tss[i]), temperatures[i],
+                        humidities[i], windSpeeds[i], windDirections[i]));
+            }
+        }
+        return records;
+    }
+
+    private float[] readFloats(int n) throws IOException {
+        float[] column = new float[n];
+        for (int i = 0; i < n; i++) {
+            column[i] = in.readFloat();
+        }
+        return column;
+    }
+
+    private long readVarLong() throws IOException {
+        long zz = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zz |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zz >>> 1) ^ -(zz & 1);
+            }
+        }
+        throw new IOException("varint too long");
+    }
+}
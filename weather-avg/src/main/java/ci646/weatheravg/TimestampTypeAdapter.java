@@ -0,0 +1,149 @@
+package ci646.weatheravg;
+/**
+ * Reads and writes timestamps in the API's format, yyyy-MM-ddTHH:mm in UTC, without a DateFormat.
+ * A DateFormat goes through a Calendar for every timestamp and isn't thread-safe; here the date is
+ * worked out from the day number with a few integer operations (the civil calendar algorithms of
+ * Howard Hinnant), and the characters are written straight into one array. Times are in UTC, as the
+ * API's parameters and weather-data's rollups are; seconds are dropped.
+ *
+ * Used by the Gson instance for every Timestamp: those in the records and aggregates read from
+ * weather-data, and in the averages sent to clients and kept in the cache file.
+ */
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+public class TimestampTypeAdapter extends TypeAdapter<Timestamp> {
+
+    private static final long MINUTE = 60_000;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    // Days from 0000-03-01, where the algorithms' years start, to 1970-01-01
+    private static final long EPOCH_SHIFT = 719468;
+    private static final long DAYS_PER_ERA = 146097;       // days in 400 years
+    // For the years that don't have four digits, which the API never sees in practice
+    private static final DateTimeFormatter WIDE_YEARS =
+            DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm").withZone(ZoneOffset.UTC);
+
+    @Override
+    public void write(JsonWriter out, Timestamp value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            out.value(format(value.getTime()));
+        }
+    }
+
+    @Override
+    public Timestamp read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String s = in.nextString();
+        try {
+            return new Timestamp(parse(s));
+        } catch (IllegalArgumentException e) {
+            throw new JsonSyntaxException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Format a time as yyyy-MM-ddTHH:mm in UTC.
+     * @param millis since the epoch
+     * @return
+     */
+    public static String format(long millis) {
+        long minutes = Math.floorDiv(millis, MINUTE);
+        long days = Math.floorDiv(minutes, MINUTES_PER_DAY);
+        int minuteOfDay = Math.floorMod(minutes, MINUTES_PER_DAY);
+        long z = days + EPOCH_SHIFT;
+        long era = Math.floorDiv(z, DAYS_PER_ERA);
+        long dayOfEra = z - era * DAYS_PER_ERA;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;                  // months from March
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return WIDE_YEARS.format(Instant.ofEpochMilli(millis));
+        }
+        char[] c = new char[16];
+        digits(c, 0, (int) year / 100);
+        digits(c, 2, (int) year % 100);
+        c[4] = '-';
+        digits(c, 5, month);
+        c[7] = '-';
+        digits(c, 8, day);
+        c[10] = 'T';
+        digits(c, 11, minuteOfDay / 60);
+        c[13] = ':';
+        digits(c, 14, minuteOfDay % 60);
+        return new String(c);
+    }
+
+    /**
+     * Parse a time in the format yyyy-MM-ddTHH:mm, in UTC.
+     * @param s
+     * @return millis since the epoch
+     * @throws IllegalArgumentException if it isn't in that format or isn't a real date and time
+     */
+    public static long parse(CharSequence s) {
+        if (s.length() != 16 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+                || s.charAt(13) != ':') {
+            throw new IllegalArgumentException("not a time in the format yyyy-MM-ddTHH:mm: " + s);
+        }
+        int year = number(s, 0) * 100 + number(s, 2);
+        int month = number(s, 5);
+        int day = number(s, 8);
+        int hour = number(s, 11);
+        int minute = number(s, 14);
+        if (month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month) || hour > 23 || minute > 59) {
+            throw new IllegalArgumentException("not a valid time: " + s);
+        }
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * DAYS_PER_ERA + dayOfEra - EPOCH_SHIFT;
+        return (days * MINUTES_PER_DAY + hour * 60 + minute) * MINUTE;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * Write a number from 0 to 99 as two digits.
+     */
+    private static void digits(char[] c, int at, int n) {
+        c[at] = (char) ('0' + n / 10);
+        c[at + 1] = (char) ('0' + n % 10);
+    }
+
+    /**
+     * Read two digits as a number.
+     */
+    private static int number(CharSequence s, int at) {
+        char a = s.charAt(at);
+        char b = s.charAt(at + 1);
+        if (a < '0' || a > '9' || b < '0' || b > '9') {
+            throw new IllegalArgumentException("not a time in the format yyyy-MM-ddTHH:mm: " + s);
+        }
+        return (a - '0') * 10 + (b - '0');
+    }
+}
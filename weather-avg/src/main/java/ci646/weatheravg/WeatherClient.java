@@ -0,0 +1,232 @@
+package ci646.weatheravg;
+/**
+ * An asynchronous client for the weather-data service. All requests share one HttpClient, which
+ * keeps connections to the service alive between requests. Requests have connect and read timeouts,
+ * and the number in flight at once is limited so that a burst of traffic can't swamp the service.
+ * The time taken and size in bytes of each response are recorded in the metrics, by endpoint, and the
+ * time spent waiting for a permit is recorded separately. Records are fetched in weather-data's
+ * compact binary format by default.
+ */
+
+import ci646.weatheravg.metrics.Metrics;
+import ci646.weatheravg.model.Aggregate;
+import ci646.weatheravg.model.Location;
+import ci646.weatheravg.model.Record;
+import com.google.gson.Gson;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+@Slf4j
+public class WeatherClient {
+
+    private final String baseUrl;
+    private final Gson gson;
+    private final HttpClient client;
+    private final Duration readTimeout;
+    private final Semaphore permits;
+    private final boolean binaryRecords;
+
+    /**
+     * @param baseUrl the address of the weather-data service, e.g. http://localhost:4567
+     * @param gson used to parse the responses
+     * @param connectTimeout in milliseconds
+     * @param readTimeout in milliseconds, for the whole response
+     * @param maxConcurrent the most requests that can be in flight at once
+     * @param binaryRecords whether to ask for records in the binary format rather than JSON
+     */
+    public WeatherClient(String baseUrl, Gson gson, long connectTimeout, long readTimeout, int maxConcurrent,
+                         boolean binaryRecords) {
+        this.baseUrl = baseUrl;
+        this.gson = gson;
+        this.readTimeout = Duration.ofMillis(readTimeout);
+        this.permits = new Semaphore(maxConcurrent);
+        this.binaryRecords = binaryRecords;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .build();
+    }
+
+    /**
+     * Get a location by its ID.
+     * @param locID
+     * @return
+     */
+    public CompletableFuture<Location> location(long locID) {
+        return get("/locations/:id", "/locations/" + locID).thenApply(json -> gson.fromJson(json, Location.class));
+    }
+
+    /**
+     * Get the summary statistics for all records at a location.
+     * @param locID
+     * @return
+     */
+    public CompletableFuture<Aggregate> aggregate(long locID) {
+        return get("/aggregates/:id", "/aggregates/" + locID).thenApply(json -> gson.fromJson(json, Aggregate.class));
+    }
+
+    /**
+     * Get the summary statistics for the records at a location in a time range, where the beginning
+     * and end of the range are strings in the format yyyy-MM-ddTHH:mm.
+     * @param locID
+     * @param fromStr
+     * @param toStr
+     * @return
+     */
+    public CompletableFuture<Aggregate> aggregate(long locID, String fromStr, String toStr) {
+        return get("/aggregates/:id/:from/:to", String.format("/aggregates/%d/%s/%s", locID, fromStr, toStr))
+                .thenApply(json -> gson.fromJson(json, Aggregate.class));
+    }
+
+    /**
+     * Get all of the records at a location, as for records(locID, fromStr, toStr).
+     * @param locID
+     * @return the records, which are empty if there are none
+     */
+    public CompletableFuture<Record[]> records(long locID) {
+        return records("/records/:id", "/records/" + locID);
+    }
+
+    /**
+     * Get the records at a location in a time range, where the beginning and end of the range are
+     * strings in the format yyyy-MM-ddTHH:mm. Uses the compact binary format unless told not to, which
+     * is smaller and much cheaper to decode than JSON.
+     * @param locID
+     * @param fromStr
+     * @param toStr
+     * @return the records, which are empty if there are none
+     */
+    public CompletableFuture<Record[]> records(long locID, String fromStr, String toStr) {
+        return records("/records/:id/:from/:to", String.format("/records/%d/%s/%s", locID, fromStr, toStr));
+    }
+
+    private CompletableFuture<Record[]> records(String endpoint, String path) {
+        if (!binaryRecords) {
+            // An empty result is sent as {} rather than []
+            return get(endpoint, path)
+                    .thenApply(json -> json.startsWith("[") ? gson.fromJson(json, Record[].class) : new Record[0]);
+        }
+        return send(endpoint + " (binary)", path, RecordBinaryReader.CONTENT_TYPE,
+                HttpResponse.BodyHandlers.ofByteArray(), b -> b.length)
+                .thenApply(body -> {
+                    try {
+                        return RecordBinaryReader.decode(body);
+                    } catch (IOException e) {
+                        throw new UpstreamException("could not decode records: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Send a GET request to the service and complete with the body of the response. Waits for a free
+     * permit if too many requests are already in flight, failing if none is free within the read timeout.
+     * Fails if the response status is not 200.
+     * @param endpoint the endpoint's name in the metrics, e.g. "/locations/:id"
+     * @param path
+     * @return
+     */
+    public CompletableFuture<String> get(String endpoint, String path) {
+        // Read as bytes, so the size in the metrics is the number sent rather than the number of chars
+        return send(endpoint, path, "application/json", HttpResponse.BodyHandlers.ofByteArray(), b -> b.length)
+                .thenApply(body -> new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send a GET request asking for a given content type, as for get(endpoint, path).
+     * @param endpoint
+     * @param path
+     * @param accept the content type wanted
+     * @param handler reads the body
+     * @param size the size of a body, for the metrics
+     * @param <T>
+     * @return
+     */
+    private <T> CompletableFuture<T> send(String endpoint, String path, String accept,
+                                          HttpResponse.BodyHandler<T> handler, ToLongFunction<T> size) {
+        long waitStart = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(readTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                return CompletableFuture.failedFuture(
+                        new IOException("too many requests in flight to " + baseUrl));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        Metrics.histogram("upstream_permit_wait_seconds",
+                "Time a request to weather-data waited for a permit, by endpoint.", Metrics.NANOS,
+                "endpoint", endpoint).recordSince(waitStart);
+        long start = System.nanoTime();
+        HttpRequest request;
+        CompletableFuture<HttpResponse<T>> response;
+        try {
+            request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                    .timeout(readTimeout)
+                    .header("Accept", accept)
+                    .GET()
+                    .build();
+            log.debug("GET " + request.uri());
+            response = client.sendAsync(request, handler);
+        } catch (RuntimeException e) {
+            // The request never got as far as having a future to release the permit
+            permits.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        return response
+                .whenComplete((r, e) -> {
+                    permits.release();
+                    if (r == null) {
+                        record(endpoint, start, null, 0);
+                    } else {
+                        record(endpoint, start, r.statusCode(), size.applyAsLong(r.body()));
+                    }
+                })
+                .thenApply(r -> {
+                    if (r.statusCode() != 200) {
+                        throw new UpstreamException(request.uri() + " returned status " + r.statusCode());
+                    }
+                    return r.body();
+                });
+    }
+
+    /**
+     * Record how long a request took, and the size of the response if there was one.
+     * @param endpoint
+     * @param start from System.nanoTime()
+     * @param status the response status, or null if there was no response
+     * @param size
+     */
+    private static void record(String endpoint, long start, Integer status, long size) {
+        String outcome = status == null ? "failed" : String.valueOf(status);
+        Metrics.histogram("upstream_request_duration_seconds",
+                "Time for weather-data to answer a request, by endpoint and status.", Metrics.NANOS,
+                "endpoint", endpoint, "status", outcome).recordSince(start);
+        if (status != null) {
+            Metrics.histogram("upstream_response_size_bytes",
+                    "Size of a response from weather-data, by endpoint.", Metrics.UNITS,
+                    "endpoint", endpoint).record(size);
+        }
+    }
+
+    /**
+     * The weather-data service answered, but not with a result.
+     */
+    public static class UpstreamException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public UpstreamException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ci646.weatheravg.cache;
+/**
+ * Saves cached values to a JSON file and reads them back, so that a restarted service doesn't start
+ * with an empty cache. The file holds a single JSON object mapping each key to its value and the time
+ * it expires, e.g. {"1/2020-12-01T00:00/...": {"value": {...}, "expires": 1609459200000}}. It is
+ * written to a temporary file first and then moved into place, so a crash while saving leaves the
+ * previous copy intact.
+ */
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Slf4j
+public class CacheFile<V> {
+
+    private final Path path;
+    private final Gson gson;
+    private final Class<V> type;
+
+    /**
+     * @param path where to keep the file
+     * @param gson used to (de)serialize the values
+     * @param type the class of the values
+     */
+    public CacheFile(Path path, Gson gson, Class<V> type) {
+        this.path = path;
+        this.gson = gson;
+        this.type = type;
+    }
+
+    /**
+     * Read the values saved by the last run. A missing or unreadable file gives no values, since
+     * the cache can always be refilled.
+     * @return
+     */
+    public Map<String, ExpiringLruCache.Saved<V>> load() {
+        Map<String, ExpiringLruCache.Saved<V>> values = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return values;
+        }
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            JsonObject json = gson.fromJson(reader, JsonObject.class);
+            if (json != null) {
+                for (Map.Entry<String, JsonElement> e : json.entrySet()) {
+                    JsonObject saved = e.getValue().getAsJsonObject();
+                    if (!saved.has("value") || !saved.has("expires")) {
+                        throw new JsonParseException("no value or expiry time for " + e.getKey());
+                    }
+                    values.put(e.getKey(), new ExpiringLruCache.Saved<>(gson.fromJson(saved.get("value"), type),
+                            saved.get("expires").getAsLong()));
+                }
+            }
+            log.info(String.format("Read %d cached values from %s", values.size(), path));
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            log.warn("Could not read cache file " + path + ", starting empty", e);
+            values.clear();
+        }
+        return values;
+    }
+
+    /**
+     * Replace the saved values.
+     * @param values
+     */
+    public void save(Map<String, ExpiringLruCache.Saved<V>> values) {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                gson.toJson(values, writer);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug(String.format("Saved %d cached values to %s", values.size(), path));
+        } catch (IOException e) {
+            log.warn("Could not save cache file " + path, e);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package ci646.weatheravg.cache;
+/**
+ * A size-bounded cache of asynchronously loaded values. Entries expire a fixed time after they are
+ * loaded, and when the cache is full the least recently used entry is evicted. Loads that complete
+ * with null (e.g. for an ID the upstream service doesn't know) are cached for a separate, usually
+ * shorter, time, or not at all if that time is 0; failed loads are never cached.
+ *
+ * The future for a load is cached as soon as it starts, so concurrent requests for the same key share
+ * one upstream call. A load can be given its own time to live, e.g. a long one for values that are
+ * unlikely to change.
+ */
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+public class ExpiringLruCache<K, V> {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A cached load, and when it stops being usable.
+     */
+    private static class Timed<V> {
+        final CompletableFuture<V> future;
+        final long expires;
+
+        Timed(CompletableFuture<V> future, long expires) {
+            this.future = future;
+            this.expires = expires;
+        }
+
+        boolean isLive(long now) {
+            return expires - now > 0;
+        }
+    }
+
+    /**
+     * A value and the time (in epoch milliseconds) it expires, for saving the cache between runs.
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Saved<V> {
+        private V value;
+        private long expires;
+    }
+
+    // In access order, so the eldest entry is the least recently used. Guarded by this.
+    private final LinkedHashMap<K, Timed<V>> entries;
+
+    /**
+     * @param maxSize the most entries to keep
+     * @param ttlMillis how long a loaded value is kept
+     * @param negativeTtlMillis how long a null value is kept, or 0 for not at all
+     */
+    public ExpiringLruCache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.negativeTtlNanos = negativeTtlMillis * 1_000_000;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Timed<V>> eldest) {
+                if (size() > ExpiringLruCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the value for a key, loading it if it isn't cached or has expired.
+     * @param key
+     * @param loader starts loading the value for a key; may complete with null
+     * @return
+     */
+    public CompletableFuture<V> get(K key, Function<K, CompletableFuture<V>> loader) {
+        return load(key, loader, ttlNanos);
+    }
+
+    /**
+     * Get the value for a key, loading it if it isn't cached or has expired, and keeping a newly
+     * loaded value for a given time rather than the default. Null values still get the negative TTL.
+     * @param key
+     * @param loader starts loading the value for a key; may complete with null
+     * @param ttlMillis how long to keep the value
+     * @return
+     */
+    public CompletableFuture<V> get(K key, Function<K, CompletableFuture<V>> loader, long ttlMillis) {
+        return load(key, loader, ttlMillis * 1_000_000);
+    }
+
+    /**
+     * Put values saved by an earlier run, each kept until the time it was due to expire. Values that
+     * have already expired are skipped.
+     * @param saved
+     */
+    public synchronized void putAll(Map<K, Saved<V>> saved) {
+        long now = System.nanoTime();
+        long wallNow = System.currentTimeMillis();
+        saved.forEach((key, s) -> {
+            if (s.getValue() != null && s.getExpires() > wallNow) {
+                entries.put(key, new Timed<>(CompletableFuture.completedFuture(s.getValue()),
+                        now + (s.getExpires() - wallNow) * 1_000_000));
+            }
+        });
+    }
+
+    /**
+     * The live, non-null values that will be kept for at least a given time, and when each expires,
+     * e.g. to save them for the next run.
+     * @param minTtlMillis
+     * @return a copy, in least recently used order
+     */
+    public synchronized Map<K, Saved<V>> values(long minTtlMillis) {
+        long now = System.nanoTime();
+        long wallNow = System.currentTimeMillis();
+        Map<K, Saved<V>> values = new LinkedHashMap<>();
+        for (Map.Entry<K, Timed<V>> e : entries.entrySet()) {
+            Timed<V> entry = e.getValue();
+            long ttlMillis = (entry.expires - now) / 1_000_000;
+            if (ttlMillis >= minTtlMillis && entry.future.isDone() && !entry.future.isCompletedExceptionally()) {
+                V v = entry.future.join();
+                if (v != null) {
+                    values.put(e.getKey(), new Saved<>(v, wallNow + ttlMillis));
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Serve a key from the cache, or start loading it and cache the load.
+     */
+    private CompletableFuture<V> load(K key, Function<K, CompletableFuture<V>> loader, long ttl) {
+        long now = System.nanoTime();
+        CompletableFuture<V> loading = new CompletableFuture<>();
+        Timed<V> entry;
+        synchronized (this) {
+            Timed<V> cached = entries.get(key);
+            if (cached != null && cached.isLive(now)) {
+                hits.incrementAndGet();
+                return cached.future;
+            }
+            misses.incrementAndGet();
+            entry = new Timed<>(loading, now + ttl);
+            entries.put(key, entry);
+        }
+        // Load outside the lock, so a slow loader doesn't hold up other keys
+        CompletableFuture<V> load;
+        try {
+            load = loader.apply(key);
+        } catch (RuntimeException e) {
+            load = CompletableFuture.failedFuture(e);
+        }
+        load.whenComplete((v, e) -> {
+            if (e != null) {
+                remove(key, entry);
+                loading.completeExceptionally(e);
+            } else {
+                if (v == null) {
+                    synchronized (this) {
+                        // A null value is only kept for the negative TTL, however long it was meant to be kept
+                        if (entries.get(key) == entry) {
+                            if (negativeTtlNanos == 0) {
+                                entries.remove(key);
+                            } else {
+                                entries.put(key, new Timed<>(loading, System.nanoTime() + negativeTtlNanos));
+                            }
+                        }
+                    }
+                }
+                loading.complete(v);
+            }
+        });
+        return loading;
+    }
+
+    /**
+     * Remove a key, e.g. because its value is known to have changed.
+     * @param key
+     */
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove a key only if it still maps to a given entry.
+     */
+    private synchronized void remove(K key, Timed<V> entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
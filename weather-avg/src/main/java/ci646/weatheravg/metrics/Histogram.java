@@ -0,0 +1,94 @@
+package ci646.weatheravg.metrics;
+/**
+ * A lock-free histogram of non-negative long values, e.g. latencies in nanoseconds or sizes in bytes.
+ * Values below 16 are counted exactly; above that each power of two is split into 8 buckets, so a
+ * quantile is within about 6% of the true value whatever the range. Recording is a few atomic
+ * increments and never allocates.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+
+    private static final int EXACT = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Count a value. Negative values are counted as 0.
+     * @param value
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+    }
+
+    /**
+     * Count the nanoseconds since a time from System.nanoTime().
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * An estimate of a quantile of the values counted so far, or 0 if there are none.
+     * @param q between 0 and 1, e.g. 0.99
+     * @return
+     */
+    public long quantile(double q) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return middle(i);
+            }
+        }
+        return middle(BUCKETS - 1);
+    }
+
+    private static int bucket(long v) {
+        if (v < EXACT) {
+            return (int) v;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT + (msb - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long middle(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int msb = (bucket - EXACT) / SUB_BUCKETS + 4;
+        int sub = (bucket - EXACT) % SUB_BUCKETS;
+        long width = 1L << (msb - SUB_BITS);
+        return ((long) (SUB_BUCKETS + sub) << (msb - SUB_BITS)) + width / 2;
+    }
+}
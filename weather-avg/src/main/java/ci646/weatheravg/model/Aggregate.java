@@ -0,0 +1,38 @@
+package ci646.weatheravg.model;
+/**
+ * A POJO for the summary statistics that the weather-data service calculates over the records
+ * at a location in a time range.
+ */
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.ToString;
+
+import java.sql.Timestamp;
+
+@Data
+@AllArgsConstructor
+@ToString
+public class Aggregate {
+    private long locID;             // The location ID
+    private Timestamp bucket;       // The start of the hour, day or month aggregated, if bucketed
+    private Timestamp from;         // The time of the first record aggregated
+    private Timestamp to;           // The time of the last record aggregated
+    private long count;             // The number of records aggregated
+    private float avgTemperature;
+    private float stdTemperature;
+    private float minTemperature;
+    private float maxTemperature;
+    private float avgHumidity;
+    private float stdHumidity;
+    private float minHumidity;
+    private float maxHumidity;
+    private float avgWindSpeed;
+    private float stdWindSpeed;
+    private float minWindSpeed;
+    private float maxWindSpeed;
+    private float avgWindDirection;     // The circular mean, in [0, 360)
+    private float stdWindDirection;     // The circular standard deviation
+    private float minWindDirection;
+    private float maxWindDirection;
+}
@@ -0,0 +1,56 @@
+package ci646.bench;
+/**
+ * Benchmarks calculating summary statistics from records: weather-data does it with a RecordAggregator,
+ * both for rollups and for the in-memory store, and weather-avg with its port of it, for averages worked
+ * out from fetched records when client.averagesFrom is "records".
+ */
+
+import ci646.weather.model.Aggregate;
+import ci646.weather.model.Record;
+import ci646.weather.model.RecordAggregator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateBenchmark {
+
+    // The number of records aggregated
+    @Param({"1000", "100000"})
+    public int records;
+
+    private List<Record> list;
+    // The same records, as weather-avg receives them
+    private ci646.weatheravg.model.Record[] fetched;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        list = Records.generate(1, records);
+        fetched = list.stream()
+                .map(r -> new ci646.weatheravg.model.Record(r.getRecordID(), r.getLocID(), r.getDate(),
+                        r.getTemperature(), r.getHumidity(), r.getWindSpeed(), r.getWindDirection()))
+                .toArray(ci646.weatheravg.model.Record[]::new);
+    }
+
+    @Benchmark
+    public Optional<Aggregate> aggregate() {
+        RecordAggregator agg = new RecordAggregator();
+        for (Record r : list) {
+            agg.record(r.getRecordID(), r.getLocID(), r.getDate().getTime(), r.getTemperature(),
+                    r.getHumidity(), r.getWindSpeed(), r.getWindDirection());
+        }
+        return agg.result(1, null);
+    }
+
+    @Benchmark
+    public Optional<ci646.weatheravg.model.Aggregate> aggregateFetched() {
+        return ci646.weatheravg.RecordAggregator.aggregate(fetched, 1);
+    }
+}
@@ -0,0 +1,54 @@
+package ci646.bench;
+/**
+ * Benchmarks the binary record format against JsonBenchmark: weather-data encoding records with
+ * RecordBinaryWriter, and weather-avg decoding them back into a Record[] with RecordBinaryReader.
+ */
+
+import ci646.weather.RecordBinaryWriter;
+import ci646.weather.model.Record;
+import ci646.weatheravg.RecordBinaryReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinaryBenchmark {
+
+    // The number of records in the list
+    @Param({"1000", "100000"})
+    public int records;
+
+    private List<Record> list;
+    private byte[] body;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        list = Records.generate(1, records);
+        body = encodeRecords();
+    }
+
+    @Benchmark
+    public byte[] encodeRecords() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordBinaryWriter writer = new RecordBinaryWriter(out);
+        for (Record r : list) {
+            writer.record(r.getRecordID(), r.getLocID(), r.getDate().getTime(), r.getTemperature(),
+                    r.getHumidity(), r.getWindSpeed(), r.getWindDirection());
+        }
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public ci646.weatheravg.model.Record[] decodeRecords() throws IOException {
+        return RecordBinaryReader.decode(body);
+    }
+}
@@ -0,0 +1,59 @@
+package ci646.bench;
+/**
+ * Benchmarks the JSON that passes between the services: weather-data turning a List<Record> into
+ * JSON with jsonify or streaming records as JSON with a RecordJsonWriter, and weather-avg parsing it
+ * back into a Record[] with its own Gson instance.
+ */
+
+import ci646.weather.Json;
+import ci646.weather.RecordJsonWriter;
+import ci646.weather.model.Record;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+
+    // The number of records in the list
+    @Param({"1000", "100000"})
+    public int records;
+
+    private List<Record> list;
+    private String json;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        list = Records.generate(1, records);
+        json = Json.jsonify(Optional.of(list));
+    }
+
+    @Benchmark
+    public String serializeRecords() {
+        return Json.jsonify(Optional.of(list));
+    }
+
+    @Benchmark
+    public void streamRecords() throws IOException {
+        RecordJsonWriter writer = new RecordJsonWriter(OutputStream.nullOutputStream());
+        for (Record r : list) {
+            writer.record(r.getRecordID(), r.getLocID(), r.getDate().getTime(), r.getTemperature(), r.getHumidity(),
+                    r.getWindSpeed(), r.getWindDirection());
+        }
+        writer.finish();
+    }
+
+    @Benchmark
+    public ci646.weatheravg.model.Record[] parseRecords() {
+        return ci646.weatheravg.Json.gson().fromJson(json, ci646.weatheravg.model.Record[].class);
+    }
+}
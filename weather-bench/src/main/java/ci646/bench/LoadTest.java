@@ -0,0 +1,106 @@
+package ci646.bench;
+/**
+ * A closed-loop load test of a running service, to see how its throughput changes as concurrency
+ * increases. At each level of concurrency that many clients send GET requests one after another for a
+ * fixed time, and the requests per second and latency quantiles are printed, e.g.
+ *   java -cp target/benchmarks.jar ci646.bench.LoadTest http://localhost:5678/2/2020/12 1,8,64,256 10
+ * for one to 256 clients, ten seconds each. Run it against the service started with each of its
+ * web.threads settings to compare them. Requests that fail or don't return 200 are counted as errors.
+ */
+
+import ci646.weather.metrics.Histogram;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadTest {
+
+    private static final int WARMUP_SECONDS = 2;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("usage: LoadTest <url> [concurrency,...] [seconds]");
+            System.exit(1);
+        }
+        URI uri = URI.create(args[0]);
+        String[] levels = (args.length > 1 ? args[1] : "1,4,16,64,256").split(",");
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(30))
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+
+        run(client, request, Integer.parseInt(levels[0]), WARMUP_SECONDS);
+        System.out.printf("%11s %10s %8s %9s %9s %9s%n", "concurrency", "req/s", "errors", "p50 ms", "p99 ms",
+                "p99.9 ms");
+        for (String level : levels) {
+            int concurrency = Integer.parseInt(level.trim());
+            Result r = run(client, request, concurrency, seconds);
+            System.out.printf("%11d %10.1f %8d %9.2f %9.2f %9.2f%n", concurrency,
+                    r.latencies.getCount() / (double) seconds, r.errors.sum(),
+                    r.latencies.quantile(0.5) / 1e6, r.latencies.quantile(0.99) / 1e6,
+                    r.latencies.quantile(0.999) / 1e6);
+        }
+    }
+
+    /**
+     * The latencies of the successful requests, and the number that failed.
+     */
+    private static class Result {
+        final Histogram latencies = new Histogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * Send requests from concurrency clients at once for the given time.
+     * @param client
+     * @param request
+     * @param concurrency
+     * @param seconds
+     * @return
+     * @throws InterruptedException
+     */
+    private static Result run(HttpClient client, HttpRequest request, int concurrency, int seconds)
+            throws InterruptedException {
+        Result result = new Result();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            tasks.add(() -> {
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() == 200) {
+                            result.latencies.recordSince(start);
+                        } else {
+                            result.errors.increment();
+                        }
+                    } catch (Exception e) {
+                        result.errors.increment();
+                    }
+                }
+            });
+        }
+        tasks.forEach(clients::execute);
+        clients.shutdown();
+        clients.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+        return result;
+    }
+}
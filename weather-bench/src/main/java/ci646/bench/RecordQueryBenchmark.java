@@ -0,0 +1,79 @@
+package ci646.bench;
+/**
+ * Benchmarks Sql2oModel.getRecords(loc, from, to) against a generated database. The database is
+ * created in a temporary directory for each trial and holds `records` hourly records for one
+ * location; each call reads a window of `hours` records starting at a random time.
+ */
+
+import ci646.weather.model.Location;
+import ci646.weather.model.Record;
+import ci646.weather.model.Schema;
+import ci646.weather.model.Sql2oModel;
+import ci646.weather.model.SqlitePool;
+import org.openjdk.jmh.annotations.*;
+import org.sql2o.Sql2o;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordQueryBenchmark {
+
+    // The size of the generated database
+    @Param({"100000"})
+    public int records;
+    // The length of the time range queried
+    @Param({"24", "720"})
+    public int hours;
+
+    private Path dir;
+    private SqlitePool pool;
+    private Sql2oModel model;
+    private long locID;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException, ClassNotFoundException {
+        // This version of the driver doesn't register itself
+        Class.forName("org.sqlite.JDBC");
+        dir = Files.createTempDirectory("weather-bench");
+        pool = new SqlitePool("jdbc:sqlite:" + dir.resolve("weather.db"), 1, 10000, 50, "WAL", "NORMAL");
+        Sql2o writer = new Sql2o(pool.writer());
+        Schema.migrate(writer);
+        model = new Sql2oModel(new Sql2o(pool.readers()), writer);
+        locID = model.putLocation(new Location("Bench", 50.8f, -0.1f, 10));
+        List<Record> all = Records.generate(locID, records);
+        // In chunks the size of the loader's, so that one batch doesn't hold every record
+        for (int i = 0; i < all.size(); i += 10000) {
+            model.putRecords(all.subList(i, Math.min(all.size(), i + 10000)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pool.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Optional<List<Record>> getRecords() {
+        long start = Records.START + ThreadLocalRandom.current().nextInt(Math.max(1, records - hours))
+                * Records.INTERVAL;
+        return model.getRecords(locID, new Timestamp(start), new Timestamp(start + hours * Records.INTERVAL));
+    }
+}
@@ -0,0 +1,46 @@
+package ci646.bench;
+/**
+ * Generates weather records for the benchmarks. The same seed always gives the same records, so runs
+ * can be compared with each other.
+ */
+
+import ci646.weather.model.Record;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class Records {
+
+    // The time of the first record generated, in epoch millis
+    public static final long START = LocalDateTime.of(2020, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+    // The time between records, like the hourly sample data
+    public static final long INTERVAL = 3600000;
+
+    /**
+     * Generate records for a location, one per interval starting at START.
+     * @param locID
+     * @param n the number of records
+     * @return
+     */
+    public static List<Record> generate(long locID, int n) {
+        Random random = new Random(42);
+        List<Record> records = new ArrayList<>(n);
+        float temperature = 10;
+        float humidity = 80;
+        for (int i = 0; i < n; i++) {
+            temperature = clamp(temperature + (float) random.nextGaussian(), -30, 40);
+            humidity = clamp(humidity + 2 * (float) random.nextGaussian(), 0, 100);
+            records.add(new Record(locID, new Timestamp(START + i * INTERVAL), temperature, humidity,
+                    random.nextFloat() * 60, random.nextFloat() * 360));
+        }
+        return records;
+    }
+
+    private static float clamp(float x, float min, float max) {
+        return Math.max(min, Math.min(max, x));
+    }
+}
@@ -6,34 +6,73 @@ package ci646.weather;
  *
  */
 
+import ci646.weather.metrics.CountingOutputStream;
+import ci646.weather.metrics.Metrics;
+import ci646.weather.metrics.TimedRoute;
+import ci646.weather.model.Aggregate;
+import ci646.weather.model.ColumnarModel;
+import ci646.weather.model.DuplicateRecordException;
 import ci646.weather.model.Model;
 import ci646.weather.model.Record;
+import ci646.weather.model.RecordCursor;
+import ci646.weather.model.RecordHandler;
+import ci646.weather.model.RecordPage;
 import ci646.weather.model.Location;
+import ci646.weather.model.PartitionedModel;
+import ci646.weather.model.Schema;
 import ci646.weather.model.Sql2oModel;
+import ci646.weather.model.SqlitePool;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import lombok.extern.slf4j.Slf4j;
 import org.sql2o.Sql2o;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
+import static ci646.weather.Json.jsonify;
+import static ci646.weather.metrics.TimedRoute.timed;
 import static spark.Spark.*;
 import spark.ModelAndView;
+import spark.Request;
+import spark.Response;
+import spark.Route;
 import spark.template.velocity.VelocityTemplateEngine;
 
 @Slf4j
 public class Application {
     //Our Data Access Object (DAO)
     private static Model model = null;
-    private static Gson gson = new GsonBuilder()
-            .setDateFormat("yyyy-MM-dd'T'HH:mm").create();
+    private static Gson gson = Json.gson();
+    // Whether to stream record queries to the client rather than building the whole response in memory
+    private static boolean streamRecords = true;
+    // The largest page size a client may ask for
+    private static int maxPageSize = 10000;
+    // The most records that can be posted in one batch
+    private static int maxBatchSize = 10000;
+    // Whether to compress responses for clients that accept gzip
+    private static boolean gzip = true;
+    // Passes new records to the clients of the live record stream
+    private static RecordHub hub = new RecordHub(100, 1000);
+    // Ms between keep-alive comments on an idle live stream
+    private static long liveKeepAlive = 15000;
+    // If set, POST /records/:loc queues records to be stored in batches instead of storing them at once
+    private static IngestQueue ingest = null;
+    // If set, records are kept in a file per period, and this is closed on shutdown
+    private static PartitionedModel partitions = null;
 
     /**
      * Entry point
@@ -47,12 +86,42 @@ public class Application {
         String staticLoc    = conf.getString("web.staticFiles");
         String templatePath = conf.getString("web.templatePath");
         long staticTO       = conf.getLong("web.staticTimeout");
+        int minThreads      = conf.getInt("web.threads.min");
+        int maxThreads      = conf.getInt("web.threads.max");
+        int threadIdleTO    = conf.getInt("web.threads.idleTimeout");
+        boolean virtualThreads = conf.getBoolean("web.threads.virtual");
         String dbConnString = conf.getString("db.connectionString");
         String dbUser       = conf.getString("db.user");
         String dbPass       = conf.getString("db.password");
+        int dbReaders       = conf.getInt("db.pool.readers");
+        long dbAcquireTO    = conf.getLong("db.pool.acquireTimeout");
+        int dbStmtCache     = conf.getInt("db.pool.statementCache");
+        String dbJournal    = conf.getString("db.journalMode");
+        String dbSync       = conf.getString("db.synchronous");
+        boolean dbCovering  = conf.getBoolean("db.coveringIndex");
+        boolean dbCheckPlans = conf.getBoolean("db.checkQueryPlans");
+        boolean dbColumnar  = conf.getBoolean("db.columnar");
+        long dbSlowQuery    = conf.getLong("db.slowQuery");
+        boolean dbPartitioned = conf.getBoolean("db.partitions.enabled");
+        streamRecords       = conf.getBoolean("web.streamRecords");
+        maxPageSize         = conf.getInt("web.maxPageSize");
+        maxBatchSize        = conf.getInt("web.maxBatchSize");
+        gzip                = conf.getBoolean("web.gzip");
+        hub                 = new RecordHub(conf.getInt("web.live.maxSubscribers"), conf.getInt("web.live.buffer"));
+        liveKeepAlive       = conf.getLong("web.live.keepAlive");
+        boolean ingestAsync = conf.getBoolean("web.ingest.async");
+        int ingestQueueSize = conf.getInt("web.ingest.queueSize");
+        int ingestBatchSize = conf.getInt("web.ingest.batchSize");
+        long ingestMaxDelay = conf.getLong("web.ingest.maxDelay");
 
         // Configure Spark
         port(port);
+        if (virtualThreads) {
+            // Each request gets a thread of its own, so waiting on the DB doesn't use up a pool
+            ExecutorJettyServer.install(ExecutorJettyServer.newVirtualThreadExecutor());
+        } else {
+            threadPool(maxThreads, minThreads, threadIdleTO);
+        }
         staticFiles.location(staticLoc);
         staticFiles.expireTime(staticTO);
 
@@ -62,39 +131,121 @@ public class Application {
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
         }
-        Sql2o sql2o = new Sql2o(dbConnString, dbUser, dbPass);
-        model = new Sql2oModel(sql2o);
+        // A pool of long-lived connections: one writer and several readers
+        SqlitePool pool;
+        try {
+            pool = new SqlitePool(dbConnString, dbReaders, dbAcquireTO, dbStmtCache, dbJournal, dbSync);
+        } catch (SQLException e) {
+            throw new IllegalStateException("could not open the database "+dbConnString, e);
+        }
+        // Store any queued records before the connections are closed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (ingest != null) {
+                ingest.close();
+            }
+            if (partitions != null) {
+                partitions.close();
+            }
+            pool.close();
+        }));
+        Sql2o writer = new Sql2o(pool.writer());
+        Sql2o reader = new Sql2o(pool.readers());
+        // Bring the schema up to date, then make sure the queries will use the indexes
+        Schema.migrate(writer);
+        Schema.setCoveringIndex(writer, dbCovering);
+        if (dbCheckPlans) {
+            Schema.checkQueryPlans(reader);
+        }
+        Sql2oModel store = new Sql2oModel(reader, writer);
+        store.setSlowQueryMillis(dbSlowQuery);
+        store.indexLocations();
+        model = store;
+        if (dbPartitioned) {
+            // Records go in a file per month or year; weather.db keeps the locations
+            partitions = new PartitionedModel(store, writer,
+                    url -> new SqlitePool(url, conf.getInt("db.partitions.readers"), dbAcquireTO, dbStmtCache,
+                            dbJournal, dbSync),
+                    new File(conf.getString("db.partitions.dir")),
+                    PartitionedModel.Period.valueOf(conf.getString("db.partitions.period").toUpperCase(Locale.ROOT)),
+                    conf.getInt("db.partitions.retention"), conf.getInt("db.partitions.threads"),
+                    conf.getInt("db.partitions.maxOpen"), dbCovering);
+            partitions.setSlowQueryMillis(dbSlowQuery);
+            try {
+                partitions.importRecords();
+            } catch (IOException e) {
+                throw new IllegalStateException("could not copy the records into partitions", e);
+            }
+            // Only the server drops expired partitions
+            partitions.dropExpired();
+            model = partitions;
+        }
+        if (dbColumnar) {
+            // Answer queries for a location from memory, keeping the DB as the durable store
+            try {
+                model = new ColumnarModel(model);
+            } catch (IOException e) {
+                throw new IllegalStateException("could not load the records into memory", e);
+            }
+        }
+        if (ingestAsync) {
+            // One thread stores posted records in batches, so request threads don't queue for the DB
+            ingest = new IngestQueue(model, hub, ingestQueueSize, ingestBatchSize, ingestMaxDelay);
+        }
+
+        // Compress responses for clients that accept it. Spark gzips the body a route returns when this
+        // header is set; the helpers that stream records compress for themselves. Every response depends
+        // on Accept-Encoding, so caches must not give a gzipped one to a client that didn't ask for it.
+        if (gzip) {
+            before((req, res) -> {
+                res.header("Vary", "Accept-Encoding");
+                String accept = req.headers("Accept-Encoding");
+                if (accept != null && accept.contains("gzip")) {
+                    res.header("Content-Encoding", "gzip");
+                }
+            });
+        }
 
         // Define the routes
 
+        // Request, query and response size statistics, for Prometheus to scrape
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.prometheus();
+        });
+
         /*
         Locations
          */
 
         // Handle GET requests for all locations.
-        get("/locations", "application/json", (req, res) -> {
-            log.info("received GET locations");
+        get("/locations", "application/json", timed("GET /locations", (req, res) -> {
+            log.debug("received GET locations");
+            if (notModified(req, res, "locations-" + model.getLocationsVersion())) {
+                return "";
+            }
             Optional<List<Location>> or = model.getLocations();
             return jsonify(or);
-        });
+        }));
 
         // Handle POST requests to put a new location. Returns the location created.
-        post("/locations", "application/json", (req, res) -> {
-            log.info(req.queryString());
+        post("/locations", "application/json", timed("POST /locations", (req, res) -> {
             Location l = new Location(req.queryParams("name")
                     , Float.parseFloat(req.queryParams("lat"))
                     , Float.parseFloat(req.queryParams("lon"))
                     , Float.parseFloat(req.queryParams("asl")));
-            log.info("received POST location");
+            log.debug("received POST location");
             long id = model.putLocation(l);
             return jsonify(model.getLocation(id));
-        });
+        }));
 
         // Handle GET requests for named locations and IDs -- can handle a string param (which search for the location
         // name) or a numeric ID.
-        get("/locations/:name", "application/json", (req, res) -> {
+        get("/locations/:name", "application/json", timed("GET /locations/:name", (req, res) -> {
             String name = req.params(":name");
-            log.info("received GET locations/"+name);
+            log.debug("received GET locations/{}", name);
+            if (notModified(req, res, "locations-" + model.getLocationsVersion())) {
+                return "";
+            }
             try {
                 long id = Long.parseLong(name);
                 Optional<Location> or = model.getLocation(id);
@@ -103,74 +254,604 @@ public class Application {
                 Optional<List<Location>> or = model.getLocationsByName(name);
                 return jsonify(or);
             }
-        });
+        }));
+
+        // Handle GET requests for the locations nearest to a point, nearest first. The k parameter is how
+        // many, 10 by default.
+        get("/locations/near/:lat/:lon", "application/json", timed("GET /locations/near/:lat/:lon", (req, res) -> {
+            log.debug("received GET locations near {},{}", req.params(":lat"), req.params(":lon"));
+            try {
+                double lat = latitude(req.params(":lat"));
+                double lon = longitude(req.params(":lon"));
+                int k = req.queryParams("k") == null ? 10 : Integer.parseInt(req.queryParams("k"));
+                if (k < 1 || k > maxPageSize) {
+                    return error(res, "k must be between 1 and " + maxPageSize);
+                }
+                if (notModified(req, res, "locations-" + model.getLocationsVersion())) {
+                    return "";
+                }
+                return jsonify(model.getLocationsNear(lat, lon, k));
+            } catch (NumberFormatException e) {
+                return error(res, e.getMessage());
+            }
+        }));
+
+        // Handle GET requests for the locations within a distance in km of a point, nearest first.
+        get("/locations/within/:lat/:lon/:km", "application/json",
+                timed("GET /locations/within/:lat/:lon/:km", (req, res) -> {
+            log.debug("received GET locations within {}km of {},{}",
+                    req.params(":km"), req.params(":lat"), req.params(":lon"));
+            try {
+                double lat = latitude(req.params(":lat"));
+                double lon = longitude(req.params(":lon"));
+                double km = Double.parseDouble(req.params(":km"));
+                if (!(km >= 0 && km < Double.POSITIVE_INFINITY)) {
+                    return error(res, "km must be a distance of at least 0: " + req.params(":km"));
+                }
+                if (notModified(req, res, "locations-" + model.getLocationsVersion())) {
+                    return "";
+                }
+                return jsonify(model.getLocationsWithin(lat, lon, km));
+            } catch (NumberFormatException e) {
+                return error(res, e.getMessage());
+            }
+        }));
+
+        // Handle GET requests for the locations in a box, given by its south-west and north-east corners.
+        // A box whose west edge is east of its east edge crosses the 180th meridian.
+        get("/locations/box/:minLat/:minLon/:maxLat/:maxLon", "application/json",
+                timed("GET /locations/box/:minLat/:minLon/:maxLat/:maxLon", (req, res) -> {
+            log.debug("received GET locations in box {},{} {},{}", req.params(":minLat"), req.params(":minLon"),
+                    req.params(":maxLat"), req.params(":maxLon"));
+            try {
+                double minLat = latitude(req.params(":minLat"));
+                double minLon = longitude(req.params(":minLon"));
+                double maxLat = latitude(req.params(":maxLat"));
+                double maxLon = longitude(req.params(":maxLon"));
+                if (notModified(req, res, "locations-" + model.getLocationsVersion())) {
+                    return "";
+                }
+                return jsonify(model.getLocationsInBox(minLat, minLon, maxLat, maxLon));
+            } catch (NumberFormatException e) {
+                return error(res, e.getMessage());
+            }
+        }));
 
         /*
         Records
          */
 
         // Handle GET requests for all records.
-        get("/records", "application/json", (req, res) -> {
-            log.info("received GET records");
+        Route allRecords = timed("GET /records", (req, res) -> {
+            log.debug("received GET records");
+            if (notModified(req, res, "records-" + model.getRecordsVersion())) {
+                return "";
+            }
+            if (req.queryParams("limit") != null) {
+                return pageJson(req, res, (after, limit) -> model.getRecords(after, limit));
+            }
+            if (streamRecords) {
+                return streamJson(req, res, h -> model.streamRecords(h));
+            }
             Optional<List<Record>> or = model.getRecords();
             return jsonify(or);
         });
+        get("/records", "application/json", allRecords);
 
         // Handle GET requests for records at a given location.
-        get("/records/:loc", "application/json", (req, res) -> {
+        Route locationRecords = timed("GET /records/:loc", (req, res) -> {
             long id = Long.parseLong(req.params(":loc"));
-            log.info("received GET records FOR LOCATION "+id);
+            log.debug("received GET records FOR LOCATION {}", id);
+            if (notModified(req, res, "records-" + id + "-" + model.getRecordsVersion(id))) {
+                return "";
+            }
+            if (req.queryParams("points") != null) {
+                return streamPoints(req, res, () -> model.getAggregate(id), h -> model.streamRecords(id, h),
+                        Application::streamJson);
+            }
+            if (req.queryParams("limit") != null) {
+                return pageJson(req, res, (after, limit) -> model.getRecords(id, after, limit));
+            }
+            if (streamRecords) {
+                return streamJson(req, res, h -> model.streamRecords(id, h));
+            }
             Optional<List<Record>> or = model.getRecords(id);
             return jsonify(or);
         });
+        get("/records/:loc", "application/json", locationRecords);
 
         // Handle GET requests for records at a given location in a time range.
-        get("/records/:loc/:from/:to", "application/json", (req, res) -> {
+        Route rangeRecords = timed("GET /records/:loc/:from/:to", (req, res) -> {
             String locStr = req.params(":loc");
             String fromStr = req.params(":from");
             String toStr = req.params(":to");
-            log.info(String.format("received GET records FOR LOCATION %s FROM %s TO %s",
-                    locStr, fromStr, toStr));
+            log.debug("received GET records FOR LOCATION {} FROM {} TO {}", locStr, fromStr, toStr);
             long id = Long.parseLong(locStr);
             // Try to parse the timestamps, could fail
             try {
                 Timestamp from = Timestamp.from(LocalDateTime.parse(fromStr).toInstant(ZoneOffset.UTC));
                 Timestamp to = Timestamp.from(LocalDateTime.parse(toStr).toInstant(ZoneOffset.UTC));
+                if (notModified(req, res, "records-" + id + "-" + model.getRecordsVersion(id))) {
+                    return "";
+                }
+                if (req.queryParams("points") != null) {
+                    return streamPoints(req, res, () -> model.getAggregate(id, from, to),
+                            h -> model.streamRecords(id, from, to, h), Application::streamJson);
+                }
+                if (req.queryParams("limit") != null) {
+                    return pageJson(req, res, (after, limit) -> model.getRecords(id, from, to, after, limit));
+                }
+                if (streamRecords) {
+                    return streamJson(req, res, h -> model.streamRecords(id, from, to, h));
+                }
                 Optional<List<Record>> or = model.getRecords(id, from, to);
                 return jsonify(or);
             } catch (DateTimeParseException e) {
                 return new Gson().toJson(e);
             }
         });
+        get("/records/:loc/:from/:to", "application/json", rangeRecords);
 
-        // Handle POST requests for a new record. Returns the new record.
-        post("/records/:loc", "application/json", (req, res) -> {
+        // The same three record queries for clients that ask for the binary format. Not paged.
+        get("/records", RecordBinaryWriter.CONTENT_TYPE, binaryOr(allRecords,
+                timed("GET /records (binary)", (req, res) -> {
+            log.debug("received binary GET records");
+            if (notModified(req, res, "records-" + model.getRecordsVersion() + "-bin")) {
+                return "";
+            }
+            return streamBinary(req, res, h -> model.streamRecords(h));
+        })));
+
+        get("/records/:loc", RecordBinaryWriter.CONTENT_TYPE, binaryOr(locationRecords,
+                timed("GET /records/:loc (binary)", (req, res) -> {
+            long id = Long.parseLong(req.params(":loc"));
+            log.debug("received binary GET records FOR LOCATION {}", id);
+            if (notModified(req, res, "records-" + id + "-" + model.getRecordsVersion(id) + "-bin")) {
+                return "";
+            }
+            if (req.queryParams("points") != null) {
+                return streamPoints(req, res, () -> model.getAggregate(id), h -> model.streamRecords(id, h),
+                        Application::streamBinary);
+            }
+            return streamBinary(req, res, h -> model.streamRecords(id, h));
+        })));
+
+        get("/records/:loc/:from/:to", RecordBinaryWriter.CONTENT_TYPE, binaryOr(rangeRecords,
+                timed("GET /records/:loc/:from/:to (binary)", (req, res) -> {
+            long id = Long.parseLong(req.params(":loc"));
+            log.debug("received binary GET records FOR LOCATION {} FROM {} TO {}",
+                    id, req.params(":from"), req.params(":to"));
+            try {
+                Timestamp from = Timestamp.from(LocalDateTime.parse(req.params(":from")).toInstant(ZoneOffset.UTC));
+                Timestamp to = Timestamp.from(LocalDateTime.parse(req.params(":to")).toInstant(ZoneOffset.UTC));
+                if (notModified(req, res, "records-" + id + "-" + model.getRecordsVersion(id) + "-bin")) {
+                    return "";
+                }
+                if (req.queryParams("points") != null) {
+                    return streamPoints(req, res, () -> model.getAggregate(id, from, to),
+                            h -> model.streamRecords(id, from, to, h), Application::streamBinary);
+                }
+                return streamBinary(req, res, h -> model.streamRecords(id, from, to, h));
+            } catch (DateTimeParseException e) {
+                return error(res, e.getMessage());
+            }
+        })));
+
+        /*
+        Aggregates
+         */
+
+        // Handle GET requests for summary statistics of all records at a given location.
+        get("/aggregates/:loc", "application/json", timed("GET /aggregates/:loc", (req, res) -> {
+            long id = Long.parseLong(req.params(":loc"));
+            log.debug("received GET aggregates FOR LOCATION {}", id);
+            return jsonify(model.getAggregate(id));
+        }));
+
+        // Handle GET requests for summary statistics of the records at a given location in a time range.
+        // With the bucket parameter (hour, day or month) the response is an array with one entry per bucket.
+        get("/aggregates/:loc/:from/:to", "application/json", timed("GET /aggregates/:loc/:from/:to", (req, res) -> {
+            String locStr = req.params(":loc");
+            String fromStr = req.params(":from");
+            String toStr = req.params(":to");
+            String bucketStr = req.queryParams("bucket");
+            log.debug("received GET aggregates FOR LOCATION {} FROM {} TO {} BUCKET {}",
+                    locStr, fromStr, toStr, bucketStr);
+            long id = Long.parseLong(locStr);
+            try {
+                Timestamp from = Timestamp.from(LocalDateTime.parse(fromStr).toInstant(ZoneOffset.UTC));
+                Timestamp to = Timestamp.from(LocalDateTime.parse(toStr).toInstant(ZoneOffset.UTC));
+                if (bucketStr == null) {
+                    return jsonify(model.getAggregate(id, from, to));
+                }
+                Aggregate.Bucket bucket = Aggregate.Bucket.valueOf(bucketStr.toUpperCase(Locale.ROOT));
+                return jsonify(model.getAggregates(id, from, to, bucket));
+            } catch (DateTimeParseException e) {
+                return error(res, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                return error(res, "bucket must be one of hour, day or month");
+            }
+        }));
+
+        // Handle POST requests for a new record. Returns the new record, or 409 if the location already has
+        // one at that time. With the ingest queue, the record is only queued, and the response is 202 with
+        // a record ID of 0, or 503 if the queue is full.
+        post("/records/:loc", "application/json", timed("POST /records/:loc", (req, res) -> {
+            long loc = Long.parseLong(req.params(":loc"));
+            Record r;
+            try {
+                Timestamp ts = Timestamp.from(LocalDateTime.parse(req.queryParams("ts")).toInstant(ZoneOffset.UTC));
+                r = new Record(loc
+                        , ts
+                        , measurement(req.queryParams("temp"))
+                        , measurement(req.queryParams("hum"))
+                        , measurement(req.queryParams("ws"))
+                        , measurement(req.queryParams("wd")));
+            } catch (DateTimeParseException | NumberFormatException | NullPointerException e) {
+                return error(res, "ts, temp, hum, ws and wd must all be given, as a time and finite numbers");
+            }
+            if (partitions != null) {
+                // Checked now, since with the ingest queue the record is only stored after the response
+                try {
+                    partitions.checkKept(r.getDate().getTime());
+                } catch (IllegalArgumentException e) {
+                    return error(res, e.getMessage());
+                }
+            }
+            if (ingest != null) {
+                if (!ingest.offer(r)) {
+                    res.status(503);
+                    res.header("Retry-After", "1");
+                    JsonObject error = new JsonObject();
+                    error.addProperty("error", "too many records waiting to be stored, try again later");
+                    return gson.toJson(error);
+                }
+                res.status(202);
+                return jsonify(Optional.of(r));
+            }
+            long id;
+            try {
+                id = model.putRecord(r);
+            } catch (IllegalArgumentException e) {
+                // Too old to be kept, with partition retention
+                return error(res, e.getMessage());
+            } catch (DuplicateRecordException e) {
+                return error(res, 409, e.getMessage());
+            }
+            log.debug("PUT record ID {} FOR LOCATION {}", id, loc);
+            // The stored record is the one sent, so there's no need to read it back
+            r.setRecordID(id);
+            hub.publish(r);
+            return jsonify(Optional.of(r));
+        }));
+
+        // Handle POST requests for a batch of new records, as a JSON array or newline-delimited JSON of
+        // records in the same form as the GET responses. They are stored in one transaction. Returns the
+        // new record IDs in the order sent, with 0 for any record that duplicates an existing one.
+        post("/records/:loc/batch", "application/json", timed("POST /records/:loc/batch", (req, res) -> {
             long loc = Long.parseLong(req.params(":loc"));
-            Timestamp ts = Timestamp.from(LocalDateTime.parse(req.queryParams("ts")).toInstant(ZoneOffset.UTC));
-            Record r = new Record(loc
-                    , ts
-                    , Float.parseFloat(req.queryParams("temp"))
-                    , Float.parseFloat(req.queryParams("hum"))
-                    , Float.parseFloat(req.queryParams("ws"))
-                    , Float.parseFloat(req.queryParams("wd")));
-            long id = model.putRecord(r);
-            log.info(String.format("PUT record ID %d FOR LOCATION %d",
-                    id, loc));
-            return jsonify(model.getRecord(id));
+            List<Record> recs;
+            try {
+                recs = new RecordJsonReader(req.raw().getInputStream()).readAll(loc, maxBatchSize);
+            } catch (IllegalArgumentException e) {
+                return error(res, e.getMessage());
+            }
+            long[] ids = model.putRecords(recs);
+            log.debug("PUT {} records FOR LOCATION {}", ids.length, loc);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != 0) {
+                    recs.get(i).setRecordID(ids[i]);
+                    hub.publish(recs.get(i));
+                }
+            }
+            res.status(201);
+            JsonObject result = new JsonObject();
+            result.add("ids", gson.toJsonTree(ids));
+            return gson.toJson(result);
+        }));
+
+        // A Server-Sent Events stream of the records stored at a location from now on, for a client that
+        // already has the history. Each record is an event with the record as JSON and its ID. A comment
+        // is sent when nothing has been stored for a while, which finds clients that have gone away. The
+        // stream ends if the client falls too far behind; EventSource then reconnects and should reload
+        // the history. Each open stream holds a request thread.
+        get("/records/:loc/live", (req, res) -> {
+            long loc = Long.parseLong(req.params(":loc"));
+            RecordHub.Subscription sub = hub.subscribe(loc);
+            if (sub == null) {
+                res.status(503);
+                JsonObject error = new JsonObject();
+                error.addProperty("error", "too many live streams open");
+                return gson.toJson(error);
+            }
+            try (sub) {
+                // Events must reach the client as soon as they are written, so they aren't compressed
+                res.raw().setHeader("Content-Encoding", null);
+                res.type("text/event-stream");
+                res.header("Cache-Control", "no-cache");
+                OutputStream out = res.raw().getOutputStream();
+                out.write((": live records for location " + loc + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                while (!sub.isOverflowed()) {
+                    Record r = sub.poll(liveKeepAlive, TimeUnit.MILLISECONDS);
+                    String event = r == null
+                            ? ": keep-alive\n\n"
+                            : "id: " + r.getRecordID() + "\nevent: record\ndata: " + gson.toJson(r) + "\n\n";
+                    out.write(event.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                log.debug("Live stream for location {} fell behind and was closed", loc);
+            } catch (IOException e) {
+                log.debug("Live stream for location {} closed by the client", loc);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "";
         });
     }
 
     /**
-     * Helper method to turn Optional objects into JSON strings.
-     * @param o
-     * @param <T>
+     * A query that passes its records to a handler, e.g. one of the Model.streamRecords methods.
+     */
+    private interface RecordQuery {
+        void run(RecordHandler handler) throws IOException;
+    }
+
+    /**
+     * Helper method to write the results of a record query directly to the response as a JSON
+     * array, one record at a time, so that memory use doesn't depend on the number of records.
+     * @param req
+     * @param res
+     * @param query
+     * @return an empty body, since the response has already been written
+     * @throws IOException
+     */
+    private static String streamJson(Request req, Response res, RecordQuery query) throws IOException {
+        res.type("application/json");
+        OutputStream body = gzipped(res) ? new GZIPOutputStream(res.raw().getOutputStream(), 1 << 16)
+                : res.raw().getOutputStream();
+        // Counted before compression, like the bodies routes return, which Spark gzips afterwards
+        CountingOutputStream out = new CountingOutputStream(body);
+        RecordJsonWriter writer = new RecordJsonWriter(out);
+        query.run(writer);
+        writer.finish();
+        finish(body);
+        req.attribute(TimedRoute.STREAMED_BYTES, out.getCount());
+        return "";
+    }
+
+    /**
+     * Helper method to write the results of a record query directly to the response in the binary
+     * format of RecordBinaryWriter.
+     * @param req
+     * @param res
+     * @param query
+     * @return an empty body, since the response has already been written
+     * @throws IOException
+     */
+    private static String streamBinary(Request req, Response res, RecordQuery query) throws IOException {
+        res.type(RecordBinaryWriter.CONTENT_TYPE);
+        OutputStream body = gzipped(res) ? new GZIPOutputStream(res.raw().getOutputStream(), 1 << 16)
+                : res.raw().getOutputStream();
+        // Counted before compression, like the bodies routes return, which Spark gzips afterwards
+        CountingOutputStream out = new CountingOutputStream(body);
+        RecordBinaryWriter writer = new RecordBinaryWriter(out);
+        query.run(writer);
+        writer.finish();
+        finish(body);
+        req.attribute(TimedRoute.STREAMED_BYTES, out.getCount());
+        return "";
+    }
+
+    /**
+     * A way of writing the results of a record query to the response, i.e. streamJson or streamBinary.
+     */
+    private interface RecordStreamer {
+        String stream(Request req, Response res, RecordQuery query) throws IOException;
+    }
+
+    /**
+     * Helper method to write the results of a record query for one location reduced by a Downsampler
+     * to at most the number of points given by the points request parameter, for drawing a chart. The
+     * times of the first and last records are taken from their aggregate, which comes from the rollups,
+     * and if there are no more records than points they are all written.
+     * @param req
+     * @param res
+     * @param aggregate the aggregate of the records the query returns
+     * @param query
+     * @param streamer
+     * @return an empty body, since the response has already been written
+     * @throws IOException
+     */
+    private static String streamPoints(Request req, Response res, Supplier<Optional<Aggregate>> aggregate,
+                                       RecordQuery query, RecordStreamer streamer) throws IOException {
+        int points;
+        try {
+            if (req.queryParams("limit") != null) {
+                throw new IllegalArgumentException("points and limit can't be used together");
+            }
+            points = Integer.parseInt(req.queryParams("points"));
+            if (points < 2 || points > maxPageSize) {
+                throw new IllegalArgumentException("points must be between 2 and " + maxPageSize);
+            }
+        } catch (IllegalArgumentException e) {
+            return error(res, e.getMessage());
+        }
+        Optional<Aggregate> agg = aggregate.get();
+        if (agg.isEmpty() || agg.get().getCount() <= points) {
+            return streamer.stream(req, res, query);
+        }
+        long from = agg.get().getFrom().getTime();
+        long to = agg.get().getTo().getTime();
+        return streamer.stream(req, res, h -> {
+            Downsampler downsampler = new Downsampler(h, from, to, points);
+            query.run(downsampler);
+            downsampler.finish();
+        });
+    }
+
+    /**
+     * Spark chooses between routes for the same path by the Accept header, but a client that accepts
+     * anything may be given any of them. Only give the binary route to clients that ask for it by name.
+     * @param json
+     * @param binary
      * @return
      */
-    private static <T> String jsonify(Optional<T> o) {
-        if (o == null || o.isEmpty()) {
-            return gson.toJson(new JsonObject());
-        } else {
-            return gson.toJson(o.get());
+    private static Route binaryOr(Route json, Route binary) {
+        return (req, res) -> {
+            String accept = req.headers("Accept");
+            if (accept != null && accept.contains(RecordBinaryWriter.CONTENT_TYPE)) {
+                return binary.handle(req, res);
+            }
+            return json.handle(req, res);
+        };
+    }
+
+    /**
+     * A query for one page of records, e.g. one of the paged Model.getRecords methods.
+     */
+    private interface PageQuery {
+        RecordPage run(RecordCursor after, int limit);
+    }
+
+    /**
+     * Helper method to run a paged record query using the limit and cursor request parameters.
+     * The response is an object holding the records and, if there are more, the cursor for the next page.
+     * @param req
+     * @param res
+     * @param query
+     * @return
+     */
+    private static String pageJson(Request req, Response res, PageQuery query) {
+        try {
+            int limit = Integer.parseInt(req.queryParams("limit"));
+            if (limit < 1 || limit > maxPageSize) {
+                throw new IllegalArgumentException("limit must be between 1 and " + maxPageSize);
+            }
+            RecordCursor after = RecordCursor.decode(req.queryParams("cursor"));
+            return jsonify(Optional.of(query.run(after, limit)));
+        } catch (IllegalArgumentException e) {
+            return error(res, e.getMessage());
+        }
+    }
+
+    /**
+     * Whether the before filter chose to gzip this response.
+     * @param res
+     * @return
+     */
+    private static boolean gzipped(Response res) {
+        return "gzip".equals(res.raw().getHeader("Content-Encoding"));
+    }
+
+    /**
+     * Finish a streamed response body, writing the end of the compressed data if it is gzipped, so
+     * that the response is committed and Spark leaves it alone.
+     * @param body
+     * @throws IOException
+     */
+    private static void finish(OutputStream body) throws IOException {
+        if (body instanceof GZIPOutputStream) {
+            ((GZIPOutputStream) body).finish();
+        }
+        body.flush();
+    }
+
+    /**
+     * Helper method for conditional GETs. Sets the ETag of the response, made from a tag that names the
+     * data and its version in the model, and returns true if the client already has that version, in
+     * which case the status is set to 304 and the route should return an empty body without running its
+     * query. Gzipped responses have their own ETags, since their bytes differ.
+     * @param req
+     * @param res
+     * @param tag
+     * @return
+     */
+    private static boolean notModified(Request req, Response res, String tag) {
+        String etag = "\"" + tag + (gzipped(res) ? "-gz" : "") + "\"";
+        res.header("ETag", etag);
+        // In place of the Vary the gzip filter set, rather than beside it
+        res.raw().setHeader("Vary", "Accept, Accept-Encoding");
+        String match = req.headers("If-None-Match");
+        if (match == null) {
+            return false;
         }
+        for (String m : match.split(",")) {
+            m = m.trim();
+            if (m.equals("*") || m.equals(etag) || m.equals("W/" + etag)) {
+                res.status(304);
+                // Nothing to compress, and a 304 must not have a body
+                res.raw().setHeader("Content-Encoding", null);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to parse a latitude.
+     * @param s
+     * @return
+     * @throws NumberFormatException if it isn't a number between -90 and 90
+     */
+    private static double latitude(String s) {
+        double lat = Double.parseDouble(s);
+        if (!(lat >= -90 && lat <= 90)) {
+            throw new NumberFormatException("latitude must be between -90 and 90: " + s);
+        }
+        return lat;
+    }
+
+    /**
+     * Helper method to parse a longitude. A box crossing the 180th meridian is given by its west edge
+     * being east of its east edge, not by a longitude past 180.
+     * @param s
+     * @return
+     * @throws NumberFormatException if it isn't a number between -180 and 180
+     */
+    private static double longitude(String s) {
+        double lon = Double.parseDouble(s);
+        if (!(lon >= -180 && lon <= 180)) {
+            throw new NumberFormatException("longitude must be between -180 and 180: " + s);
+        }
+        return lon;
+    }
+
+    /**
+     * Helper method to parse a measurement. NaN and infinity can't be stored.
+     * @param s
+     * @return
+     * @throws NumberFormatException if it isn't a finite number
+     */
+    private static float measurement(String s) {
+        float f = Float.parseFloat(s);
+        if (!Float.isFinite(f)) {
+            throw new NumberFormatException("measurements must be finite numbers: " + s);
+        }
+        return f;
+    }
+
+    /**
+     * Helper method to reject a bad request with a JSON error message.
+     * @param res
+     * @param message
+     * @return
+     */
+    private static String error(Response res, String message) {
+        return error(res, 400, message);
+    }
+
+    /**
+     * Helper method to refuse a request with a status and a JSON error message.
+     * @param res
+     * @param status
+     * @param message
+     * @return
+     */
+    private static String error(Response res, int status, String message) {
+        res.status(status);
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return gson.toJson(error);
     }
 }
@@ -0,0 +1,146 @@
+package ci646.weather;
+/**
+ * A RecordHandler that reduces a series of records to at most a given number of points before passing
+ * them on, for drawing a chart of a long time range. The first and last records are always passed on,
+ * so the line covers the whole range. The rest of the range is divided into buckets of equal time, two
+ * points to a bucket, and of the records in each bucket only those with the lowest and highest
+ * temperature are passed on, in time order. The peaks and troughs of the series survive, so a line
+ * drawn through the points looks like one drawn through every record at the size of the chart. With an
+ * odd number of points the slot left over after the pairs goes unused.
+ *
+ * Works in a single pass, holding only the current bucket and the latest record, so the records must
+ * arrive in time order, as the per-location Model queries return them. The records passed on are ones
+ * received, unchanged.
+ */
+
+import ci646.weather.model.RecordHandler;
+
+import java.io.IOException;
+
+public class Downsampler implements RecordHandler {
+
+    private final RecordHandler out;
+    private final long from;
+    private final long buckets;
+    private final long width;       // ms per bucket
+    private boolean started = false;    // whether the first record has been passed on
+    private boolean pending = false;    // whether latest holds a record, which may be the last
+    private final Sample latest = new Sample();
+    private boolean open = false;   // whether low and high hold a bucket's records
+    private long bucket;            // and if so, which
+    private final Sample low = new Sample();
+    private final Sample high = new Sample();
+
+    /**
+     * One record, held until the end of its bucket.
+     */
+    private static class Sample {
+        long recordID;
+        long locID;
+        long ts;
+        float temperature;
+        float humidity;
+        float windSpeed;
+        float windDirection;
+
+        void set(long recordID, long locID, long ts, float temperature, float humidity, float windSpeed,
+                 float windDirection) {
+            this.recordID = recordID;
+            this.locID = locID;
+            this.ts = ts;
+            this.temperature = temperature;
+            this.humidity = humidity;
+            this.windSpeed = windSpeed;
+            this.windDirection = windDirection;
+        }
+
+        void set(Sample other) {
+            set(other.recordID, other.locID, other.ts, other.temperature, other.humidity, other.windSpeed,
+                    other.windDirection);
+        }
+
+        void sendTo(RecordHandler handler) throws IOException {
+            handler.record(recordID, locID, ts, temperature, humidity, windSpeed, windDirection);
+        }
+    }
+
+    /**
+     * @param out receives the points
+     * @param from the time of the first record, in ms since the epoch
+     * @param to the time of the last record
+     * @param points the most points to pass on, at least 2
+     */
+    public Downsampler(RecordHandler out, long from, long to, int points) {
+        this.out = out;
+        this.from = from;
+        // Two of the points are the first and last records
+        this.buckets = Math.max(0, (points - 2) / 2);
+        // Round up, so that the last record falls in the last bucket
+        this.width = Math.max(1, (to - from) / Math.max(1, buckets) + 1);
+    }
+
+    @Override
+    public void record(long recordID, long locID, long ts, float temperature, float humidity,
+                       float windSpeed, float windDirection) throws IOException {
+        if (!started) {
+            started = true;
+            out.record(recordID, locID, ts, temperature, humidity, windSpeed, windDirection);
+            return;
+        }
+        // Only once another record has arrived is the one before known not to be the last
+        if (pending) {
+            sample(latest);
+        }
+        pending = true;
+        latest.set(recordID, locID, ts, temperature, humidity, windSpeed, windDirection);
+    }
+
+    /**
+     * Pass on the points of the last bucket, then the last record. Must be called after the last record.
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        flush();
+        open = false;
+        if (pending) {
+            latest.sendTo(out);
+            pending = false;
+        }
+    }
+
+    /**
+     * Add a record other than the first or last to its bucket.
+     */
+    private void sample(Sample rec) throws IOException {
+        if (buckets == 0) {
+            return;
+        }
+        long b = Math.floorDiv(rec.ts - from, width);
+        if (!open || b != bucket) {
+            flush();
+            open = true;
+            bucket = b;
+            low.set(rec);
+            high.set(rec);
+        } else if (rec.temperature < low.temperature) {
+            low.set(rec);
+        } else if (rec.temperature > high.temperature) {
+            high.set(rec);
+        }
+    }
+
+    private void flush() throws IOException {
+        if (!open) {
+            return;
+        }
+        if (low.recordID == high.recordID) {
+            low.sendTo(out);
+        } else if (low.ts <= high.ts) {
+            low.sendTo(out);
+            high.sendTo(out);
+        } else {
+            high.sendTo(out);
+            low.sendTo(out);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ci646.weather;
+/**
+ * An embedded Jetty server for Spark whose threads all come from an ExecutorService, instead of
+ * Spark's own QueuedThreadPool. With an executor that starts a virtual thread per task, a route
+ * handler that blocks on JDBC or HTTP only parks its virtual thread, so the number of requests being
+ * handled at once is no longer limited by the size of a thread pool.
+ *
+ * Virtual threads need Java 21. The services are built for older versions too, so the executor is
+ * looked up by reflection, and a cached pool of platform threads is used if it isn't there.
+ */
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import spark.Service;
+import spark.Spark;
+import spark.embeddedserver.EmbeddedServer;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.NotSupportedException;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.embeddedserver.jetty.SocketConnectorFactory;
+import spark.embeddedserver.jetty.websocket.WebSocketHandlerWrapper;
+import spark.http.matching.MatcherFilter;
+import spark.ssl.SslStores;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@Slf4j
+public class ExecutorJettyServer implements EmbeddedServer {
+
+    private static final String IDENTIFIER = "executor-jetty";
+
+    private final JettyHandler handler;
+    private final ExecutorService executor;
+    private Server server;
+
+    private ExecutorJettyServer(JettyHandler handler, ExecutorService executor) {
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    /**
+     * Make Spark run its routes on this server, with threads from the executor. Must be called before
+     * the first route is defined. Spark 2.5 only lets the server be chosen through a private field, so
+     * that is set by reflection.
+     * @param executor
+     */
+    public static void install(ExecutorService executor) {
+        EmbeddedServers.add(IDENTIFIER, (routes, staticFiles, hasMultipleHandlers) -> {
+            MatcherFilter filter = new MatcherFilter(routes, staticFiles, false, hasMultipleHandlers);
+            filter.init(null);
+            return new ExecutorJettyServer(new JettyHandler(filter), executor);
+        });
+        try {
+            Method instance = Spark.class.getDeclaredMethod("getInstance");
+            instance.setAccessible(true);
+            Field identifier = Service.class.getDeclaredField("embeddedServerIdentifier");
+            identifier.setAccessible(true);
+            identifier.set(instance.invoke(null), IDENTIFIER);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("could not replace Spark's embedded server", e);
+        }
+    }
+
+    /**
+     * An executor that starts a new virtual thread for each task, or if this Java doesn't have virtual
+     * threads, one that starts (or reuses) a platform thread for each task.
+     * @return
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            log.warn("Virtual threads are not available in Java {}, using platform threads instead",
+                    System.getProperty("java.version"));
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * The services have no web sockets. Spark always calls this, with an empty map if there are none.
+     */
+    @Override
+    public void configureWebSockets(Map<String, WebSocketHandlerWrapper> webSocketHandlers,
+                                    Optional<Integer> webSocketIdleTimeoutMillis) {
+        if (webSocketHandlers != null && !webSocketHandlers.isEmpty()) {
+            NotSupportedException.raise(getClass().getSimpleName(), "Web Sockets");
+        }
+    }
+
+    /**
+     * Start the server, in the same way as Spark's own EmbeddedJettyServer. Spark's thread pool settings
+     * are ignored, since the executor supplies the threads.
+     */
+    @Override
+    public int ignite(String host, int port, SslStores sslStores, CountDownLatch latch, int maxThreads,
+                      int minThreads, int threadIdleTimeoutMillis) {
+        server = new Server(new ExecutorThreadPool(executor));
+        ServerConnector connector = sslStores == null
+                ? SocketConnectorFactory.createSocketConnector(server, host, port)
+                : SocketConnectorFactory.createSecureSocketConnector(server, host, port, sslStores);
+        server.setConnectors(new ServerConnector[]{connector});
+        server.setHandler(handler);
+        try {
+            log.info("Jetty server listening on {}:{}, with threads from a {}", host, port,
+                    executor.getClass().getSimpleName());
+            server.start();
+            latch.countDown();
+            server.join();
+        } catch (Exception e) {
+            log.error("Jetty server failed", e);
+            System.exit(100);
+        }
+        return port;
+    }
+
+    @Override
+    public void extinguish() {
+        try {
+            if (server != null) {
+                server.stop();
+            }
+        } catch (Exception e) {
+            log.error("Jetty server failed to stop", e);
+        }
+        executor.shutdown();
+    }
+}
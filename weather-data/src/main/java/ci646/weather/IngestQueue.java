@@ -0,0 +1,202 @@
+package ci646.weather;
+/**
+ * A write-behind queue for new records. Request threads only put records on a bounded queue, and one
+ * writer thread takes them off in batches and stores each batch in one transaction with
+ * Model.putRecords. Writes to SQLite are serialized anyway, so this avoids many request threads
+ * waiting on the database lock, and a single commit for many records is much cheaper than one each.
+ *
+ * A batch is stored as soon as it has batchSize records, or maxDelay after its first record arrived,
+ * whichever is sooner. When the queue is full, offer fails, and the caller should ask the client to
+ * try again later. A batch that can't be stored is stored again one record at a time, and a record
+ * that can't be stored on its own is retried a few times before it is dropped and logged. Records are
+ * published to the RecordHub once they are committed.
+ *
+ * Queue depth, batch sizes, commit times and the numbers of records refused and dropped are in the
+ * metrics.
+ */
+
+import ci646.weather.metrics.Metrics;
+import ci646.weather.model.Model;
+import ci646.weather.model.Record;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+@Slf4j
+public class IngestQueue implements AutoCloseable {
+
+    // Attempts to store a record before it is dropped, doubling the wait between them from RETRY_DELAY
+    private static final int ATTEMPTS = 4;
+    private static final long RETRY_DELAY = 100;            // ms
+    // How long close waits for the queue to be drained
+    private static final long CLOSE_TIMEOUT = 30;           // s
+
+    private final Model model;
+    private final RecordHub hub;
+    private final BlockingQueue<Record> queue;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final Thread writer;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed = false;
+
+    /**
+     * Start the writer thread.
+     * @param model where records are stored
+     * @param hub where records are published once stored
+     * @param capacity the most records waiting to be stored
+     * @param batchSize the most records stored in one transaction
+     * @param maxDelay the longest a record waits for a batch to fill, in ms
+     */
+    public IngestQueue(Model model, RecordHub hub, int capacity, int batchSize, long maxDelay) {
+        this.model = model;
+        this.hub = hub;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        Metrics.gauge("ingest_queue_depth", "Records waiting to be stored.", queue::size);
+        Metrics.counter("ingest_rejected_total", "Records refused because the queue was full.", rejected::sum);
+        Metrics.counter("ingest_dropped_total", "Records dropped because they could not be stored.",
+                dropped::sum);
+        this.writer = new Thread(this::run, "ingest-writer");
+        writer.start();
+    }
+
+    /**
+     * Put a record on the queue to be stored, unless the queue is full or closed.
+     * @param rec
+     * @return whether the record was accepted
+     */
+    public boolean offer(Record rec) {
+        if (!closed && queue.offer(rec)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Stop accepting records, and wait for the writer to store those already accepted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            log.error("{} records were not stored before shutdown", queue.size());
+        }
+    }
+
+    /**
+     * The writer thread. Waits for a record, gathers a batch, and stores it. Once closed, stores what
+     * is left on the queue without waiting, then stops.
+     */
+    private void run() {
+        List<Record> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Record first = closed ? queue.poll() : queue.take();
+                if (first == null) {
+                    break;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    Record next = closed || wait <= 0 ? null : queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Interrupted by close; store what has been gathered, then drain the queue
+            }
+            if (!batch.isEmpty()) {
+                store(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Store a batch, then publish the records that were new. If the batch can't be stored, its records
+     * are stored one at a time instead, so that a record that can never be stored is the only one
+     * dropped.
+     * @param batch
+     */
+    private void store(List<Record> batch) {
+        Metrics.histogram("ingest_batch_records", "Records stored in one transaction by the ingest queue.",
+                Metrics.UNITS).record(batch.size());
+        if (batch.size() == 1) {
+            put(batch, ATTEMPTS);
+            return;
+        }
+        if (put(batch, 1)) {
+            return;
+        }
+        log.warn("Storing a batch of {} records one at a time", batch.size());
+        for (Record rec : batch) {
+            put(Collections.singletonList(rec), ATTEMPTS);
+        }
+    }
+
+    /**
+     * Store records in one transaction, retrying if it fails, then publish the records that were new.
+     * A single record is dropped if the last attempt fails; a batch is left for the caller to split.
+     * @param recs
+     * @param attempts
+     * @return whether the records were stored
+     */
+    private boolean put(List<Record> recs, int attempts) {
+        long delay = RETRY_DELAY;
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                long[] ids = model.putRecords(recs);
+                Metrics.histogram("ingest_commit_duration_seconds",
+                        "Time to store a batch from the ingest queue.", Metrics.NANOS).recordSince(start);
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] != 0) {
+                        recs.get(i).setRecordID(ids[i]);
+                        hub.publish(recs.get(i));
+                    }
+                }
+                return true;
+            } catch (RuntimeException e) {
+                if (attempt == attempts) {
+                    if (recs.size() == 1) {
+                        log.error("Dropped a record that could not be stored: {}", recs.get(0), e);
+                        dropped.increment();
+                    } else {
+                        log.warn("Could not store a batch of {} records", recs.size(), e);
+                    }
+                    return false;
+                }
+                log.warn("Could not store {}, retrying in {} ms",
+                        recs.size() == 1 ? "a record" : "a batch of " + recs.size() + " records", delay, e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    // Closing; keep trying to store the records
+                }
+                delay *= 2;
+            }
+        }
+    }
+}
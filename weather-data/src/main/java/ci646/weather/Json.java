@@ -0,0 +1,47 @@
+package ci646.weather;
+/**
+ * The JSON encoding used by the REST API. Kept apart from Application so that other code, such as the
+ * benchmarks, can produce exactly the same output without starting the service. Records, locations and
+ * timestamps, which make up most responses, have hand-written adapters; other types use reflection.
+ */
+
+import ci646.weather.model.Location;
+import ci646.weather.model.Record;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import java.sql.Timestamp;
+import java.util.Optional;
+
+public class Json {
+
+    private static final Gson gson = new GsonBuilder()
+            .setDateFormat("yyyy-MM-dd'T'HH:mm")
+            .registerTypeAdapter(Timestamp.class, new TimestampTypeAdapter())
+            .registerTypeAdapter(Record.class, new RecordTypeAdapter())
+            .registerTypeAdapter(Location.class, new LocationTypeAdapter())
+            .create();
+
+    /**
+     * The Gson instance behind every response. Gson is thread-safe, so it can be shared.
+     * @return
+     */
+    public static Gson gson() {
+        return gson;
+    }
+
+    /**
+     * Helper method to turn Optional objects into JSON strings. An empty Optional is an empty object.
+     * @param o
+     * @param <T>
+     * @return
+     */
+    public static <T> String jsonify(Optional<T> o) {
+        if (o == null || o.isEmpty()) {
+            return gson.toJson(new JsonObject());
+        } else {
+            return gson.toJson(o.get());
+        }
+    }
+}
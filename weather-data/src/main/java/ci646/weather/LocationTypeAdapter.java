@@ -0,0 +1,74 @@
+package ci646.weather;
+/**
+ * Reads and writes a Location as JSON field by field, instead of through Gson's reflection, with the
+ * same output as the reflective adapter. Registered with the Gson instance in Json.
+ */
+
+import ci646.weather.model.Location;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+public class LocationTypeAdapter extends TypeAdapter<Location> {
+
+    @Override
+    public void write(JsonWriter out, Location loc) throws IOException {
+        if (loc == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("locID").value(loc.getLocID());
+        if (loc.getName() != null) {
+            out.name("name").value(loc.getName());
+        }
+        RecordTypeAdapter.value(out.name("lat"), loc.getLat());
+        RecordTypeAdapter.value(out.name("lon"), loc.getLon());
+        RecordTypeAdapter.value(out.name("asl"), loc.getAsl());
+        out.endObject();
+    }
+
+    @Override
+    public Location read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        long locID = 0;
+        String name = null;
+        float lat = 0, lon = 0, asl = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "locID":
+                    locID = in.nextLong();
+                    break;
+                case "name":
+                    name = in.nextString();
+                    break;
+                case "lat":
+                    lat = (float) in.nextDouble();
+                    break;
+                case "lon":
+                    lon = (float) in.nextDouble();
+                    break;
+                case "asl":
+                    asl = (float) in.nextDouble();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        if (name == null) {
+            throw new JsonSyntaxException("a location must have a name");
+        }
+        Location loc = new Location(name, lat, lon, asl);
+        loc.setLocID(locID);
+        return loc;
+    }
+}
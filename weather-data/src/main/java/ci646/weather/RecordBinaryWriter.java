@@ -0,0 +1,122 @@
+package ci646.weather;
+/**
+ * A RecordHandler that writes records to an output stream in a compact binary columnar format, for
+ * clients that would rather not format and parse JSON. Records are buffered into blocks of up to
+ * BLOCK_SIZE rows and each block is written a column at a time, so memory use doesn't depend on the
+ * number of records.
+ *
+ * The format, all big-endian:
+ *   header: the int MAGIC, then the byte VERSION
+ *   blocks: the int n, the number of rows (n > 0), then n of each of these columns in turn:
+ *     recordID, locID and ts (epoch millis), each as the zigzag varint of its difference from the
+ *       value in the row before (which is 0 for the first row of the stream)
+ *     temperature, humidity, windSpeed, windDirection, each as a raw 4-byte float
+ *   end: the int 0
+ * Records in a location or time order compress well: an hourly series costs about 22 bytes a record.
+ */
+
+import ci646.weather.model.RecordHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class RecordBinaryWriter implements RecordHandler {
+
+    public static final String CONTENT_TYPE = "application/x-weather-records";
+    public static final int MAGIC = 0x57524543;    // "WREC"
+    public static final int VERSION = 1;
+    public static final int BLOCK_SIZE = 4096;
+
+    private final DataOutputStream out;
+    private final long[] recordIDs = new long[BLOCK_SIZE];
+    private final long[] locIDs = new long[BLOCK_SIZE];
+    private final long[] tss = new long[BLOCK_SIZE];
+    private final float[] temperatures = new float[BLOCK_SIZE];
+    private final float[] humidities = new float[BLOCK_SIZE];
+    private final float[] windSpeeds = new float[BLOCK_SIZE];
+    private final float[] windDirections = new float[BLOCK_SIZE];
+    private int n = 0;
+    // The last value written of each delta-encoded column
+    private long lastRecordID = 0;
+    private long lastLocID = 0;
+    private long lastTs = 0;
+
+    /**
+     * Write the header. The stream is buffered here, so it needn't be already.
+     * @param out
+     * @throws IOException
+     */
+    public RecordBinaryWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    @Override
+    public void record(long recordID, long locID, long ts, float temperature, float humidity,
+                       float windSpeed, float windDirection) throws IOException {
+        recordIDs[n] = recordID;
+        locIDs[n] = locID;
+        tss[n] = ts;
+        temperatures[n] = temperature;
+        humidities[n] = humidity;
+        windSpeeds[n] = windSpeed;
+        windDirections[n] = windDirection;
+        if (++n == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Write any buffered records and the end marker, and flush. The underlying stream is left open.
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (n > 0) {
+            writeBlock();
+        }
+        out.writeInt(0);
+        out.flush();
+    }
+
+    private void writeBlock() throws IOException {
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            writeVarLong(recordIDs[i] - lastRecordID);
+            lastRecordID = recordIDs[i];
+        }
+        for (int i = 0; i < n; i++) {
+            writeVarLong(locIDs[i] - lastLocID);
+            lastLocID = locIDs[i];
+        }
+        for (int i = 0; i < n; i++) {
+            writeVarLong(tss[i] - lastTs);
+            lastTs = tss[i];
+        }
+        writeFloats(temperatures);
+        writeFloats(humidities);
+        writeFloats(windSpeeds);
+        writeFloats(windDirections);
+        n = 0;
+    }
+
+    private void writeFloats(float[] column) throws IOException {
+        for (int i = 0; i < n; i++) {
+            out.writeFloat(column[i]);
+        }
+    }
+
+    /**
+     * Write a signed value as a zigzag varint: 7 bits a byte, low bits first, small magnitudes shortest.
+     */
+    private void writeVarLong(long v) throws IOException {
+        long zz = (v << 1) ^ (v >> 63);
+        while ((zz & ~0x7FL) != 0) {
+            out.writeByte((int) ((zz & 0x7F) | 0x80));
+            zz >>>= 7;
+        }
+        out.writeByte((int) zz);
+    }
+}
@@ -0,0 +1,132 @@
+package ci646.weather;
+/**
+ * Passes newly stored records to the clients watching their location, for the live record stream.
+ * Each subscriber has a bounded buffer. Publishing only offers a record to the buffers of the
+ * location's subscribers, so a writer never waits for a slow client. A subscriber whose buffer fills
+ * up has fallen too far behind to be sent every record. It is closed instead, and its client
+ * reconnects and reloads the history.
+ *
+ * Records should be published once they are committed, so that clients are never sent a record that
+ * could still be rolled back.
+ */
+
+import ci646.weather.model.Record;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RecordHub {
+
+    private final Map<Long, Set<Subscription>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final int maxSubscribers;
+    private final int bufferSize;
+
+    /**
+     * @param maxSubscribers the most subscriptions open at once, across all locations
+     * @param bufferSize the most records waiting to be sent to one subscriber
+     */
+    public RecordHub(int maxSubscribers, int bufferSize) {
+        this.maxSubscribers = maxSubscribers;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * The records stored at one location since a client subscribed, waiting to be sent to it.
+     */
+    public class Subscription implements AutoCloseable {
+        private final long locID;
+        private final BlockingQueue<Record> buffer = new ArrayBlockingQueue<>(bufferSize);
+        private volatile boolean overflowed = false;
+
+        private Subscription(long locID) {
+            this.locID = locID;
+        }
+
+        /**
+         * Wait for the next record.
+         * @param timeout
+         * @param unit
+         * @return the record, or null if none was stored in time
+         * @throws InterruptedException
+         */
+        public Record poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return buffer.poll(timeout, unit);
+        }
+
+        /**
+         * Whether records have been dropped because the buffer was full. Once it has, the subscription
+         * receives nothing more, and should be closed once the buffer has been drained.
+         * @return
+         */
+        public boolean isOverflowed() {
+            return overflowed;
+        }
+
+        private void offer(Record rec) {
+            if (!overflowed && !buffer.offer(rec)) {
+                overflowed = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            // The last subscriber to a location removes its set. Sets are only changed while the map
+            // holds the location's entry, so one can't be removed just as another subscriber joins it.
+            subscribers.computeIfPresent(locID, (k, subs) -> {
+                if (subs.remove(this)) {
+                    count.decrementAndGet();
+                }
+                return subs.isEmpty() ? null : subs;
+            });
+        }
+    }
+
+    /**
+     * Start receiving the records stored at a location.
+     * @param locID
+     * @return the subscription, or null if there are already maxSubscribers
+     */
+    public Subscription subscribe(long locID) {
+        if (count.incrementAndGet() > maxSubscribers) {
+            count.decrementAndGet();
+            return null;
+        }
+        Subscription sub = new Subscription(locID);
+        subscribers.compute(locID, (k, subs) -> {
+            if (subs == null) {
+                subs = new CopyOnWriteArraySet<>();
+            }
+            subs.add(sub);
+            return subs;
+        });
+        return sub;
+    }
+
+    /**
+     * Pass a stored record, with its ID, to the subscribers to its location.
+     * @param rec
+     */
+    public void publish(Record rec) {
+        Set<Subscription> subs = subscribers.get(rec.getLocID());
+        if (subs != null) {
+            for (Subscription sub : subs) {
+                sub.offer(rec);
+            }
+        }
+    }
+
+    /**
+     * The number of open subscriptions.
+     * @return
+     */
+    public int size() {
+        return count.get();
+    }
+}
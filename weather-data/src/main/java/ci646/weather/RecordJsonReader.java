@@ -0,0 +1,110 @@
+package ci646.weather;
+/**
+ * Reads records from a request body as it arrives, without building a tree of the whole document.
+ * The body is either a JSON array of records or newline-delimited JSON (one record object per line).
+ * Records use the same field names as the GET responses; recordID and locID are ignored, since the
+ * location comes from the URL and IDs are assigned by the DB. Every measurement must be given as a
+ * finite number: NaN and infinity, which the lenient reader would otherwise accept, can't be stored.
+ */
+
+import ci646.weather.model.Record;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecordJsonReader {
+
+    private final JsonReader json;
+
+    public RecordJsonReader(InputStream in) {
+        this.json = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        // Lenient, so that several top-level objects can follow one another
+        this.json.setLenient(true);
+    }
+
+    /**
+     * Read every record in the body.
+     * @param locID the location the records belong to
+     * @param maxRecords the most records accepted
+     * @return
+     * @throws IOException if the body can't be read
+     * @throws IllegalArgumentException if the body isn't records (including if it ends too soon), or has too many
+     */
+    public List<Record> readAll(long locID, int maxRecords) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try {
+            boolean array = json.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                json.beginArray();
+            }
+            while (json.peek() != JsonToken.END_DOCUMENT && json.peek() != JsonToken.END_ARRAY) {
+                if (records.size() == maxRecords) {
+                    throw new IllegalArgumentException("at most " + maxRecords + " records can be sent at once");
+                }
+                records.add(readRecord(locID));
+            }
+            if (array) {
+                json.endArray();
+            }
+        } catch (IllegalStateException | NumberFormatException | DateTimeParseException | MalformedJsonException
+                | EOFException e) {
+            throw new IllegalArgumentException("bad record " + (records.size() + 1) + ": " + e.getMessage(), e);
+        }
+        return records;
+    }
+
+    private Record readRecord(long locID) throws IOException {
+        Timestamp date = null;
+        Float temperature = null, humidity = null, windSpeed = null, windDirection = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "date":
+                    date = Timestamp.from(LocalDateTime.parse(json.nextString()).toInstant(ZoneOffset.UTC));
+                    break;
+                case "temperature":
+                    temperature = measurement("temperature");
+                    break;
+                case "humidity":
+                    humidity = measurement("humidity");
+                    break;
+                case "windSpeed":
+                    windSpeed = measurement("windSpeed");
+                    break;
+                case "windDirection":
+                    windDirection = measurement("windDirection");
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        if (date == null || temperature == null || humidity == null || windSpeed == null || windDirection == null) {
+            throw new IllegalStateException("date, temperature, humidity, windSpeed and windDirection are required");
+        }
+        return new Record(locID, date, temperature, humidity, windSpeed, windDirection);
+    }
+
+    /**
+     * Read a measurement, which must be a finite number once it is a float.
+     */
+    private float measurement(String name) throws IOException {
+        float f = (float) json.nextDouble();
+        if (!Float.isFinite(f)) {
+            throw new IllegalStateException(name + " must be a finite number");
+        }
+        return f;
+    }
+}
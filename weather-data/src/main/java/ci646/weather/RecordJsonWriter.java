@@ -0,0 +1,58 @@
+package ci646.weather;
+/**
+ * A RecordHandler that writes each record it receives straight to a JSON array on an output stream,
+ * producing the same JSON as serializing a List<Record> with Gson. Used to stream large query results
+ * to the client without holding them in memory.
+ */
+
+import ci646.weather.model.RecordHandler;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+public class RecordJsonWriter implements RecordHandler {
+
+    private final JsonWriter json;
+    private boolean started = false;
+
+    public RecordJsonWriter(OutputStream out) {
+        // JsonWriter writes a few characters at a time, which the encoder is slow to take one by one
+        this.json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 13));
+    }
+
+    @Override
+    public void record(long recordID, long locID, long ts, float temperature, float humidity,
+                       float windSpeed, float windDirection) throws IOException {
+        if (!started) {
+            json.beginArray();
+            started = true;
+        }
+        json.beginObject()
+                .name("recordID").value(recordID)
+                .name("locID").value(locID)
+                .name("date").value(TimestampTypeAdapter.format(ts))
+                .name("temperature").jsonValue(Float.toString(temperature))
+                .name("humidity").jsonValue(Float.toString(humidity))
+                .name("windSpeed").jsonValue(Float.toString(windSpeed))
+                .name("windDirection").jsonValue(Float.toString(windDirection))
+                .endObject();
+    }
+
+    /**
+     * Close the array and flush. As with jsonify, an empty result is written as an empty object.
+     * The underlying stream is left open.
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (started) {
+            json.endArray();
+        } else {
+            json.beginObject().endObject();
+        }
+        json.flush();
+    }
+}
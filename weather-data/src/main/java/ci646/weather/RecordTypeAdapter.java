@@ -0,0 +1,99 @@
+package ci646.weather;
+/**
+ * Reads and writes a Record as JSON field by field, instead of through Gson's reflection. The output is
+ * the same as the reflective adapter's: the fields in the order they are declared, a null date left
+ * out, and floats as Float.toString writes them. Registered with the Gson instance in Json.
+ */
+
+import ci646.weather.model.Record;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+
+public class RecordTypeAdapter extends TypeAdapter<Record> {
+
+    private static final TimestampTypeAdapter TIMESTAMPS = new TimestampTypeAdapter();
+
+    @Override
+    public void write(JsonWriter out, Record r) throws IOException {
+        if (r == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("recordID").value(r.getRecordID());
+        out.name("locID").value(r.getLocID());
+        if (r.getDate() != null) {
+            out.name("date").value(TimestampTypeAdapter.format(r.getDate().getTime()));
+        }
+        value(out.name("temperature"), r.getTemperature());
+        value(out.name("humidity"), r.getHumidity());
+        value(out.name("windSpeed"), r.getWindSpeed());
+        value(out.name("windDirection"), r.getWindDirection());
+        out.endObject();
+    }
+
+    @Override
+    public Record read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        long recordID = 0, locID = 0;
+        Timestamp date = null;
+        float temperature = 0, humidity = 0, windSpeed = 0, windDirection = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "recordID":
+                    recordID = in.nextLong();
+                    break;
+                case "locID":
+                    locID = in.nextLong();
+                    break;
+                case "date":
+                    date = TIMESTAMPS.read(in);
+                    break;
+                case "temperature":
+                    temperature = (float) in.nextDouble();
+                    break;
+                case "humidity":
+                    humidity = (float) in.nextDouble();
+                    break;
+                case "windSpeed":
+                    windSpeed = (float) in.nextDouble();
+                    break;
+                case "windDirection":
+                    windDirection = (float) in.nextDouble();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        if (date == null) {
+            throw new JsonSyntaxException("a record must have a date");
+        }
+        Record r = new Record(locID, date, temperature, humidity, windSpeed, windDirection);
+        r.setRecordID(recordID);
+        return r;
+    }
+
+    /**
+     * Write a float as Gson does, which refuses NaN and the infinities unless told otherwise.
+     * @param out
+     * @param f
+     * @throws IOException
+     */
+    static void value(JsonWriter out, float f) throws IOException {
+        if (Float.isNaN(f) || Float.isInfinite(f)) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + f);
+        }
+        out.jsonValue(Float.toString(f));
+    }
+}
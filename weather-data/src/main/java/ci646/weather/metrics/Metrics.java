@@ -0,0 +1,133 @@
+package ci646.weather.metrics;
+/**
+ * The service's metrics: named families of histograms, one histogram per set of label values, written
+ * out in the Prometheus text format. Each family is shown as a summary with its p50, p99 and p999, sum
+ * and count. There are also gauges and counters, whose values are read when the metrics are written.
+ *
+ * There is one set of metrics per JVM, so that any class can record to it without it being passed
+ * around.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+
+    // Histograms of nanoseconds are shown in seconds, as Prometheus expects
+    public static final double NANOS = 1e-9;
+    // Histograms of counts and sizes are shown as they are
+    public static final double UNITS = 1;
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private static final Map<String, Value> values = new ConcurrentSkipListMap<>();
+
+    /**
+     * Get the histogram in a family for some label values, creating either if need be.
+     * @param name the family name, e.g. http_request_duration_seconds
+     * @param help a description of the family
+     * @param scale what to multiply the values by when showing them, e.g. NANOS
+     * @param labels label names and values, alternately, e.g. "route", "GET /locations"
+     * @return
+     */
+    public static Histogram histogram(String name, String help, double scale, String... labels) {
+        Family f = families.computeIfAbsent(name, n -> new Family(help, scale));
+        return f.histograms.computeIfAbsent(labels(labels), l -> new Histogram());
+    }
+
+    /**
+     * Register a gauge, a value that can go up and down, e.g. the length of a queue. Registering the same
+     * name again replaces it.
+     * @param name e.g. ingest_queue_depth
+     * @param help a description of the gauge
+     * @param value reads the current value
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        values.put(name, new Value(help, "gauge", value));
+    }
+
+    /**
+     * Register a counter, a value that only goes up, e.g. the number of requests refused. Registering the
+     * same name again replaces it.
+     * @param name e.g. ingest_rejected_total
+     * @param help a description of the counter
+     * @param value reads the current value
+     */
+    public static void counter(String name, String help, LongSupplier value) {
+        values.put(name, new Value(help, "counter", value));
+    }
+
+    /**
+     * All metrics in the Prometheus text format.
+     * @return
+     */
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Family> e : families.entrySet()) {
+            String name = e.getKey();
+            Family f = e.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for (Map.Entry<String, Histogram> h : f.histograms.entrySet()) {
+                String labels = h.getKey();
+                Histogram hist = h.getValue();
+                for (double q : QUANTILES) {
+                    sb.append(name).append('{').append(labels).append(labels.isEmpty() ? "" : ",")
+                            .append("quantile=\"").append(q).append("\"} ")
+                            .append(hist.quantile(q) * f.scale).append('\n');
+                }
+                String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+                sb.append(name).append("_sum").append(braced).append(' ').append(hist.getSum() * f.scale).append('\n');
+                sb.append(name).append("_count").append(braced).append(' ').append(hist.getCount()).append('\n');
+            }
+        }
+        for (Map.Entry<String, Value> e : values.entrySet()) {
+            String name = e.getKey();
+            Value v = e.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(v.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(v.type).append('\n');
+            sb.append(name).append(' ').append(v.value.getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The labels as they appear between the braces, e.g. route="GET /locations".
+     */
+    private static String labels(String[] labels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return sb.toString();
+    }
+
+    private static class Value {
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Value(String help, String type, LongSupplier value) {
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static class Family {
+        final String help;
+        final double scale;
+        final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+        Family(String help, double scale) {
+            this.help = help;
+            this.scale = scale;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ci646.weather.metrics;
+/**
+ * Wraps a Spark route to count its requests and record how long they take and how big the responses
+ * are. Sizes are of the body before any compression, so they compare across routes however each is
+ * gzipped. A route that writes its response itself, rather than returning it, should set the
+ * STREAMED_BYTES request attribute to the number of bytes it wrote before compressing them.
+ */
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+public class TimedRoute implements Route {
+
+    public static final String STREAMED_BYTES = "streamedBytes";
+
+    private final Route route;
+    private final Histogram latency;
+    private final Histogram bytes;
+
+    /**
+     * @param name the route's name in the metrics, e.g. "GET /locations/:name"
+     * @param route
+     */
+    public TimedRoute(String name, Route route) {
+        this.route = route;
+        this.latency = Metrics.histogram("http_request_duration_seconds",
+                "Time to handle a request, by route.", Metrics.NANOS, "route", name);
+        this.bytes = Metrics.histogram("http_response_size_bytes",
+                "Size of a response body before compression, by route.", Metrics.UNITS, "route", name);
+    }
+
+    /**
+     * Shorthand for the constructor, for use inline in route definitions.
+     * @param name
+     * @param route
+     * @return
+     */
+    public static Route timed(String name, Route route) {
+        return new TimedRoute(name, route);
+    }
+
+    @Override
+    public Object handle(Request req, Response res) throws Exception {
+        long start = System.nanoTime();
+        try {
+            Object body = route.handle(req, res);
+            bytes.record(size(req, body));
+            return body;
+        } finally {
+            latency.recordSince(start);
+        }
+    }
+
+    private static long size(Request req, Object body) {
+        Object streamed = req.attribute(STREAMED_BYTES);
+        if (streamed instanceof Long) {
+            return (Long) streamed;
+        }
+        if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        }
+        return body == null ? 0 : utf8Length(body.toString());
+    }
+
+    /**
+     * The length of a string in UTF-8, without encoding it.
+     */
+    private static long utf8Length(String s) {
+        long n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,41 @@
+package ci646.weather.model;
+/**
+ * A POJO for summary statistics over the records at a location, either for a whole time range or for
+ * one bucket (hour, day or month) of it. Calculated by the DB rather than by fetching the records.
+ * Each measurement has its mean, (population) standard deviation, min and max. The mean and standard
+ * deviation of the wind direction are circular ones, in degrees; see Totals.
+ */
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.sql.Timestamp;
+
+@Data
+@NoArgsConstructor
+public class Aggregate {
+    private long locID;             // The location ID
+    private Timestamp bucket;       // The start of the bucket, or null if the whole range was aggregated
+    private Timestamp from;         // The time of the first record aggregated
+    private Timestamp to;           // The time of the last record aggregated
+    private long count;             // The number of records aggregated
+    private float avgTemperature;
+    private float stdTemperature;
+    private float minTemperature;
+    private float maxTemperature;
+    private float avgHumidity;
+    private float stdHumidity;
+    private float minHumidity;
+    private float maxHumidity;
+    private float avgWindSpeed;
+    private float stdWindSpeed;
+    private float minWindSpeed;
+    private float maxWindSpeed;
+    private float avgWindDirection;
+    private float stdWindDirection;
+    private float minWindDirection;
+    private float maxWindDirection;
+
+    // The sizes of bucket that records can be grouped into
+    public enum Bucket {HOUR, DAY, MONTH}
+}
@@ -0,0 +1,538 @@
+package ci646.weather.model;
+/**
+ * A Model that keeps every record in memory as well as in the DB. The records for each location are
+ * held in primitive columns sorted by time: epoch milliseconds, record IDs and one float column per measurement.
+ * Queries for a location are answered from the columns using binary search, and streamed or aggregated
+ * without creating an object per row. Everything else, and all writes, go to the underlying Model, which
+ * remains the durable store; records are added to the columns once the underlying Model has stored them.
+ *
+ * Readers never block. Each location's columns are published as an immutable snapshot of the arrays and
+ * the number of rows in use; a writer appends in place beyond that number, or copies the arrays to insert
+ * out of order, and then publishes a new snapshot.
+ */
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Slf4j
+public class ColumnarModel implements Model {
+
+    /**
+     * The columns for one location, and how many rows of them are in use. Never changed once published,
+     * apart from writes to rows beyond size.
+     */
+    private static class Columns {
+        final long[] times;
+        final long[] ids;
+        final float[] temperature;
+        final float[] humidity;
+        final float[] windSpeed;
+        final float[] windDirection;
+        final int size;
+
+        Columns(int capacity) {
+            this(new long[capacity], new long[capacity], new float[capacity], new float[capacity],
+                    new float[capacity], new float[capacity], 0);
+        }
+
+        Columns(long[] times, long[] ids, float[] temperature, float[] humidity, float[] windSpeed,
+                float[] windDirection, int size) {
+            this.times = times;
+            this.ids = ids;
+            this.temperature = temperature;
+            this.humidity = humidity;
+            this.windSpeed = windSpeed;
+            this.windDirection = windDirection;
+            this.size = size;
+        }
+
+        /**
+         * The index of the first row at or after a time, or size if there is none.
+         */
+        int lowerBound(long ts) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] < ts) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * The index of the first row after a time, or size if there is none.
+         */
+        int upperBound(long ts) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] <= ts) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        Record record(long locID, int i) {
+            Record r = new Record(locID, new Timestamp(times[i]), temperature[i], humidity[i],
+                    windSpeed[i], windDirection[i]);
+            r.setRecordID(ids[i]);
+            return r;
+        }
+    }
+
+    /**
+     * The columns for one location. Writers are serialized by locking the series; readers just take
+     * the current columns.
+     */
+    private static class Series {
+        volatile Columns columns = new Columns(16);
+        // The records version: the underlying Model's at startup, plus one for each record added since
+        volatile long version;
+
+        synchronized void add(long id, long ts, float temperature, float humidity, float windSpeed,
+                              float windDirection) {
+            version++;
+            Columns c = columns;
+            int at = c.upperBound(ts);
+            if (at == c.size && c.size < c.times.length) {
+                // The usual case: a new latest record, with room for it
+                set(c, at, id, ts, temperature, humidity, windSpeed, windDirection);
+                columns = new Columns(c.times, c.ids, c.temperature, c.humidity, c.windSpeed,
+                        c.windDirection, c.size + 1);
+                return;
+            }
+            // Copy into new arrays, leaving a gap for the new row. Readers keep using the old ones.
+            int capacity = c.size < c.times.length ? c.times.length : c.times.length * 2;
+            Columns n = new Columns(capacity);
+            copy(c, 0, n, 0, at);
+            copy(c, at, n, at + 1, c.size - at);
+            set(n, at, id, ts, temperature, humidity, windSpeed, windDirection);
+            columns = new Columns(n.times, n.ids, n.temperature, n.humidity, n.windSpeed,
+                    n.windDirection, c.size + 1);
+        }
+
+        private static void set(Columns c, int i, long id, long ts, float temperature, float humidity,
+                                float windSpeed, float windDirection) {
+            c.times[i] = ts;
+            c.ids[i] = id;
+            c.temperature[i] = temperature;
+            c.humidity[i] = humidity;
+            c.windSpeed[i] = windSpeed;
+            c.windDirection[i] = windDirection;
+        }
+
+        private static void copy(Columns from, int fromIndex, Columns to, int toIndex, int n) {
+            System.arraycopy(from.times, fromIndex, to.times, toIndex, n);
+            System.arraycopy(from.ids, fromIndex, to.ids, toIndex, n);
+            System.arraycopy(from.temperature, fromIndex, to.temperature, toIndex, n);
+            System.arraycopy(from.humidity, fromIndex, to.humidity, toIndex, n);
+            System.arraycopy(from.windSpeed, fromIndex, to.windSpeed, toIndex, n);
+            System.arraycopy(from.windDirection, fromIndex, to.windDirection, toIndex, n);
+        }
+
+        /**
+         * Add a row at the end, whatever its time. Used while loading, before sort().
+         */
+        synchronized void append(long id, long ts, float temperature, float humidity, float windSpeed,
+                                 float windDirection) {
+            Columns c = columns;
+            Columns to = c;
+            if (c.size == c.times.length) {
+                to = new Columns(c.times.length * 2);
+                copy(c, 0, to, 0, c.size);
+            }
+            set(to, c.size, id, ts, temperature, humidity, windSpeed, windDirection);
+            columns = new Columns(to.times, to.ids, to.temperature, to.humidity, to.windSpeed,
+                    to.windDirection, c.size + 1);
+        }
+
+        /**
+         * Put the rows loaded at startup into time order.
+         */
+        synchronized void sort() {
+            Columns c = columns;
+            boolean sorted = true;
+            for (int i = 1; i < c.size && sorted; i++) {
+                sorted = c.times[i - 1] <= c.times[i];
+            }
+            if (sorted) {
+                return;
+            }
+            Integer[] order = new Integer[c.size];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> c.times[i]));
+            Columns n = new Columns(c.times.length);
+            for (int i = 0; i < order.length; i++) {
+                int j = order[i];
+                set(n, i, c.ids[j], c.times[j], c.temperature[j], c.humidity[j], c.windSpeed[j],
+                        c.windDirection[j]);
+            }
+            columns = new Columns(n.times, n.ids, n.temperature, n.humidity, n.windSpeed,
+                    n.windDirection, c.size);
+        }
+    }
+
+    private final Model store;
+    private final Map<Long, Series> series = new ConcurrentHashMap<>();
+
+    /**
+     * Load every record from the underlying model into memory.
+     * @param store the durable store, which is used for everything not answered from memory
+     * @throws IOException
+     */
+    public ColumnarModel(Model store) throws IOException {
+        this.store = store;
+        long start = System.nanoTime();
+        long n = store.streamRecords((id, loc, ts, temp, hum, ws, wd) ->
+                series(loc).append(id, ts, temp, hum, ws, wd));
+        for (Map.Entry<Long, Series> e : series.entrySet()) {
+            e.getValue().sort();
+            e.getValue().version = store.getRecordsVersion(e.getKey());
+        }
+        log.info(String.format("Loaded %d records for %d locations into memory in %.2fs",
+                n, series.size(), (System.nanoTime() - start) / 1e9));
+    }
+
+    private Series series(long locationID) {
+        return series.computeIfAbsent(locationID, k -> new Series());
+    }
+
+    /**
+     * The current columns for a location, or null if it has no records.
+     */
+    private Columns columns(long locationID) {
+        Series s = series.get(locationID);
+        return s == null ? null : s.columns;
+    }
+
+    @Override
+    public long putLocation(Location loc) {
+        return store.putLocation(loc);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocations() {
+        return store.getLocations();
+    }
+
+    @Override
+    public Optional<Location> getLocation(long locationID) {
+        return store.getLocation(locationID);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocationsByName(String name) {
+        return store.getLocationsByName(name);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocationsNear(double lat, double lon, int k) {
+        return store.getLocationsNear(lat, lon, k);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocationsWithin(double lat, double lon, double km) {
+        return store.getLocationsWithin(lat, lon, km);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocationsInBox(double minLat, double minLon, double maxLat, double maxLon) {
+        return store.getLocationsInBox(minLat, minLon, maxLat, maxLon);
+    }
+
+    /**
+     * Store a new record, then add it to memory.
+     * @param rec
+     * @return
+     */
+    @Override
+    public long putRecord(Record rec) {
+        long id = store.putRecord(rec);
+        add(id, rec);
+        return id;
+    }
+
+    /**
+     * Store a batch of records, then add the ones that were new to memory.
+     * @param recs
+     * @return
+     */
+    @Override
+    public long[] putRecords(List<Record> recs) {
+        long[] ids = store.putRecords(recs);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != 0) {
+                add(ids[i], recs.get(i));
+            }
+        }
+        return ids;
+    }
+
+    private void add(long id, Record rec) {
+        series(rec.getLocID()).add(id, rec.getDate().getTime(), rec.getTemperature(),
+                rec.getHumidity(), rec.getWindSpeed(), rec.getWindDirection());
+    }
+
+    @Override
+    public Optional<Record> getRecord(long id) {
+        return store.getRecord(id);
+    }
+
+    /**
+     * Find the record at a location and time by binary search.
+     * @param locationID
+     * @param ts
+     * @return
+     */
+    @Override
+    public Optional<Record> getRecord(long locationID, Timestamp ts) {
+        Columns c = columns(locationID);
+        if (c == null) {
+            return Optional.empty();
+        }
+        int i = c.lowerBound(ts.getTime());
+        if (i < c.size && c.times[i] == ts.getTime()) {
+            return Optional.of(c.record(locationID, i));
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<List<Record>> getRecords() {
+        return store.getRecords();
+    }
+
+    @Override
+    public Optional<List<Record>> getRecords(long locationID) {
+        Columns c = columns(locationID);
+        return c == null ? Optional.empty() : records(locationID, c, 0, c.size);
+    }
+
+    @Override
+    public Optional<List<Record>> getRecords(long locationID, Timestamp from, Timestamp to) {
+        Columns c = columns(locationID);
+        if (c == null) {
+            return Optional.empty();
+        }
+        return records(locationID, c, first(c, from), last(c, to));
+    }
+
+    @Override
+    public RecordPage getRecords(RecordCursor after, int limit) {
+        return store.getRecords(after, limit);
+    }
+
+    @Override
+    public RecordPage getRecords(long locationID, RecordCursor after, int limit) {
+        Columns c = columns(locationID);
+        if (c == null) {
+            return new RecordPage(new ArrayList<>(), null);
+        }
+        return page(locationID, c, 0, c.size, after, limit);
+    }
+
+    @Override
+    public RecordPage getRecords(long locationID, Timestamp from, Timestamp to, RecordCursor after, int limit) {
+        Columns c = columns(locationID);
+        if (c == null) {
+            return new RecordPage(new ArrayList<>(), null);
+        }
+        return page(locationID, c, first(c, from), last(c, to), after, limit);
+    }
+
+    /**
+     * Aggregate all of a location's records in memory.
+     * @param locationID
+     * @return
+     */
+    @Override
+    public Optional<Aggregate> getAggregate(long locationID) {
+        Columns c = columns(locationID);
+        if (c == null || c.size == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(aggregate(locationID, c, 0, c.size, null));
+    }
+
+    /**
+     * Aggregate a location's records in a time range in memory.
+     * @param locationID
+     * @param from
+     * @param to
+     * @return
+     */
+    @Override
+    public Optional<Aggregate> getAggregate(long locationID, Timestamp from, Timestamp to) {
+        Columns c = columns(locationID);
+        if (c == null) {
+            return Optional.empty();
+        }
+        int lo = first(c, from);
+        int hi = last(c, to);
+        if (lo >= hi) {
+            return Optional.empty();
+        }
+        return Optional.of(aggregate(locationID, c, lo, hi, null));
+    }
+
+    /**
+     * Aggregate a location's records in a time range by bucket in memory. Rows are in time order, so
+     * each bucket is a run of rows and the bucket boundaries only need working out when a run ends.
+     * @param locationID
+     * @param from
+     * @param to
+     * @param bucket
+     * @return
+     */
+    @Override
+    public Optional<List<Aggregate>> getAggregates(long locationID, Timestamp from, Timestamp to,
+                                                   Aggregate.Bucket bucket) {
+        Columns c = columns(locationID);
+        if (c == null) {
+            return Optional.empty();
+        }
+        int lo = first(c, from);
+        int hi = last(c, to);
+        List<Aggregate> result = new ArrayList<>();
+        while (lo < hi) {
+            long ms = c.times[lo];
+            long start = Rollups.floor(bucket, ms);
+            long end = Rollups.ceil(bucket, ms + 1);
+            int runEnd = c.lowerBound(end);
+            runEnd = Math.min(runEnd, hi);
+            result.add(aggregate(locationID, c, lo, runEnd, new Timestamp(start)));
+            lo = runEnd;
+        }
+        return result.isEmpty() ? Optional.empty() : Optional.of(result);
+    }
+
+    @Override
+    public long getLocationsVersion() {
+        return store.getLocationsVersion();
+    }
+
+    @Override
+    public long getRecordsVersion() {
+        return store.getRecordsVersion();
+    }
+
+    /**
+     * A count of the writes to a location, starting from the underlying Model's version for it, so it
+     * only ever goes up, even across restarts.
+     * @param locationID
+     * @return
+     */
+    @Override
+    public long getRecordsVersion(long locationID) {
+        Series s = series.get(locationID);
+        return s == null ? 0 : s.version;
+    }
+
+    @Override
+    public long streamRecords(RecordHandler handler) throws IOException {
+        return store.streamRecords(handler);
+    }
+
+    @Override
+    public long streamRecords(long locationID, RecordHandler handler) throws IOException {
+        Columns c = columns(locationID);
+        return c == null ? 0 : stream(locationID, c, 0, c.size, handler);
+    }
+
+    @Override
+    public long streamRecords(long locationID, Timestamp from, Timestamp to, RecordHandler handler)
+            throws IOException {
+        Columns c = columns(locationID);
+        return c == null ? 0 : stream(locationID, c, first(c, from), last(c, to), handler);
+    }
+
+    /**
+     * The index of the first row at or after a time.
+     */
+    private static int first(Columns c, Timestamp from) {
+        return c.lowerBound(from.getTime());
+    }
+
+    /**
+     * The index after the last row at or before a time.
+     */
+    private static int last(Columns c, Timestamp to) {
+        return c.upperBound(to.getTime());
+    }
+
+    private static Optional<List<Record>> records(long locationID, Columns c, int lo, int hi) {
+        if (lo >= hi) {
+            return Optional.empty();
+        }
+        List<Record> result = new ArrayList<>(hi - lo);
+        for (int i = lo; i < hi; i++) {
+            result.add(c.record(locationID, i));
+        }
+        return Optional.of(result);
+    }
+
+    /**
+     * A page of the rows from lo to hi. A location has at most one record at a time, so the rows after
+     * the cursor are those after its time, plus any at its time with a later ID.
+     */
+    private static RecordPage page(long locationID, Columns c, int lo, int hi, RecordCursor after, int limit) {
+        int i = lo;
+        if (after.getTs() != Long.MIN_VALUE) {
+            i = Math.max(lo, c.lowerBound(after.getTs()));
+        }
+        while (i < hi && (c.times[i] < after.getTs()
+                || (c.times[i] == after.getTs() && c.ids[i] <= after.getRecordID()))) {
+            i++;
+        }
+        int end = Math.min(hi, i + limit);
+        List<Record> records = new ArrayList<>(end - i);
+        for (int j = i; j < end; j++) {
+            records.add(c.record(locationID, j));
+        }
+        String next = null;
+        if (end < hi) {
+            next = new RecordCursor(c.times[end - 1], c.ids[end - 1]).encode();
+        }
+        return new RecordPage(records, next);
+    }
+
+    private static long stream(long locationID, Columns c, int lo, int hi, RecordHandler handler)
+            throws IOException {
+        for (int i = lo; i < hi; i++) {
+            handler.record(c.ids[i], locationID, c.times[i], c.temperature[i], c.humidity[i],
+                    c.windSpeed[i], c.windDirection[i]);
+        }
+        return Math.max(0, hi - lo);
+    }
+
+    /**
+     * Aggregate the rows from lo to hi, which must not be empty.
+     */
+    private static Aggregate aggregate(long locationID, Columns c, int lo, int hi, Timestamp bucket) {
+        RecordAggregator agg = new RecordAggregator();
+        for (int i = lo; i < hi; i++) {
+            agg.record(c.ids[i], locationID, c.times[i], c.temperature[i], c.humidity[i],
+                    c.windSpeed[i], c.windDirection[i]);
+        }
+        return agg.result(locationID, bucket).orElseThrow();
+    }
+}
@@ -0,0 +1,14 @@
+package ci646.weather.model;
+/**
+ * Thrown when a record is stored for a location and time that already have one. At most one record is
+ * kept per location and time.
+ */
+
+import java.sql.Timestamp;
+
+public class DuplicateRecordException extends RuntimeException {
+
+    public DuplicateRecordException(long locationID, Timestamp ts, Throwable cause) {
+        super("location " + locationID + " already has a record at " + ts.toInstant(), cause);
+    }
+}
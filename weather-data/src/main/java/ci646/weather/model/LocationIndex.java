@@ -0,0 +1,254 @@
+package ci646.weather.model;
+/**
+ * An in-memory trigram index of location names, for fuzzy search without scanning the locations table.
+ * Names and search terms are lower-cased, with runs of anything but letters and digits turned into a
+ * single space, then split into the overlapping three-character strings of "  " + name + " ". Each
+ * trigram maps to the locations whose names contain it.
+ *
+ * A search counts the trigrams each location shares with the term, using only the postings of the
+ * term's own trigrams, and returns the names that contain the term (as LIKE '%term%' did) followed by
+ * any others that have enough of the term's trigrams, so that a misspelt word still finds a longer
+ * name. Those are ordered by the fraction of the term's trigrams they have, then by the fraction of all
+ * the trigrams of either that are shared (the similarity of PostgreSQL's pg_trgm), which puts shorter
+ * names first. At most MAX_SIMILAR of those are returned.
+ *
+ * Locations can be added at any time; searches and additions are serialized with a read-write lock.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class LocationIndex {
+
+    // Names with at least this fraction of the search term's trigrams match even if they don't contain it
+    private static final double MIN_COVERAGE = 0.5;
+    // The most names returned that match only that way
+    private static final int MAX_SIMILAR = 10;
+
+    private final List<Location> locations = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();          // normalized, by position in locations
+    private final List<Integer> trigramCounts = new ArrayList<>(); // distinct trigrams, by position
+    private final Set<Long> ids = new HashSet<>();
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The positions in locations of the names that contain a trigram, in increasing order.
+     */
+    private static class Postings {
+        int[] positions = new int[4];
+        int size = 0;
+
+        void add(int position) {
+            if (size == positions.length) {
+                int[] bigger = new int[size * 2];
+                System.arraycopy(positions, 0, bigger, 0, size);
+                positions = bigger;
+            }
+            positions[size++] = position;
+        }
+    }
+
+    /**
+     * A location that matched a search, and how well.
+     */
+    private static class Match {
+        final int position;
+        final int rank;             // 0 for the same name, 1 for a name starting with the term, 2 for one
+                                    // containing it, 3 for one that is only similar
+        final double coverage;      // the fraction of the term's trigrams in the name
+        final double similarity;    // the fraction of the trigrams in either that are in both
+
+        Match(int position, int rank, double coverage, double similarity) {
+            this.position = position;
+            this.rank = rank;
+            this.coverage = coverage;
+            this.similarity = similarity;
+        }
+    }
+
+    // Best match first
+    private static final Comparator<Match> BY_RANK = Comparator.<Match>comparingInt(m -> m.rank)
+            .thenComparingDouble(m -> -m.coverage)
+            .thenComparingDouble(m -> -m.similarity);
+
+    /**
+     * Add a location, which must already have its ID. Adding the same location again does nothing.
+     * @param loc
+     */
+    public void add(Location loc) {
+        String name = normalize(loc.getName());
+        Set<Long> trigrams = trigrams(name);
+        lock.writeLock().lock();
+        try {
+            if (!ids.add(loc.getLocID())) {
+                return;
+            }
+            int position = locations.size();
+            locations.add(loc);
+            names.add(name);
+            trigramCounts.add(trigrams.size());
+            for (long t : trigrams) {
+                postings.computeIfAbsent(t, k -> new Postings()).add(position);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return locations.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the locations whose names contain the search term, or are similar to it, best match first.
+     * Terms shorter than a trigram once normalized can't be looked up, so for those every name is
+     * checked for the term, which is still quick.
+     * @param term
+     * @return
+     */
+    public List<Location> search(String term) {
+        String q = normalize(term);
+        List<Match> matches = new ArrayList<>();
+        // The best of the names that are only similar, worst first, so that it can be kept to MAX_SIMILAR
+        PriorityQueue<Match> similar = new PriorityQueue<>(BY_RANK.reversed());
+        lock.readLock().lock();
+        try {
+            if (q.length() < 3) {
+                for (int i = 0; i < names.size(); i++) {
+                    int rank = rank(names.get(i), q);
+                    if (rank < 3) {
+                        matches.add(new Match(i, rank, 0, 0));
+                    }
+                }
+            } else {
+                Set<Long> trigrams = trigrams(q);
+                // A name can only contain the term if it has all the term's trigrams apart from the padded
+                // ones, and can only be similar if it has a fraction of them, so others can be skipped
+                int inner = trigrams(q, "").size();
+                int least = (int) Math.min(inner, Math.ceil(MIN_COVERAGE * trigrams.size()));
+                int[] shared = new int[locations.size()];
+                int[] candidates = new int[64];
+                int found = 0;
+                for (long t : trigrams) {
+                    Postings p = postings.get(t);
+                    if (p != null) {
+                        for (int i = 0; i < p.size; i++) {
+                            int position = p.positions[i];
+                            if (shared[position]++ == 0) {
+                                if (found == candidates.length) {
+                                    int[] bigger = new int[found * 2];
+                                    System.arraycopy(candidates, 0, bigger, 0, found);
+                                    candidates = bigger;
+                                }
+                                candidates[found++] = position;
+                            }
+                        }
+                    }
+                }
+                for (int c = 0; c < found; c++) {
+                    int i = candidates[c];
+                    int n = shared[i];
+                    if (n < least) {
+                        continue;
+                    }
+                    double coverage = (double) n / trigrams.size();
+                    double similarity = (double) n / (trigrams.size() + trigramCounts.get(i) - n);
+                    int rank = n >= inner ? rank(names.get(i), q) : 3;
+                    if (rank < 3) {
+                        matches.add(new Match(i, rank, coverage, similarity));
+                    } else if (coverage >= MIN_COVERAGE) {
+                        similar.add(new Match(i, rank, coverage, similarity));
+                        if (similar.size() > MAX_SIMILAR) {
+                            similar.poll();
+                        }
+                    }
+                }
+            }
+            matches.addAll(similar);
+            matches.sort(BY_RANK.thenComparing(m -> names.get(m.position)));
+            List<Location> result = new ArrayList<>(matches.size());
+            for (Match m : matches) {
+                result.add(locations.get(m.position));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * How a normalized name matches a normalized search term: 0 if they are the same, 1 if the name
+     * starts with the term, 2 if it contains it, otherwise 3.
+     */
+    private static int rank(String name, String term) {
+        if (name.equals(term)) {
+            return 0;
+        }
+        if (name.startsWith(term)) {
+            return 1;
+        }
+        return name.contains(term) ? 2 : 3;
+    }
+
+    /**
+     * Lower-case a name and turn each run of characters that aren't letters or digits into one space,
+     * without spaces at either end.
+     * @param name
+     * @return
+     */
+    static String normalize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        boolean space = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The distinct trigrams of a normalized name, each packed into a long.
+     * @param name
+     * @return
+     */
+    private static Set<Long> trigrams(String name) {
+        return trigrams(name, " ");
+    }
+
+    /**
+     * The distinct trigrams of a normalized name with a given padding, two of it before and one after.
+     * @param name
+     * @param pad
+     * @return
+     */
+    private static Set<Long> trigrams(String name, String pad) {
+        String padded = pad + pad + name + pad;
+        Set<Long> result = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            result.add(((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2));
+        }
+        return result;
+    }
+}
@@ -6,6 +6,7 @@ package ci646.weather.model;
  * replacement that implements the same interface.
  */
 
+import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.List;
 import java.util.Optional;
@@ -19,8 +20,18 @@ public interface Model {
     Optional<Location> getLocation(long locationID);
     /* Get a list of all locations whose name fuzzily matches the search term. */
     Optional<List<Location>> getLocationsByName(String name);
-    /* Store a new record. Returns to ID of the new record. */
+    /* Get the k locations nearest to a point, nearest first. */
+    Optional<List<Location>> getLocationsNear(double lat, double lon, int k);
+    /* Get all locations within a distance in km of a point, nearest first. */
+    Optional<List<Location>> getLocationsWithin(double lat, double lon, double km);
+    /* Get all locations in a box of latitude and longitude, which crosses the 180th meridian if minLon > maxLon. */
+    Optional<List<Location>> getLocationsInBox(double minLat, double minLon, double maxLat, double maxLon);
+    /* Store a new record. Returns to ID of the new record. Throws DuplicateRecordException if the location
+       already has a record at that time. */
     long putRecord(Record rec);
+    /* Store a batch of records in a single transaction, skipping any whose location and time are already
+       stored. Returns the IDs of the new records, in order, with 0 for skipped records. */
+    long[] putRecords(List<Record> recs);
     /* Get a record by its ID. */
     Optional<Record> getRecord(long id);
     /* Get a record by location ID and timestamp. */
@@ -31,4 +42,28 @@ public interface Model {
     Optional<List<Record>> getRecords(long locationID);
     /* Get a list of all records for a given location and time range. */
     Optional<List<Record>> getRecords(long locationID, Timestamp from, Timestamp to);
+    /* Get a page of at most limit records, ordered by time, starting after the cursor. */
+    RecordPage getRecords(RecordCursor after, int limit);
+    /* Get a page of at most limit records for a given location, ordered by time, starting after the cursor. */
+    RecordPage getRecords(long locationID, RecordCursor after, int limit);
+    /* Get a page of at most limit records for a given location and time range, ordered by time, starting after the cursor. */
+    RecordPage getRecords(long locationID, Timestamp from, Timestamp to, RecordCursor after, int limit);
+    /* Get summary statistics for all records at a given location, or empty if there are none. */
+    Optional<Aggregate> getAggregate(long locationID);
+    /* Get summary statistics for the records at a given location and time range, or empty if there are none. */
+    Optional<Aggregate> getAggregate(long locationID, Timestamp from, Timestamp to);
+    /* Get summary statistics for each bucket of time that has records at a given location and time range. */
+    Optional<List<Aggregate>> getAggregates(long locationID, Timestamp from, Timestamp to, Aggregate.Bucket bucket);
+    /* Get a number that changes whenever a location is added, to tell whether a list of locations is current. */
+    long getLocationsVersion();
+    /* Get a number that changes whenever a record is added anywhere. */
+    long getRecordsVersion();
+    /* Get a number that changes whenever a record is added at a given location. */
+    long getRecordsVersion(long locationID);
+    /* Pass all records to a handler one at a time. Returns the number of records. */
+    long streamRecords(RecordHandler handler) throws IOException;
+    /* Pass all records for a given location to a handler one at a time. Returns the number of records. */
+    long streamRecords(long locationID, RecordHandler handler) throws IOException;
+    /* Pass all records for a given location and time range to a handler one at a time. Returns the number of records. */
+    long streamRecords(long locationID, Timestamp from, Timestamp to, RecordHandler handler) throws IOException;
 }
@@ -0,0 +1,1151 @@
+package ci646.weather.model;
+/**
+ * A Model that keeps records in one SQLite file per month (or per year) rather than in a single table.
+ * Each partition file has the usual schema and its own connection pool and Sql2oModel, and holds the
+ * records whose time falls in its period along with their rollups. Locations stay in the main DB, the
+ * catalog, which also answers every location query.
+ *
+ * A record is stored in the partition its time falls in. Its ID is the partition's first month (months
+ * since the year 0) in the high bits and its rowid in that partition in the low LOCAL_BITS, so a record
+ * can be found from its ID alone and IDs stay below 2^53 for JavaScript clients. Within a partition, IDs
+ * rise with rowids, so ordering by (ts, ID) is the same across partitions as within them.
+ *
+ * Queries for a time range go to the partitions it overlaps, in parallel on a fixed pool of threads,
+ * and the results are put together in partition order, which is time order. Aggregates are combined
+ * from each partition's totals; the buckets never cross a partition boundary, since partitions start at
+ * the start of a UTC month. Streams for a location are fetched a few partitions ahead in parallel and
+ * passed on in order; a stream of every record goes one partition at a time, to keep memory bounded.
+ * Pages are read one partition after another until the page is full.
+ *
+ * A partition's file is opened, with its own connections, when it is first queried, and closed again
+ * once more than maxOpen are open and it is the least recently used one that no query is using.
+ *
+ * Retention is by whole partitions: once a period is more than `retention` periods old, records for it
+ * are refused, and its file is closed and deleted, along with its rollups. Files are dropped on a
+ * background thread, started by dropExpired, so a drop waiting for the queries using a partition to
+ * finish never holds up a write. Only one process should drop files: the server, not the loader. The
+ * highest ID of each dropped partition is kept in the catalog, so that the record versions still only
+ * go up.
+ */
+
+import ci646.weather.metrics.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+@Slf4j
+public class PartitionedModel implements Model, AutoCloseable {
+
+    // The low bits of a record ID, holding its rowid within its partition
+    private static final int LOCAL_BITS = 36;
+    private static final long LOCAL_MASK = (1L << LOCAL_BITS) - 1;
+    // Partition files are records-yyyy-MM.db, or records-yyyy.db when partitioned by year
+    private static final Pattern FILE_NAME = Pattern.compile("records-(\\d{4})(?:-(\\d{2}))?\\.db");
+    // How often expired partitions are looked for, besides whenever a partition is created
+    private static final long DROP_INTERVAL = 60 * 60 * 1000;     // ms
+    // Records copied from the catalog per transaction by importRecords
+    private static final int IMPORT_BATCH = 10000;
+    private static final String INSERT_DROPPED = "INSERT INTO dropped_partitions (name, max_record_id, dropped_at) " +
+            "VALUES (:name, :max_record_id, :dropped_at)";
+    // Each dropped partition adds one more than its highest rowid, so the version always changes
+    private static final String SELECT_DROPPED = "SELECT coalesce(sum(max_record_id + 1), 0) FROM dropped_partitions";
+    private static final String INSERT_IMPORT = "INSERT INTO partition_imports (copied, skipped, finished_at) " +
+            "VALUES (:copied, :skipped, :finished_at)";
+
+    /**
+     * The length of time each partition holds.
+     */
+    public enum Period {
+        MONTH(1), YEAR(12);
+
+        private final int months;
+
+        Period(int months) {
+            this.months = months;
+        }
+    }
+
+    /**
+     * Opens the connection pool for a partition file.
+     */
+    @FunctionalInterface
+    public interface PoolFactory {
+        SqlitePool open(String url) throws SQLException;
+    }
+
+    /**
+     * A Sql2oModel query that passes records to a handler.
+     */
+    @FunctionalInterface
+    private interface Streamer {
+        long stream(Sql2oModel model, RecordHandler handler) throws IOException;
+    }
+
+    /**
+     * A Sql2oModel query for a page of records.
+     */
+    @FunctionalInterface
+    private interface Pager {
+        RecordPage page(Sql2oModel model, RecordCursor after, int limit);
+    }
+
+    /**
+     * One partition file, and the model over it while the file is open. The read lock is held while the
+     * model is in use, and the write lock to open or close the file.
+     */
+    private static class Partition {
+        final int key;          // the first month, in months since the year 0
+        final long start;       // ms since the epoch, inclusive
+        final long end;         // exclusive
+        final File file;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        // Guarded by lock, and null while the file is closed
+        SqlitePool pool;
+        Sql2o writer;
+        Sql2oModel model;
+        volatile boolean open = false;
+        volatile boolean dropped = false;
+        volatile long lastUsed;     // System.nanoTime(), to find the least recently used
+        // The largest rowid, overall and at each location, once known; guarded by the model's versions lock
+        long maxID = -1;
+        final Map<Long, Long> maxIDs = new HashMap<>();
+
+        Partition(int key, Period period, File file) {
+            this.key = key;
+            this.start = startOf(key);
+            this.end = startOf(key + period.months);
+            this.file = file;
+        }
+
+        long globalID(long localID) {
+            if (localID > LOCAL_MASK) {
+                throw new IllegalStateException("too many records for their IDs in partition " + file);
+            }
+            return (long) key << LOCAL_BITS | localID;
+        }
+
+        Record global(Record rec) {
+            rec.setRecordID(globalID(rec.getRecordID()));
+            return rec;
+        }
+    }
+
+    private final Sql2oModel catalog;
+    private final Sql2o catalogWriter;
+    private final PoolFactory pools;
+    private final File dir;
+    private final Period period;
+    private final int retention;
+    private final int threads;
+    private final int maxOpen;
+    private final boolean coveringIndex;
+    private final ExecutorService executor;
+    private volatile ScheduledExecutorService dropper = null;   // once dropExpired is called
+    private final ConcurrentSkipListMap<Integer, Partition> partitions = new ConcurrentSkipListMap<>();
+    private final AtomicInteger openFiles = new AtomicInteger();
+    // Guards the partitions' largest rowids, dropped, and removing partitions, so that the record
+    // versions are always read from a consistent set of them
+    private final Object versions = new Object();
+    private long dropped;                                   // added to the record versions
+    private volatile long slowQueryMillis = -1;             // for new partitions, once set
+
+    /**
+     * Find the partition files already in dir. Files are only opened when they are first queried, and
+     * nothing is dropped until dropExpired is called.
+     * @param catalog the model over the main DB, which holds the locations
+     * @param catalogWriter the writer for the main DB
+     * @param pools opens each partition's connections
+     * @param dir where the partition files are kept, created if need be
+     * @param period how much time each partition holds
+     * @param retention the number of periods kept, including the current one, or 0 to keep everything
+     * @param threads the most partitions queried at once
+     * @param maxOpen the most partition files kept open once no query is using them
+     * @param coveringIndex whether partitions have the optional covering index
+     */
+    public PartitionedModel(Sql2oModel catalog, Sql2o catalogWriter, PoolFactory pools, File dir, Period period,
+                            int retention, int threads, int maxOpen, boolean coveringIndex) {
+        this.catalog = catalog;
+        this.catalogWriter = catalogWriter;
+        this.pools = pools;
+        this.dir = dir;
+        this.period = period;
+        this.retention = retention;
+        this.threads = threads;
+        this.maxOpen = maxOpen;
+        this.coveringIndex = coveringIndex;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("could not create the partition directory " + dir);
+        }
+        File[] files = dir.listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            Matcher m = FILE_NAME.matcher(f.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            if ((m.group(2) == null) != (period == Period.YEAR)) {
+                throw new IllegalStateException("partition " + f + " was made for a different period than " + period);
+            }
+            int key = Integer.parseInt(m.group(1)) * 12 + (m.group(2) == null ? 0 : Integer.parseInt(m.group(2)) - 1);
+            partitions.put(key, new Partition(key, period, f));
+        }
+        try (Connection conn = catalogWriter.open()) {
+            dropped = conn.createQuery(SELECT_DROPPED).executeScalar(Long.class);
+        }
+        AtomicInteger n = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "partition-query-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Metrics.gauge("db_partitions", "Partition files.", partitions::size);
+        Metrics.gauge("db_partitions_open", "Partition files open.", openFiles::get);
+        log.info("found {} partitions in {}", partitions.size(), dir);
+    }
+
+    /**
+     * Start dropping the partitions past retention, on a thread of their own: now, whenever a partition
+     * is created, and every DROP_INTERVAL.
+     */
+    public void dropExpired() {
+        if (retention <= 0 || dropper != null) {
+            return;
+        }
+        ScheduledExecutorService d = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "partition-dropper");
+            t.setDaemon(true);
+            return t;
+        });
+        d.scheduleWithFixedDelay(this::expire, 0, DROP_INTERVAL, TimeUnit.MILLISECONDS);
+        dropper = d;
+    }
+
+    /**
+     * Check that records at a time are kept, before accepting one to be stored later.
+     * @param ts ms since the epoch
+     * @throws IllegalArgumentException if they aren't
+     */
+    public void checkKept(long ts) {
+        int key = keyOf(ts);
+        if (retention > 0 && key < oldestKept()) {
+            throw new IllegalArgumentException("records before " + Instant.ofEpochMilli(startOf(oldestKept())) +
+                    " are no longer kept");
+        }
+    }
+
+    /**
+     * Log the SQL of partition queries that take longer than this.
+     * @param millis
+     */
+    public void setSlowQueryMillis(long millis) {
+        slowQueryMillis = millis;
+        for (Partition p : partitions.values()) {
+            p.lock.readLock().lock();
+            try {
+                if (p.model != null) {
+                    p.model.setSlowQueryMillis(millis);
+                }
+            } finally {
+                p.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Copy the records in the catalog's own records table into partitions, then delete them from the
+     * catalog. Used to move them over when partitioning is first turned on. The records get new IDs;
+     * those before the retention period are left out. Records already in a partition are skipped, so
+     * an import that was cut short is finished by running it again, which happens at the next start,
+     * since the catalog's records are only deleted, and the import recorded in it, once all have been
+     * copied.
+     * @return the number of records copied
+     * @throws IOException
+     */
+    public long importRecords() throws IOException {
+        if (catalog.getRecordsVersion() == 0) {
+            return 0;
+        }
+        if (!partitions.isEmpty()) {
+            log.info("copying the records left in the catalog into partitions");
+        }
+        List<Record> batch = new ArrayList<>(IMPORT_BATCH);
+        long[] counts = {0, 0};     // copied, skipped
+        catalog.streamRecords((recordID, locID, ts, temperature, humidity, windSpeed, windDirection) -> {
+            batch.add(new Record(locID, new Timestamp(ts), temperature, humidity, windSpeed, windDirection));
+            if (batch.size() == IMPORT_BATCH) {
+                importBatch(batch, counts);
+            }
+        });
+        importBatch(batch, counts);
+        // Deleting them and recording the import together, so it is either finished or run again
+        try (Connection conn = catalogWriter.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            conn.createQuery("DELETE FROM records").executeUpdate();
+            for (Aggregate.Bucket bucket : Aggregate.Bucket.values()) {
+                conn.createQuery("DELETE FROM " + Rollups.table(bucket)).executeUpdate();
+            }
+            conn.createQuery(INSERT_IMPORT)
+                    .addParameter("copied", counts[0])
+                    .addParameter("skipped", counts[1])
+                    .addParameter("finished_at", new Timestamp(System.currentTimeMillis()))
+                    .executeUpdate();
+            conn.commit();
+        }
+        // Give the space back, now that the catalog only holds locations
+        try (Connection conn = catalogWriter.open()) {
+            conn.createQuery("VACUUM").executeUpdate();
+        }
+        log.info("copied {} records into {} partitions, skipping {} already there or too old",
+                counts[0], partitions.size(), counts[1]);
+        return counts[0];
+    }
+
+    /**
+     * Store a batch of imported records in partitions, count them, and empty the batch.
+     * @param batch
+     * @param counts the records copied and skipped so far
+     */
+    private void importBatch(List<Record> batch, long[] counts) {
+        long copied = Arrays.stream(putRecords(batch)).filter(id -> id != 0).count();
+        counts[0] += copied;
+        counts[1] += batch.size() - copied;
+        batch.clear();
+    }
+
+    /**
+     * Recalculate the rollup tables of every partition from its records.
+     */
+    public void rebuildRollups() {
+        for (Partition p : partitions.values()) {
+            query(p, null, m -> {
+                Rollups.rebuild(p.writer);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Stop the query threads and close every partition file.
+     */
+    @Override
+    public void close() {
+        if (dropper != null) {
+            dropper.shutdown();
+        }
+        executor.shutdown();
+        for (Partition p : partitions.values()) {
+            close(p);
+        }
+    }
+
+    /*
+    Locations are all in the catalog.
+     */
+
+    @Override
+    public long putLocation(Location loc) {
+        return catalog.putLocation(loc);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocations() {
+        return catalog.getLocations();
+    }
+
+    @Override
+    public Optional<Location> getLocation(long locationID) {
+        return catalog.getLocation(locationID);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocationsByName(String name) {
+        return catalog.getLocationsByName(name);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocationsNear(double lat, double lon, int k) {
+        return catalog.getLocationsNear(lat, lon, k);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocationsWithin(double lat, double lon, double km) {
+        return catalog.getLocationsWithin(lat, lon, km);
+    }
+
+    @Override
+    public Optional<List<Location>> getLocationsInBox(double minLat, double minLon, double maxLat, double maxLon) {
+        return catalog.getLocationsInBox(minLat, minLon, maxLat, maxLon);
+    }
+
+    @Override
+    public long getLocationsVersion() {
+        return catalog.getLocationsVersion();
+    }
+
+    /*
+    Records
+     */
+
+    /**
+     * Store a new record in the partition for its time, creating the partition if need be.
+     * @param rec
+     * @return
+     * @throws IllegalArgumentException if the record is too old to be kept
+     * @throws DuplicateRecordException if the location already has a record at that time
+     */
+    @Override
+    public long putRecord(Record rec) {
+        Partition p = partitionFor(rec.getDate().getTime());
+        Long id = query(p, null, m -> m.putRecord(rec));
+        if (id == null) {
+            throw new IllegalArgumentException("records at " + rec.getDate().toInstant() + " are no longer kept");
+        }
+        stored(p, rec.getLocID(), id);
+        return p.globalID(id);
+    }
+
+    /**
+     * Store a batch of records, one transaction per partition they fall in. Records that duplicate an
+     * existing one, or are too old to be kept, are skipped and their ID returned as 0.
+     * @param recs
+     * @return
+     */
+    @Override
+    public long[] putRecords(List<Record> recs) {
+        long[] ids = new long[recs.size()];
+        // The positions in recs of the records for each partition
+        Map<Partition, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < recs.size(); i++) {
+            try {
+                groups.computeIfAbsent(partitionFor(recs.get(i).getDate().getTime()), p -> new ArrayList<>()).add(i);
+            } catch (IllegalArgumentException e) {
+                log.debug("Skipped a record: " + e.getMessage());
+            }
+        }
+        for (Map.Entry<Partition, List<Integer>> g : groups.entrySet()) {
+            Partition p = g.getKey();
+            List<Integer> at = g.getValue();
+            List<Record> batch = at.stream().map(recs::get).collect(Collectors.toList());
+            long[] local = query(p, new long[batch.size()], m -> m.putRecords(batch));
+            for (int i = 0; i < local.length; i++) {
+                if (local[i] != 0) {
+                    stored(p, batch.get(i).getLocID(), local[i]);
+                    ids[at.get(i)] = p.globalID(local[i]);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Retrieve a record by its ID, from the partition the ID names.
+     * @param id
+     * @return
+     */
+    @Override
+    public Optional<Record> getRecord(long id) {
+        Partition p = id < 0 ? null : partitions.get((int) (id >>> LOCAL_BITS));
+        if (p == null) {
+            return Optional.empty();
+        }
+        return query(p, Optional.<Record>empty(), m -> m.getRecord(id & LOCAL_MASK)).map(p::global);
+    }
+
+    /**
+     * Retrieve a record by its Location ID and timestamp, from the partition for that time.
+     * @param locationID
+     * @param ts
+     * @return
+     */
+    @Override
+    public Optional<Record> getRecord(long locationID, Timestamp ts) {
+        Partition p = find(ts.getTime());
+        if (p == null) {
+            return Optional.empty();
+        }
+        return query(p, Optional.<Record>empty(), m -> m.getRecord(locationID, ts)).map(p::global);
+    }
+
+    @Override
+    public Optional<List<Record>> getRecords() {
+        return concat(all(), m -> m.getRecords());
+    }
+
+    @Override
+    public Optional<List<Record>> getRecords(long locationID) {
+        return concat(all(), m -> m.getRecords(locationID));
+    }
+
+    @Override
+    public Optional<List<Record>> getRecords(long locationID, Timestamp from, Timestamp to) {
+        return concat(overlapping(from, to), m -> m.getRecords(locationID, from, to));
+    }
+
+    @Override
+    public RecordPage getRecords(RecordCursor after, int limit) {
+        return page(all(), after, limit, (m, a, n) -> m.getRecords(a, n));
+    }
+
+    @Override
+    public RecordPage getRecords(long locationID, RecordCursor after, int limit) {
+        return page(all(), after, limit, (m, a, n) -> m.getRecords(locationID, a, n));
+    }
+
+    @Override
+    public RecordPage getRecords(long locationID, Timestamp from, Timestamp to, RecordCursor after, int limit) {
+        return page(overlapping(from, to), after, limit, (m, a, n) -> m.getRecords(locationID, from, to, a, n));
+    }
+
+    @Override
+    public Optional<Aggregate> getAggregate(long locationID) {
+        return combine(inParallel(all(), Optional.empty(), m -> m.getTotals(locationID)));
+    }
+
+    @Override
+    public Optional<Aggregate> getAggregate(long locationID, Timestamp from, Timestamp to) {
+        return combine(inParallel(overlapping(from, to), Optional.empty(), m -> m.getTotals(locationID, from, to)));
+    }
+
+    /**
+     * Get summary statistics for each bucket of time that has records, in time order. Partitions start
+     * on a month boundary, so each bucket comes from one partition, but buckets with the same start are
+     * combined anyway.
+     * @param locationID
+     * @param from
+     * @param to
+     * @param bucket
+     * @return
+     */
+    @Override
+    public Optional<List<Aggregate>> getAggregates(long locationID, Timestamp from, Timestamp to,
+                                                   Aggregate.Bucket bucket) {
+        Map<Long, Totals> buckets = new TreeMap<>();
+        for (List<Totals> part : inParallel(overlapping(from, to), Collections.<Totals>emptyList(),
+                m -> m.getTotals(locationID, from, to, bucket))) {
+            for (Totals t : part) {
+                buckets.merge(t.getBucket().getTime(), t, (a, b) -> {
+                    a.add(b);
+                    return a;
+                });
+            }
+        }
+        List<Aggregate> result = buckets.values().stream()
+                .map(Totals::toAggregate)
+                .collect(Collectors.toList());
+        Optional<List<Aggregate>> l = Optional.empty();
+        if (result.size() > 0) {
+            l = Optional.of(result);
+        }
+        return l;
+    }
+
+    /**
+     * The sum of the partitions' largest rowids, which goes up whenever a record is added, plus the
+     * share of the partitions that have been dropped. Each partition's is kept in memory once it has
+     * been read, and raised as records are stored, so usually no partition is queried.
+     * @return
+     */
+    @Override
+    public long getRecordsVersion() {
+        List<Partition> unknown;
+        synchronized (versions) {
+            unknown = partitions.values().stream().filter(p -> p.maxID < 0).collect(Collectors.toList());
+        }
+        List<Long> found = inParallel(unknown, 0L, Sql2oModel::getRecordsVersion);
+        synchronized (versions) {
+            for (int i = 0; i < unknown.size(); i++) {
+                Partition p = unknown.get(i);
+                p.maxID = Math.max(p.maxID, found.get(i));
+            }
+            long version = dropped;
+            for (Partition p : partitions.values()) {
+                version += Math.max(p.maxID, 0);
+            }
+            return version;
+        }
+    }
+
+    /**
+     * The sum of the partitions' largest rowids at a location, which goes up whenever a record is added
+     * there, plus the share of the partitions that have been dropped. Kept in memory like the overall
+     * version.
+     * @param locationID
+     * @return
+     */
+    @Override
+    public long getRecordsVersion(long locationID) {
+        List<Partition> unknown;
+        synchronized (versions) {
+            unknown = partitions.values().stream().filter(p -> !p.maxIDs.containsKey(locationID))
+                    .collect(Collectors.toList());
+        }
+        List<Long> found = inParallel(unknown, 0L, m -> m.getRecordsVersion(locationID));
+        synchronized (versions) {
+            for (int i = 0; i < unknown.size(); i++) {
+                unknown.get(i).maxIDs.merge(locationID, found.get(i), Math::max);
+            }
+            long version = dropped;
+            for (Partition p : partitions.values()) {
+                version += p.maxIDs.getOrDefault(locationID, 0L);
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Raise a partition's largest rowids for a record stored in it. A new rowid is the largest in its
+     * partition, so this is exact even if the partition's versions weren't known yet.
+     * @param p
+     * @param locationID
+     * @param localID
+     */
+    private void stored(Partition p, long locationID, long localID) {
+        synchronized (versions) {
+            p.maxID = Math.max(p.maxID, localID);
+            p.maxIDs.merge(locationID, localID, Math::max);
+        }
+    }
+
+    /**
+     * Pass all records to a handler, one partition at a time.
+     * @param handler
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long streamRecords(RecordHandler handler) throws IOException {
+        long n = 0;
+        for (Partition p : all()) {
+            n += stream(p, (m, h) -> m.streamRecords(h), (recordID, locID, ts, temperature, humidity, windSpeed,
+                    windDirection) -> handler.record(p.globalID(recordID), locID, ts, temperature, humidity,
+                    windSpeed, windDirection));
+        }
+        return n;
+    }
+
+    @Override
+    public long streamRecords(long locationID, RecordHandler handler) throws IOException {
+        return streamInOrder(all(), (m, h) -> m.streamRecords(locationID, h), handler);
+    }
+
+    @Override
+    public long streamRecords(long locationID, Timestamp from, Timestamp to, RecordHandler handler)
+            throws IOException {
+        return streamInOrder(overlapping(from, to), (m, h) -> m.streamRecords(locationID, from, to, h), handler);
+    }
+
+    /*
+    Running queries over partitions
+     */
+
+    /**
+     * Every partition, in time order.
+     */
+    private List<Partition> all() {
+        return new ArrayList<>(partitions.values());
+    }
+
+    /**
+     * The partitions holding any time from one time to another, inclusive, in time order.
+     */
+    private List<Partition> overlapping(Timestamp from, Timestamp to) {
+        return partitions.values().stream()
+                .filter(p -> p.end > from.getTime() && p.start <= to.getTime())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Run a query on a partition, unless it has been dropped.
+     * @param p
+     * @param ifDropped the result if it has been
+     * @param query
+     * @return
+     */
+    private <T> T query(Partition p, T ifDropped, Function<Sql2oModel, T> query) {
+        Sql2oModel model = use(p);
+        if (model == null) {
+            return ifDropped;
+        }
+        try {
+            return query.apply(model);
+        } finally {
+            p.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pass the records from a query on a partition to a handler, unless the partition has been dropped.
+     * @param p
+     * @param streamer
+     * @param handler
+     * @return the number of records
+     * @throws IOException
+     */
+    private long stream(Partition p, Streamer streamer, RecordHandler handler) throws IOException {
+        Sql2oModel model = use(p);
+        if (model == null) {
+            return 0;
+        }
+        try {
+            return streamer.stream(model, handler);
+        } finally {
+            p.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Take a partition's read lock and return its model, opening the file first if it is closed. The
+     * caller unlocks the read lock once it has finished with the model.
+     * @param p
+     * @return the model, or null, without the lock, if the partition has been dropped
+     */
+    private Sql2oModel use(Partition p) {
+        // Checked before locking too, so a query doesn't wait behind a drop for a partition it can't use
+        if (p.dropped) {
+            return null;
+        }
+        p.lock.readLock().lock();
+        if (p.model == null && !p.dropped) {
+            p.lock.readLock().unlock();
+            p.lock.writeLock().lock();
+            try {
+                if (p.model == null && !p.dropped) {
+                    open(p);
+                }
+                p.lock.readLock().lock();
+            } finally {
+                p.lock.writeLock().unlock();
+            }
+            closeIdle();
+        }
+        if (p.dropped) {
+            p.lock.readLock().unlock();
+            return null;
+        }
+        p.lastUsed = System.nanoTime();
+        return p.model;
+    }
+
+    /**
+     * Run a query on each partition at once, and return the results in the same order as the partitions.
+     * @param parts
+     * @param ifDropped the result for a partition that has been dropped
+     * @param query
+     * @return
+     */
+    private <T> List<T> inParallel(List<Partition> parts, T ifDropped, Function<Sql2oModel, T> query) {
+        if (parts.size() == 1) {
+            return Collections.singletonList(query(parts.get(0), ifDropped, query));
+        }
+        List<Future<T>> futures = new ArrayList<>(parts.size());
+        try {
+            for (Partition p : parts) {
+                futures.add(executor.submit(() -> query(p, ifDropped, query)));
+            }
+            List<T> results = new ArrayList<>(parts.size());
+            for (Future<T> f : futures) {
+                results.add(join(f));
+            }
+            return results;
+        } finally {
+            for (Future<T> f : futures) {
+                f.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Wait for a query running on another thread, passing on anything it throws.
+     */
+    private static <T> T join(Future<T> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for a partition query", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Run a query for a list of records on each partition at once, and join the lists in partition order.
+     * @param parts
+     * @param query
+     * @return the records with their global IDs, or empty if there are none
+     */
+    private Optional<List<Record>> concat(List<Partition> parts, Function<Sql2oModel, Optional<List<Record>>> query) {
+        List<Optional<List<Record>>> results = inParallel(parts, Optional.empty(), query);
+        List<Record> all = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) {
+            Partition p = parts.get(i);
+            results.get(i).ifPresent(rs -> rs.forEach(r -> all.add(p.global(r))));
+        }
+        Optional<List<Record>> l = Optional.empty();
+        if (all.size() > 0) {
+            l = Optional.of(all);
+        }
+        return l;
+    }
+
+    /**
+     * Combine the totals from each partition into one aggregate.
+     * @param parts
+     * @return the aggregate, or empty if no partition had any records
+     */
+    private static Optional<Aggregate> combine(List<Optional<Totals>> parts) {
+        Totals total = null;
+        for (Optional<Totals> t : parts) {
+            if (t.isEmpty()) {
+                continue;
+            }
+            if (total == null) {
+                total = t.get();
+            } else {
+                total.add(t.get());
+            }
+        }
+        return Optional.ofNullable(total).map(Totals::toAggregate);
+    }
+
+    /**
+     * Get a page of records from partitions in time order, starting with the one the cursor is in. Each
+     * partition is asked for what is left of the page, in terms of its own rowids; once the page is full,
+     * the next partition with records only shows that there is another page.
+     * @param parts
+     * @param after
+     * @param limit
+     * @param pager
+     * @return
+     */
+    private RecordPage page(List<Partition> parts, RecordCursor after, int limit, Pager pager) {
+        List<Record> records = new ArrayList<>(Math.min(limit, 1024));
+        boolean more = false;
+        for (Partition p : parts) {
+            if (p.end <= after.getTs()) {
+                continue;
+            }
+            RecordCursor local = p.start <= after.getTs()
+                    ? new RecordCursor(after.getTs(), after.getRecordID() & LOCAL_MASK)
+                    : RecordCursor.START;
+            if (records.size() == limit) {
+                RecordPage next = query(p, null, m -> pager.page(m, local, 1));
+                if (next != null && !next.getRecords().isEmpty()) {
+                    more = true;
+                    break;
+                }
+                continue;
+            }
+            RecordPage page = query(p, null, m -> pager.page(m, local, limit - records.size()));
+            if (page == null) {
+                continue;
+            }
+            page.getRecords().forEach(r -> records.add(p.global(r)));
+            if (page.getNext() != null) {
+                more = true;
+                break;
+            }
+        }
+        if (!more) {
+            return new RecordPage(records, null);
+        }
+        Record last = records.get(records.size() - 1);
+        return new RecordPage(records, new RecordCursor(last.getDate().getTime(), last.getRecordID()).encode());
+    }
+
+    /**
+     * Pass the records from a query on each partition to a handler in partition order. While one
+     * partition's records are being passed on, up to threads partitions are read ahead into buffers.
+     * @param parts
+     * @param streamer
+     * @param handler
+     * @return the number of records
+     * @throws IOException
+     */
+    private long streamInOrder(List<Partition> parts, Streamer streamer, RecordHandler handler) throws IOException {
+        if (parts.size() == 1) {
+            Partition p = parts.get(0);
+            return stream(p, streamer, (recordID, locID, ts, temperature, humidity, windSpeed, windDirection) ->
+                    handler.record(p.globalID(recordID), locID, ts, temperature, humidity, windSpeed, windDirection));
+        }
+        Deque<Future<RecordBuffer>> ahead = new ArrayDeque<>();
+        int next = 0;
+        long n = 0;
+        try {
+            while (next < parts.size() || !ahead.isEmpty()) {
+                while (next < parts.size() && ahead.size() < threads) {
+                    Partition p = parts.get(next++);
+                    ahead.add(executor.submit(() -> {
+                        RecordBuffer b = new RecordBuffer(256);
+                        stream(p, streamer, (recordID, locID, ts, temperature, humidity, windSpeed, windDirection) ->
+                                b.record(p.globalID(recordID), locID, ts, temperature, humidity, windSpeed,
+                                        windDirection));
+                        return b;
+                    }));
+                }
+                n += join(ahead.poll()).replay(handler);
+            }
+        } finally {
+            for (Future<RecordBuffer> f : ahead) {
+                f.cancel(false);
+            }
+        }
+        return n;
+    }
+
+    /*
+    Opening and dropping partitions
+     */
+
+    /**
+     * The first month of the partition holding a time, in months since the year 0.
+     * @param ts ms since the epoch
+     * @return
+     * @throws IllegalArgumentException if the time isn't in the years 0 to 9999
+     */
+    private int keyOf(long ts) {
+        OffsetDateTime t = Instant.ofEpochMilli(ts).atOffset(ZoneOffset.UTC);
+        if (t.getYear() < 0 || t.getYear() > 9999) {
+            throw new IllegalArgumentException("times must be in the years 0 to 9999: " + t);
+        }
+        int month = t.getYear() * 12 + t.getMonthValue() - 1;
+        return month - month % period.months;
+    }
+
+    /**
+     * The start of a month, in ms since the epoch.
+     * @param month in months since the year 0
+     * @return
+     */
+    private static long startOf(int month) {
+        return LocalDate.of(month / 12, month % 12 + 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    private String fileName(int key) {
+        return period == Period.YEAR
+                ? String.format("records-%04d.db", key / 12)
+                : String.format("records-%04d-%02d.db", key / 12, key % 12 + 1);
+    }
+
+    /**
+     * The partition holding a time, if there is one.
+     */
+    private Partition find(long ts) {
+        try {
+            return partitions.get(keyOf(ts));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The partition to store a record at a time in, created if there isn't one yet.
+     * @param ts
+     * @return
+     * @throws IllegalArgumentException if records at that time aren't kept
+     */
+    private Partition partitionFor(long ts) {
+        // Also refuses records for a partition that is past retention but hasn't been dropped yet
+        checkKept(ts);
+        int key = keyOf(ts);
+        Partition p = partitions.get(key);
+        return p != null ? p : create(key);
+    }
+
+    private synchronized Partition create(int key) {
+        Partition p = partitions.get(key);
+        if (p != null) {
+            return p;
+        }
+        p = new Partition(key, period, new File(dir, fileName(key)));
+        partitions.put(key, p);
+        log.info("created partition {}", p.file);
+        // A new partition is the usual sign that a period has passed
+        ScheduledExecutorService d = dropper;
+        if (d != null) {
+            d.execute(this::expire);
+        }
+        return p;
+    }
+
+    /**
+     * Open a partition's file, creating it if need be, and bring its schema up to date. Called with the
+     * partition's write lock held.
+     * @param p
+     */
+    private void open(Partition p) {
+        SqlitePool pool;
+        try {
+            pool = pools.open("jdbc:sqlite:" + p.file.getPath());
+        } catch (SQLException e) {
+            throw new IllegalStateException("could not open the partition " + p.file, e);
+        }
+        Sql2o writer = new Sql2o(pool.writer());
+        Schema.migrate(writer);
+        Schema.setCoveringIndex(writer, coveringIndex);
+        Sql2oModel model = new Sql2oModel(new Sql2o(pool.readers()), writer);
+        if (slowQueryMillis >= 0) {
+            model.setSlowQueryMillis(slowQueryMillis);
+        }
+        p.pool = pool;
+        p.writer = writer;
+        p.model = model;
+        p.open = true;
+        openFiles.incrementAndGet();
+    }
+
+    /**
+     * Close a partition's file, if it is open. Called with the partition's write lock held.
+     * @param p
+     */
+    private void closeFile(Partition p) {
+        if (p.model == null) {
+            return;
+        }
+        p.pool.close();
+        p.pool = null;
+        p.writer = null;
+        p.model = null;
+        p.open = false;
+        openFiles.decrementAndGet();
+    }
+
+    /**
+     * While more than maxOpen partition files are open, close the least recently used one that no
+     * query is using.
+     */
+    private void closeIdle() {
+        if (openFiles.get() <= maxOpen) {
+            return;
+        }
+        List<Partition> idle = partitions.values().stream()
+                .filter(p -> p.open)
+                .sorted(Comparator.comparingLong(p -> p.lastUsed))
+                .collect(Collectors.toList());
+        for (Partition p : idle) {
+            if (openFiles.get() <= maxOpen) {
+                break;
+            }
+            // A partition in use holds its read lock, so this fails rather than waiting for it
+            if (p.lock.writeLock().tryLock()) {
+                try {
+                    closeFile(p);
+                } finally {
+                    p.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * The first month of the oldest partition kept.
+     */
+    private int oldestKept() {
+        return keyOf(System.currentTimeMillis()) - (retention - 1) * period.months;
+    }
+
+    /**
+     * Drop every partition older than the retention period. Runs on the dropper thread.
+     */
+    private void expire() {
+        try {
+            for (Partition p : new ArrayList<>(partitions.headMap(oldestKept()).values())) {
+                drop(p);
+            }
+        } catch (RuntimeException e) {
+            // Tried again next time, rather than ending the schedule
+            log.error("could not drop the expired partitions", e);
+        }
+    }
+
+    /**
+     * Close a partition once no query is using it, then delete its files. Its largest rowid is added to
+     * the record versions as it stops being counted in them, under the versions lock, so they never go
+     * down.
+     * @param p
+     */
+    private void drop(Partition p) {
+        long maxID;
+        // New queries find nothing in it from now on, rather than queueing behind the write lock
+        p.dropped = true;
+        p.lock.writeLock().lock();
+        try {
+            if (p.model == null) {
+                open(p);
+            }
+            maxID = p.model.getRecordsVersion();
+            synchronized (versions) {
+                dropped += maxID + 1;
+                partitions.remove(p.key);
+            }
+            closeFile(p);
+        } finally {
+            p.lock.writeLock().unlock();
+        }
+        try (Connection conn = catalogWriter.open()) {
+            conn.createQuery(INSERT_DROPPED)
+                    .addParameter("name", p.file.getName())
+                    .addParameter("max_record_id", maxID)
+                    .addParameter("dropped_at", new Timestamp(System.currentTimeMillis()))
+                    .executeUpdate();
+        }
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            File f = new File(p.file.getPath() + suffix);
+            if (f.exists() && !f.delete()) {
+                log.warn("could not delete {}", f);
+            }
+        }
+        log.info("dropped partition {}", p.file);
+    }
+
+    private void close(Partition p) {
+        p.lock.writeLock().lock();
+        try {
+            // Nothing reopens it once the model is closed
+            p.dropped = true;
+            closeFile(p);
+        } finally {
+            p.lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ci646.weather.model;
+/**
+ * Calculates the totals for an Aggregate in a single pass over some records, without allocating
+ * anything per record. Sums use Kahan summation and the spread about the mean uses Welford's method,
+ * so long runs of similar values don't lose precision. Wind directions are summed as unit vectors.
+ *
+ * Can be passed to Model.streamRecords as a RecordHandler, or fed values directly.
+ */
+
+import java.sql.Timestamp;
+import java.util.Optional;
+
+public class RecordAggregator implements RecordHandler {
+
+    // Temperature, humidity and wind speed, in that order, then wind direction for min and max
+    private static final int METRICS = 3;
+
+    private long count = 0;
+    private long first = Long.MAX_VALUE;
+    private long last = Long.MIN_VALUE;
+    private final double[] sum = new double[METRICS];
+    private final double[] sumC = new double[METRICS];     // Kahan compensation for sum
+    private final double[] mean = new double[METRICS];
+    private final double[] m2 = new double[METRICS];
+    private final float[] min = new float[METRICS + 1];
+    private final float[] max = new float[METRICS + 1];
+    private double sin = 0;
+    private double sinC = 0;
+    private double cos = 0;
+    private double cosC = 0;
+
+    @Override
+    public void record(long recordID, long locID, long ts, float temperature, float humidity,
+                       float windSpeed, float windDirection) {
+        double radians = Math.toRadians(windDirection);
+        add(ts, temperature, humidity, windSpeed, windDirection, Math.sin(radians), Math.cos(radians));
+    }
+
+    /**
+     * Add a record whose wind direction has already been turned into a unit vector.
+     * @param ts epoch millis
+     * @param temperature
+     * @param humidity
+     * @param windSpeed
+     * @param windDirection in degrees
+     * @param windSin the sine of the wind direction
+     * @param windCos the cosine of the wind direction
+     */
+    public void add(long ts, float temperature, float humidity, float windSpeed, float windDirection,
+                    double windSin, double windCos) {
+        count++;
+        if (ts < first) {
+            first = ts;
+        }
+        if (ts > last) {
+            last = ts;
+        }
+        if (count == 1) {
+            min[0] = max[0] = temperature;
+            min[1] = max[1] = humidity;
+            min[2] = max[2] = windSpeed;
+            min[3] = max[3] = windDirection;
+        }
+        add(0, temperature);
+        add(1, humidity);
+        add(2, windSpeed);
+        min[3] = Math.min(min[3], windDirection);
+        max[3] = Math.max(max[3], windDirection);
+        double y = windSin - sinC;
+        double t = sin + y;
+        sinC = (t - sin) - y;
+        sin = t;
+        y = windCos - cosC;
+        t = cos + y;
+        cosC = (t - cos) - y;
+        cos = t;
+    }
+
+    private void add(int i, float value) {
+        double x = value;
+        // Kahan
+        double y = x - sumC[i];
+        double t = sum[i] + y;
+        sumC[i] = (t - sum[i]) - y;
+        sum[i] = t;
+        // Welford
+        double delta = x - mean[i];
+        mean[i] += delta / count;
+        m2[i] += delta * (x - mean[i]);
+        min[i] = Math.min(min[i], value);
+        max[i] = Math.max(max[i], value);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * The totals so far, or empty if no records have been added.
+     * @param locID
+     * @param bucket the start of the bucket the records are in, or null
+     * @return
+     */
+    public Optional<Totals> totals(long locID, Timestamp bucket) {
+        if (count == 0) {
+            return Optional.empty();
+        }
+        Totals t = new Totals();
+        t.setLocID(locID);
+        t.setBucket(bucket);
+        t.setCount(count);
+        t.setFirstTs(new Timestamp(first));
+        t.setLastTs(new Timestamp(last));
+        t.setSumTemperature(sum[0]);
+        t.setM2Temperature(m2[0]);
+        t.setMinTemperature(min[0]);
+        t.setMaxTemperature(max[0]);
+        t.setSumHumidity(sum[1]);
+        t.setM2Humidity(m2[1]);
+        t.setMinHumidity(min[1]);
+        t.setMaxHumidity(max[1]);
+        t.setSumWindSpeed(sum[2]);
+        t.setM2WindSpeed(m2[2]);
+        t.setMinWindSpeed(min[2]);
+        t.setMaxWindSpeed(max[2]);
+        t.setSinWindDirection(sin);
+        t.setCosWindDirection(cos);
+        t.setMinWindDirection(min[3]);
+        t.setMaxWindDirection(max[3]);
+        return Optional.of(t);
+    }
+
+    /**
+     * The summary statistics so far, or empty if no records have been added.
+     * @param locID
+     * @param bucket the start of the bucket the records are in, or null
+     * @return
+     */
+    public Optional<Aggregate> result(long locID, Timestamp bucket) {
+        return totals(locID, bucket).map(Totals::toAggregate);
+    }
+}
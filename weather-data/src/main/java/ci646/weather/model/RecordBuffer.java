@@ -0,0 +1,81 @@
+package ci646.weather.model;
+/**
+ * A RecordHandler that holds the records it is given in primitive columns until they are passed on,
+ * so that a chunk of query results can be read and its connection let go before anything is written
+ * to a client. Nothing is allocated per record; the columns grow as needed and are reused after clear.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+class RecordBuffer implements RecordHandler {
+
+    private long[] ids;
+    private long[] locIDs;
+    private long[] times;
+    private float[] values;     // temperature, humidity, wind speed and direction for each record
+    private int size = 0;
+
+    RecordBuffer(int capacity) {
+        ids = new long[capacity];
+        locIDs = new long[capacity];
+        times = new long[capacity];
+        values = new float[4 * capacity];
+    }
+
+    @Override
+    public void record(long recordID, long locID, long ts, float temperature, float humidity,
+                       float windSpeed, float windDirection) {
+        if (size == ids.length) {
+            int capacity = Math.max(16, size * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            locIDs = Arrays.copyOf(locIDs, capacity);
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, 4 * capacity);
+        }
+        ids[size] = recordID;
+        locIDs[size] = locID;
+        times[size] = ts;
+        values[4 * size] = temperature;
+        values[4 * size + 1] = humidity;
+        values[4 * size + 2] = windSpeed;
+        values[4 * size + 3] = windDirection;
+        size++;
+    }
+
+    /**
+     * Pass the records held to a handler, in the order they were added.
+     * @param handler
+     * @return the number of records
+     * @throws IOException
+     */
+    long replay(RecordHandler handler) throws IOException {
+        for (int i = 0; i < size; i++) {
+            handler.record(ids[i], locIDs[i], times[i], values[4 * i], values[4 * i + 1], values[4 * i + 2],
+                    values[4 * i + 3]);
+        }
+        return size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The ID of the last record added. Only meaningful if there is one.
+     */
+    long lastRecordID() {
+        return ids[size - 1];
+    }
+
+    /**
+     * The time of the last record added. Only meaningful if there is one.
+     */
+    long lastTs() {
+        return times[size - 1];
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
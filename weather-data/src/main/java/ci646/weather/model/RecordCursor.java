@@ -0,0 +1,49 @@
+package ci646.weather.model;
+/**
+ * A position in a time-ordered list of records, used for keyset pagination. Records are ordered by
+ * (ts, record_id), so a cursor holds the timestamp and ID of the last record on a page and the next
+ * page starts with the first record after it. Clients see cursors as opaque strings.
+ */
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class RecordCursor {
+    private long ts;        // The timestamp (ms since the epoch) of the last record seen
+    private long recordID;  // The ID of the last record seen
+
+    // The position before every record
+    public static final RecordCursor START = new RecordCursor(Long.MIN_VALUE, Long.MIN_VALUE);
+
+    /**
+     * Turn the cursor into the string handed to clients.
+     * @return
+     */
+    public String encode() {
+        return Long.toString(ts, 36) + "." + Long.toString(recordID, 36);
+    }
+
+    /**
+     * Parse a string produced by encode(). A null or empty string is the start of the list.
+     * @param s
+     * @return
+     * @throws IllegalArgumentException if the string is not a cursor
+     */
+    public static RecordCursor decode(String s) {
+        if (s == null || s.isEmpty()) {
+            return START;
+        }
+        int dot = s.indexOf('.');
+        if (dot < 0) {
+            throw new IllegalArgumentException("invalid cursor: " + s);
+        }
+        try {
+            return new RecordCursor(Long.parseLong(s.substring(0, dot), 36),
+                    Long.parseLong(s.substring(dot + 1), 36));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cursor: " + s);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ci646.weather.model;
+/**
+ * A callback that receives records one at a time, as primitive values, so that large query
+ * results can be processed (e.g. written to an HTTP response) without building a Record
+ * object per row or a list of all of them.
+ */
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface RecordHandler {
+    /* Handle one record. The timestamp is in milliseconds since the epoch. */
+    void record(long recordID, long locID, long ts, float temperature, float humidity,
+                float windSpeed, float windDirection) throws IOException;
+}
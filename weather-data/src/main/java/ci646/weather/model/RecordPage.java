@@ -0,0 +1,17 @@
+package ci646.weather.model;
+/**
+ * A POJO for one page of records, plus the cursor to pass back to get the page after it
+ * (null when this is the last page).
+ */
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class RecordPage {
+    private List<Record> records;   // The records on this page, ordered by time
+    private String next;            // The cursor for the next page, or null if there isn't one
+}
@@ -0,0 +1,333 @@
+package ci646.weather.model;
+/**
+ * Hourly, daily and monthly rollups of the records table. Each rollup table holds, per location and
+ * bucket, the count, first and last time, and the sum, sum of squared differences from the mean (m2),
+ * min and max of each measurement (wind directions as sums of sines and cosines), so that the aggregate
+ * of any run of whole buckets can be read from a few rows instead of from every record.
+ *
+ * An instance collects the rollups of records as they are inserted, to be applied in the same
+ * transaction. The static methods know where the bucket boundaries fall, in UTC, and how to rebuild
+ * the tables from the records.
+ */
+
+import lombok.extern.slf4j.Slf4j;
+import org.sql2o.Connection;
+import org.sql2o.Query;
+import org.sql2o.Sql2o;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Slf4j
+public class Rollups {
+
+    private static final long HOUR = 3600000;
+    private static final long DAY = 24 * HOUR;
+
+    // The columns of every rollup table after loc_id and bucket, and the matching aggregates of records.
+    // m2 is worked out from each bucket's mean rather than from a sum of squares, which loses most of its
+    // precision when the variance is small next to the mean. Wind directions are summed as unit vectors.
+    private static final String COLUMNS = "n, first_ts, last_ts, " +
+            "sum_temperature, m2_temperature, min_temperature, max_temperature, " +
+            "sum_humidity, m2_humidity, min_humidity, max_humidity, " +
+            "sum_wind_speed, m2_wind_speed, min_wind_speed, max_wind_speed, " +
+            "sin_wind_direction, cos_wind_direction, min_wind_direction, max_wind_direction";
+    private static final String RECORD_AGGREGATES = "count(*), min(ts), max(ts), " +
+            "sum(temperature), sum((temperature - mean_temperature) * (temperature - mean_temperature)), " +
+            "min(temperature), max(temperature), " +
+            "sum(humidity), sum((humidity - mean_humidity) * (humidity - mean_humidity)), " +
+            "min(humidity), max(humidity), " +
+            "sum(wind_speed), sum((wind_speed - mean_wind_speed) * (wind_speed - mean_wind_speed)), " +
+            "min(wind_speed), max(wind_speed), " +
+            "sum(sind(wind_direction)), sum(cosd(wind_direction)), min(wind_direction), max(wind_direction)";
+    private static final String INSERT = "INSERT OR IGNORE INTO %s(loc_id, bucket, " + COLUMNS + ") " +
+            "VALUES (:loc_id, :bucket, :n, :first_ts, :last_ts, " +
+            ":sum_temperature, :m2_temperature, :min_temperature, :max_temperature, " +
+            ":sum_humidity, :m2_humidity, :min_humidity, :max_humidity, " +
+            ":sum_wind_speed, :m2_wind_speed, :min_wind_speed, :max_wind_speed, " +
+            ":sin_wind_direction, :cos_wind_direction, :min_wind_direction, :max_wind_direction)";
+    // The m2s are combined with Chan's formula, as in Totals.add. Every column on the right is the value
+    // from before the update.
+    private static final String UPDATE = "UPDATE %s SET n = n + :n, " +
+            "first_ts = min(first_ts, :first_ts), last_ts = max(last_ts, :last_ts), " +
+            "sum_temperature = sum_temperature + :sum_temperature, " +
+            "m2_temperature = " + chan("temperature") + ", " +
+            "min_temperature = min(min_temperature, :min_temperature), " +
+            "max_temperature = max(max_temperature, :max_temperature), " +
+            "sum_humidity = sum_humidity + :sum_humidity, " +
+            "m2_humidity = " + chan("humidity") + ", " +
+            "min_humidity = min(min_humidity, :min_humidity), max_humidity = max(max_humidity, :max_humidity), " +
+            "sum_wind_speed = sum_wind_speed + :sum_wind_speed, " +
+            "m2_wind_speed = " + chan("wind_speed") + ", " +
+            "min_wind_speed = min(min_wind_speed, :min_wind_speed), " +
+            "max_wind_speed = max(max_wind_speed, :max_wind_speed), " +
+            "sin_wind_direction = sin_wind_direction + :sin_wind_direction, " +
+            "cos_wind_direction = cos_wind_direction + :cos_wind_direction, " +
+            "min_wind_direction = min(min_wind_direction, :min_wind_direction), " +
+            "max_wind_direction = max(max_wind_direction, :max_wind_direction) " +
+            "WHERE loc_id = :loc_id AND bucket = :bucket";
+
+    /**
+     * The SQL for the m2 of a measurement in a bucket combined with the m2 of the records being added.
+     */
+    private static String chan(String column) {
+        String delta = String.format("(:sum_%1$s / :n - sum_%1$s / n)", column);
+        return String.format("m2_%s + :m2_%s + %s * %s * n * :n / (n + :n)", column, column, delta, delta);
+    }
+
+    /**
+     * The name of the rollup table for a bucket size.
+     * @param bucket
+     * @return
+     */
+    public static String table(Aggregate.Bucket bucket) {
+        return "rollup_" + bucket.name().toLowerCase();
+    }
+
+    /**
+     * An SQL expression for the start of the bucket that a record's ts falls in. ts is stored in
+     * epoch millis. Hours and days (in UTC) are fixed lengths, months are not.
+     * @param bucket
+     * @return
+     */
+    public static String bucketSql(Aggregate.Bucket bucket) {
+        switch (bucket) {
+            case HOUR:
+                return "ts / " + HOUR + " * " + HOUR;
+            case DAY:
+                return "ts / " + DAY + " * " + DAY;
+            default:
+                return "strftime('%s', ts / 1000, 'unixepoch', 'start of month') * 1000";
+        }
+    }
+
+    /**
+     * The start of the bucket that a time falls in.
+     * @param bucket
+     * @param ts epoch millis
+     * @return
+     */
+    public static long floor(Aggregate.Bucket bucket, long ts) {
+        switch (bucket) {
+            case HOUR:
+                return Math.floorDiv(ts, HOUR) * HOUR;
+            case DAY:
+                return Math.floorDiv(ts, DAY) * DAY;
+            default:
+                ZonedDateTime t = Instant.ofEpochMilli(ts).atZone(ZoneOffset.UTC);
+                return t.toLocalDate().withDayOfMonth(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * The start of the first bucket that begins at or after a time.
+     * @param bucket
+     * @param ts epoch millis
+     * @return
+     */
+    public static long ceil(Aggregate.Bucket bucket, long ts) {
+        long start = floor(bucket, ts);
+        if (start == ts) {
+            return ts;
+        }
+        switch (bucket) {
+            case HOUR:
+                return start + HOUR;
+            case DAY:
+                return start + DAY;
+            default:
+                return Instant.ofEpochMilli(start).atZone(ZoneOffset.UTC).plusMonths(1).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * Split a time range into the parts that an aggregate query reads: records up to the first whole
+     * hour, whole hours up to the first whole day, whole days up to the first whole month, whole months,
+     * then the same in reverse at the other end. Returns the boundaries p0..p7, where the parts are
+     * [p0, p1), [p1, p2) and so on. A range too short to hold a whole bucket of some size has empty
+     * parts for that size.
+     * @param from epoch millis
+     * @param to epoch millis, inclusive
+     * @return
+     */
+    public static long[] split(long from, long to) {
+        long a = from;
+        long b = Math.max(a, to + 1);
+        long h0 = ceil(Aggregate.Bucket.HOUR, a);
+        long h1 = floor(Aggregate.Bucket.HOUR, b);
+        if (h0 >= h1) {
+            h0 = h1 = b;
+        }
+        long d0 = ceil(Aggregate.Bucket.DAY, h0);
+        long d1 = floor(Aggregate.Bucket.DAY, h1);
+        if (d0 >= d1) {
+            d0 = d1 = h1;
+        }
+        long m0 = ceil(Aggregate.Bucket.MONTH, d0);
+        long m1 = floor(Aggregate.Bucket.MONTH, d1);
+        if (m0 >= m1) {
+            m0 = m1 = d1;
+        }
+        return new long[]{a, h0, d0, m0, m1, d1, h1, b};
+    }
+
+    /**
+     * Split a time range into records up to the first whole bucket, whole buckets, and records after
+     * the last whole bucket. Returns the boundaries p0..p3, as for split(from, to). Neither end crosses
+     * a bucket boundary, so each holds records from one bucket; a range within one bucket is all in the
+     * first part.
+     * @param bucket
+     * @param from epoch millis
+     * @param to epoch millis, inclusive
+     * @return
+     */
+    public static long[] split(Aggregate.Bucket bucket, long from, long to) {
+        long a = from;
+        long b = Math.max(a, to + 1);
+        long c0 = ceil(bucket, a);
+        long c1 = floor(bucket, b);
+        // When c0 == c1 the range crosses one boundary with no whole bucket, so the ends meet there
+        if (c0 > c1) {
+            c0 = c1 = b;
+        }
+        return new long[]{a, c0, c1, b};
+    }
+
+    /**
+     * The SQL to refill a rollup table from the records, replacing what was there. The means and the
+     * first and last time of each bucket are worked out first; then its records, which are the ones at
+     * its location between those times, are read again through the (loc_id, ts) index to sum the
+     * differences from the means.
+     * @param bucket
+     * @return
+     */
+    static String[] rebuildSql(Aggregate.Bucket bucket) {
+        return new String[]{
+                "DELETE FROM " + table(bucket),
+                "INSERT INTO " + table(bucket) + "(loc_id, bucket, " + COLUMNS + ") " +
+                        "SELECT mean_loc_id, mean_bucket, " + RECORD_AGGREGATES + " FROM (" +
+                        "SELECT loc_id AS mean_loc_id, " + bucketSql(bucket) + " AS mean_bucket, " +
+                        "min(ts) AS first_ts, max(ts) AS last_ts, " +
+                        "avg(temperature) AS mean_temperature, avg(humidity) AS mean_humidity, " +
+                        "avg(wind_speed) AS mean_wind_speed FROM records GROUP BY mean_loc_id, mean_bucket" +
+                        ") CROSS JOIN records ON loc_id = mean_loc_id AND ts >= first_ts AND ts <= last_ts " +
+                        "GROUP BY mean_loc_id, mean_bucket"
+        };
+    }
+
+    /**
+     * Recalculate all of the rollup tables from the records, in one transaction. Only needed if the
+     * records have been changed other than through the Model.
+     * @param sql2o
+     */
+    public static void rebuild(Sql2o sql2o) {
+        try (Connection conn = sql2o.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            for (Aggregate.Bucket bucket : Aggregate.Bucket.values()) {
+                for (String sql : rebuildSql(bucket)) {
+                    conn.createQuery(sql).executeUpdate();
+                }
+            }
+            conn.commit();
+        }
+        log.info("Rebuilt rollup tables");
+    }
+
+    /**
+     * The running totals for one location and bucket.
+     */
+    private static class Partial {
+        final long locID;
+        final long bucket;
+        final RecordAggregator totals = new RecordAggregator();
+
+        Partial(long locID, long bucket) {
+            this.locID = locID;
+            this.bucket = bucket;
+        }
+
+        Query bind(Query q) {
+            Totals t = totals.totals(locID, null).orElseThrow();
+            return q.addParameter("loc_id", locID)
+                    .addParameter("bucket", bucket)
+                    .addParameter("n", t.getCount())
+                    .addParameter("first_ts", t.getFirstTs().getTime())
+                    .addParameter("last_ts", t.getLastTs().getTime())
+                    .addParameter("sum_temperature", t.getSumTemperature())
+                    .addParameter("m2_temperature", t.getM2Temperature())
+                    .addParameter("min_temperature", t.getMinTemperature())
+                    .addParameter("max_temperature", t.getMaxTemperature())
+                    .addParameter("sum_humidity", t.getSumHumidity())
+                    .addParameter("m2_humidity", t.getM2Humidity())
+                    .addParameter("min_humidity", t.getMinHumidity())
+                    .addParameter("max_humidity", t.getMaxHumidity())
+                    .addParameter("sum_wind_speed", t.getSumWindSpeed())
+                    .addParameter("m2_wind_speed", t.getM2WindSpeed())
+                    .addParameter("min_wind_speed", t.getMinWindSpeed())
+                    .addParameter("max_wind_speed", t.getMaxWindSpeed())
+                    .addParameter("sin_wind_direction", t.getSinWindDirection())
+                    .addParameter("cos_wind_direction", t.getCosWindDirection())
+                    .addParameter("min_wind_direction", t.getMinWindDirection())
+                    .addParameter("max_wind_direction", t.getMaxWindDirection());
+        }
+    }
+
+    // The totals of the records added so far, per bucket size, keyed by location and bucket start
+    private final Map<Aggregate.Bucket, Map<String, Partial>> partials = new EnumMap<>(Aggregate.Bucket.class);
+
+    public Rollups() {
+        for (Aggregate.Bucket bucket : Aggregate.Bucket.values()) {
+            partials.put(bucket, new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Add a newly inserted record to the totals.
+     * @param rec
+     */
+    public void add(Record rec) {
+        long ts = rec.getDate().getTime();
+        for (Aggregate.Bucket bucket : Aggregate.Bucket.values()) {
+            long start = floor(bucket, ts);
+            partials.get(bucket)
+                    .computeIfAbsent(rec.getLocID() + ":" + start, k -> new Partial(rec.getLocID(), start))
+                    .totals.record(0, rec.getLocID(), ts, rec.getTemperature(), rec.getHumidity(),
+                            rec.getWindSpeed(), rec.getWindDirection());
+        }
+    }
+
+    /**
+     * Add the totals to the rollup tables. Should be called in the transaction that inserted the records.
+     * Buckets that are new are inserted whole; only those that already exist need updating.
+     * @param conn
+     */
+    public void apply(Connection conn) {
+        for (Aggregate.Bucket bucket : Aggregate.Bucket.values()) {
+            Partial[] ps = partials.get(bucket).values().toArray(new Partial[0]);
+            if (ps.length == 0) {
+                continue;
+            }
+            Query insert = conn.createQuery(String.format(INSERT, table(bucket)));
+            for (Partial p : ps) {
+                p.bind(insert).addToBatch();
+            }
+            int[] inserted = insert.executeBatch().getBatchResult();
+            Query update = null;
+            for (int i = 0; i < ps.length; i++) {
+                if (inserted[i] == 0) {
+                    if (update == null) {
+                        update = conn.createQuery(String.format(UPDATE, table(bucket)));
+                    }
+                    ps[i].bind(update).addToBatch();
+                }
+            }
+            if (update != null) {
+                update.executeBatch();
+            }
+            partials.get(bucket).clear();
+        }
+    }
+}
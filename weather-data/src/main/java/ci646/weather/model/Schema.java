@@ -0,0 +1,233 @@
+package ci646.weather.model;
+/**
+ * Creates and upgrades the DB schema in place. The schema version is kept in SQLite's user_version
+ * pragma and each migration moves it up by one, so an existing DB keeps its data and only has the
+ * missing steps applied. New migrations go on the end of MIGRATIONS; existing ones must never change.
+ *
+ * Also checks that the queries in Sql2oModel are answered from an index rather than a table scan.
+ */
+
+import lombok.extern.slf4j.Slf4j;
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sql2o.data.Row;
+import org.sql2o.data.Table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+@Slf4j
+public class Schema {
+
+    // MIGRATIONS[i] takes the schema from version i to version i+1
+    private static final String[][] MIGRATIONS = {
+            // 1: the original tables
+            {
+                    "CREATE TABLE IF NOT EXISTS locations ( loc_id INTEGER PRIMARY KEY, " +
+                            "name VARCHAR(200) NOT NULL, " +
+                            "lat REAL NOT NULL, " +
+                            "lon REAL NOT NULL, " +
+                            "asl REAL NOT NULL )",
+                    "CREATE TABLE IF NOT EXISTS records ( record_id INTEGER PRIMARY KEY, " +
+                            "loc_id INTEGER NOT NULL, " +
+                            "ts TIMESTAMP NOT NULL, " +
+                            "temperature REAL NOT NULL, " +
+                            "humidity REAL NOT NULL, " +
+                            "wind_direction REAL NOT NULL, " +
+                            "wind_speed REAL NOT NULL, " +
+                            "FOREIGN KEY(loc_id) REFERENCES locations(loc_id) )"
+            },
+            // 2: at most one record per location and time. The unique index is also the (loc_id, ts)
+            // index used by every per-location query. Older loaders could create duplicates, so keep
+            // the first of each before adding it.
+            {
+                    "DELETE FROM records WHERE record_id NOT IN " +
+                            "(SELECT min(record_id) FROM records GROUP BY loc_id, ts)",
+                    "CREATE UNIQUE INDEX IF NOT EXISTS records_loc_ts ON records(loc_id, ts)"
+            },
+            // 3: time-ordered paging over all locations
+            {
+                    "CREATE INDEX IF NOT EXISTS records_ts ON records(ts)"
+            },
+            // 4: hourly, daily and monthly rollups of the existing records. Now built by migration 7.
+            {},
+            // 5: sums of squares and wind direction vectors in the rollups. Now built by migration 7.
+            {},
+            // 6: partition files dropped by PartitionedModel, so that record versions keep going up
+            {
+                    "CREATE TABLE IF NOT EXISTS dropped_partitions ( name TEXT NOT NULL, " +
+                            "max_record_id INTEGER NOT NULL, " +
+                            "dropped_at TIMESTAMP NOT NULL )"
+            },
+            // 7: the sum of squared differences from each bucket's mean in the rollups, in place of the
+            // sum of squares. Drops any rollups built by earlier versions of migrations 4 and 5.
+            concat(rollupV7("rollup_hour", "ts / 3600000 * 3600000"),
+                    rollupV7("rollup_day", "ts / 86400000 * 86400000"),
+                    rollupV7("rollup_month", "strftime('%s', ts / 1000, 'unixepoch', 'start of month') * 1000")),
+            // 8: the largest record ID at a location, read from the end of this index, is its records version
+            {
+                    "CREATE INDEX IF NOT EXISTS records_loc_id ON records(loc_id, record_id)"
+            },
+            // 9: records copied into partitions by PartitionedModel, which then deletes them from here
+            {
+                    "CREATE TABLE IF NOT EXISTS partition_imports ( copied INTEGER NOT NULL, " +
+                            "skipped INTEGER NOT NULL, " +
+                            "finished_at TIMESTAMP NOT NULL )"
+            }
+    };
+
+    // Holds every record column, so range queries can be answered from the index alone
+    private static final String COVERING_INDEX = "records_loc_ts_cover";
+
+    /**
+     * The SQL of migration 7 for one rollup table: replace it with one in the current shape and fill it
+     * from the records. Kept as written, rather than taken from Rollups, so the migration never changes.
+     * @param table  the rollup table
+     * @param bucket an SQL expression for the start of the bucket that a record's ts falls in
+     * @return
+     */
+    private static String[] rollupV7(String table, String bucket) {
+        return new String[]{
+                "DROP TABLE IF EXISTS " + table,
+                "CREATE TABLE " + table + " ( loc_id INTEGER NOT NULL, " +
+                        "bucket INTEGER NOT NULL, n INTEGER NOT NULL, first_ts INTEGER NOT NULL, " +
+                        "last_ts INTEGER NOT NULL, " +
+                        "sum_temperature REAL NOT NULL, m2_temperature REAL NOT NULL, " +
+                        "min_temperature REAL NOT NULL, max_temperature REAL NOT NULL, " +
+                        "sum_humidity REAL NOT NULL, m2_humidity REAL NOT NULL, " +
+                        "min_humidity REAL NOT NULL, max_humidity REAL NOT NULL, " +
+                        "sum_wind_speed REAL NOT NULL, m2_wind_speed REAL NOT NULL, " +
+                        "min_wind_speed REAL NOT NULL, max_wind_speed REAL NOT NULL, " +
+                        "sin_wind_direction REAL NOT NULL, cos_wind_direction REAL NOT NULL, " +
+                        "min_wind_direction REAL NOT NULL, max_wind_direction REAL NOT NULL, " +
+                        "PRIMARY KEY (loc_id, bucket) )",
+                "INSERT INTO " + table + "(loc_id, bucket, n, first_ts, last_ts, " +
+                        "sum_temperature, m2_temperature, min_temperature, max_temperature, " +
+                        "sum_humidity, m2_humidity, min_humidity, max_humidity, " +
+                        "sum_wind_speed, m2_wind_speed, min_wind_speed, max_wind_speed, " +
+                        "sin_wind_direction, cos_wind_direction, min_wind_direction, max_wind_direction) " +
+                        "SELECT mean_loc_id, mean_bucket, count(*), min(ts), max(ts), " +
+                        "sum(temperature), " +
+                        "sum((temperature - mean_temperature) * (temperature - mean_temperature)), " +
+                        "min(temperature), max(temperature), " +
+                        "sum(humidity), sum((humidity - mean_humidity) * (humidity - mean_humidity)), " +
+                        "min(humidity), max(humidity), " +
+                        "sum(wind_speed), " +
+                        "sum((wind_speed - mean_wind_speed) * (wind_speed - mean_wind_speed)), " +
+                        "min(wind_speed), max(wind_speed), " +
+                        "sum(sind(wind_direction)), sum(cosd(wind_direction)), " +
+                        "min(wind_direction), max(wind_direction) FROM (" +
+                        "SELECT loc_id AS mean_loc_id, " + bucket + " AS mean_bucket, " +
+                        "min(ts) AS first_ts, max(ts) AS last_ts, " +
+                        "avg(temperature) AS mean_temperature, avg(humidity) AS mean_humidity, " +
+                        "avg(wind_speed) AS mean_wind_speed FROM records GROUP BY mean_loc_id, mean_bucket" +
+                        ") CROSS JOIN records ON loc_id = mean_loc_id AND ts >= first_ts AND ts <= last_ts " +
+                        "GROUP BY mean_loc_id, mean_bucket"
+        };
+    }
+
+    private static String[] concat(String[]... parts) {
+        List<String> sql = new ArrayList<>();
+        for (String[] part : parts) {
+            sql.addAll(Arrays.asList(part));
+        }
+        return sql.toArray(new String[0]);
+    }
+
+    /**
+     * Apply any migrations the DB hasn't had yet, each in its own transaction. Returns the new version.
+     * @param sql2o
+     * @return
+     */
+    public static int migrate(Sql2o sql2o) {
+        int version;
+        try (Connection conn = sql2o.open()) {
+            version = conn.createQuery("PRAGMA user_version").executeScalar(Integer.class);
+        }
+        if (version > MIGRATIONS.length) {
+            throw new IllegalStateException("DB schema version " + version +
+                    " is newer than this code supports (" + MIGRATIONS.length + ")");
+        }
+        for (int v = version; v < MIGRATIONS.length; v++) {
+            try (Connection conn = sql2o.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+                for (String sql : MIGRATIONS[v]) {
+                    conn.createQuery(sql).executeUpdate();
+                }
+                // PRAGMA doesn't take bound parameters
+                conn.createQuery("PRAGMA user_version = " + (v + 1)).executeUpdate();
+                conn.commit();
+            }
+            log.info("Migrated DB schema to version " + (v + 1));
+        }
+        return MIGRATIONS.length;
+    }
+
+    /**
+     * Create or drop the optional covering index on records. It makes range queries cheaper, at the
+     * cost of roughly doubling the size of the records table and the work done by each insert.
+     * @param sql2o
+     * @param enabled
+     */
+    public static void setCoveringIndex(Sql2o sql2o, boolean enabled) {
+        try (Connection conn = sql2o.open()) {
+            if (enabled) {
+                conn.createQuery("CREATE INDEX IF NOT EXISTS " + COVERING_INDEX + " ON records(loc_id, ts, " +
+                        "record_id, temperature, humidity, wind_speed, wind_direction)").executeUpdate();
+            } else {
+                conn.createQuery("DROP INDEX IF EXISTS " + COVERING_INDEX).executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Ask SQLite how it would run each of the queries in Sql2oModel.indexedQueries() and fail if any
+     * of them would scan a whole table.
+     * @param sql2o
+     * @throws IllegalStateException naming the queries that would scan
+     */
+    public static void checkQueryPlans(Sql2o sql2o) {
+        List<String> scans = new ArrayList<>();
+        try (Connection conn = sql2o.open()) {
+            for (Map.Entry<String, String> q : Sql2oModel.indexedQueries().entrySet()) {
+                // Unbound parameters are NULL, which is fine for planning
+                Table plan = conn.createQuery("EXPLAIN QUERY PLAN " + q.getValue())
+                        .executeAndFetchTable();
+                // The detail is the last column; older versions of SQLite have fewer columns
+                int detailColumn = plan.columns().size() - 1;
+                for (Row step : plan.rows()) {
+                    String detail = step.getString(detailColumn);
+                    if (isScan(detail)) {
+                        scans.add(q.getKey() + ": " + detail);
+                    }
+                }
+            }
+        }
+        if (!scans.isEmpty()) {
+            throw new IllegalStateException("Queries that would scan a whole table: " + scans);
+        }
+        log.info("Query plans OK");
+    }
+
+    /**
+     * Whether a line of EXPLAIN QUERY PLAN output is a full scan of a table. Newer versions of SQLite
+     * say "SCAN records" (possibly "USING INDEX", which is still a full scan of that index); older ones
+     * say "TABLE records" and only mention an index or key when one is used for the lookup. Reading the
+     * rows of a subquery in FROM is not a table scan: older versions show it as a TABLE with no name,
+     * newer ones as a SCAN of a subquery.
+     * @param detail
+     * @return
+     */
+    private static boolean isScan(String detail) {
+        String d = detail.toUpperCase().trim();
+        if (d.contains("SUBQUERY") || d.equals("TABLE") || d.startsWith("TABLE  ")) {
+            return false;
+        }
+        if (d.startsWith("SCAN")) {
+            return true;
+        }
+        return d.startsWith("TABLE") && !d.contains("INDEX") && !d.contains("PRIMARY KEY")
+                && !d.contains("ROWID");
+    }
+}
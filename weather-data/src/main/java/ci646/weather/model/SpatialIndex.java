@@ -0,0 +1,206 @@
+package ci646.weather.model;
+/**
+ * An in-memory grid index of locations by latitude and longitude, for finding the locations near a
+ * point or in an area without reading every location. The globe is divided into cells of CELL degrees
+ * on each side, and each cell holds the locations in it, so a query only looks at the cells that
+ * overlap its area and then checks the exact distance or bounds of the locations in them.
+ *
+ * Distances are great-circle distances in kilometres on a sphere the size of the Earth. Boxes whose
+ * west edge is east of their east edge cross the 180th meridian.
+ *
+ * Locations can be added at any time; queries and additions are serialized with a read-write lock.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class SpatialIndex {
+
+    private static final double EARTH_RADIUS = 6371.0088;                  // km, the mean radius
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+    private static final double HALF_CIRCUMFERENCE = Math.PI * EARTH_RADIUS;
+    private static final int CELL = 1;                                      // degrees
+    private static final int LAT_CELLS = 180 / CELL;
+    private static final int LON_CELLS = 360 / CELL;
+    // The first radius tried when looking for the nearest locations, doubled until there are enough
+    private static final double FIRST_RADIUS = 50;
+
+    private final Map<Integer, List<Location>> cells = new HashMap<>();
+    private final Set<Long> ids = new HashSet<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Add a location, which must already have its ID. Adding the same location again does nothing.
+     * @param loc
+     */
+    public void add(Location loc) {
+        lock.writeLock().lock();
+        try {
+            if (ids.add(loc.getLocID())) {
+                cells.computeIfAbsent(cell(latCell(loc.getLat()), lonCell(loc.getLon())), k -> new ArrayList<>())
+                        .add(loc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The k locations nearest to a point, nearest first. Looks within a small radius first, then
+     * doubles it until at least k locations are found or the radius covers the whole globe.
+     * @param lat
+     * @param lon
+     * @param k
+     * @return
+     */
+    public List<Location> near(double lat, double lon, int k) {
+        lock.readLock().lock();
+        try {
+            int n = Math.min(k, ids.size());
+            double radius = FIRST_RADIUS;
+            List<Location> found = within(lat, lon, radius);
+            while (found.size() < n && radius < HALF_CIRCUMFERENCE) {
+                radius *= 2;
+                found = within(lat, lon, radius);
+            }
+            return found.size() > n ? new ArrayList<>(found.subList(0, n)) : found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The locations within a distance of a point, nearest first.
+     * @param lat
+     * @param lon
+     * @param km
+     * @return
+     */
+    public List<Location> within(double lat, double lon, double km) {
+        double dLat = km / KM_PER_DEGREE;
+        double minLat = lat - dLat;
+        double maxLat = lat + dLat;
+        // The circle is widest in longitude at its edge furthest from the equator. If that edge is at or
+        // beyond a pole, the circle takes in every longitude.
+        double widest = Math.max(Math.abs(minLat), Math.abs(maxLat));
+        double minLon = -180;
+        double maxLon = 180;
+        if (widest < 90) {
+            double dLon = dLat / Math.cos(Math.toRadians(widest));
+            if (dLon < 180) {
+                minLon = lon - dLon;
+                maxLon = lon + dLon;
+            }
+        }
+        List<Location> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Location l : candidates(minLat, minLon, maxLat, maxLon)) {
+                if (distance(lat, lon, l.getLat(), l.getLon()) <= km) {
+                    result.add(l);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        result.sort(Comparator.comparingDouble(l -> distance(lat, lon, l.getLat(), l.getLon())));
+        return result;
+    }
+
+    /**
+     * The locations in a box, in no particular order. If minLon is greater than maxLon the box crosses
+     * the 180th meridian.
+     * @param minLat the south edge
+     * @param minLon the west edge
+     * @param maxLat the north edge
+     * @param maxLon the east edge
+     * @return
+     */
+    public List<Location> inBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<Location> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Location l : candidates(minLat, minLon, maxLat, maxLon)) {
+                boolean inLon = minLon <= maxLon
+                        ? l.getLon() >= minLon && l.getLon() <= maxLon
+                        : l.getLon() >= minLon || l.getLon() <= maxLon;
+                if (inLon && l.getLat() >= minLat && l.getLat() <= maxLat) {
+                    result.add(l);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * The locations in the cells that overlap a box, which may extend past the poles or the 180th
+     * meridian. Must be called with the read lock held.
+     */
+    private List<Location> candidates(double minLat, double minLon, double maxLat, double maxLon) {
+        List<Location> result = new ArrayList<>();
+        int fromLat = latCell(Math.max(minLat, -90));
+        int toLat = latCell(Math.min(maxLat, 90));
+        // A box crossing the 180th meridian is treated as one running on past it
+        double east = minLon <= maxLon ? maxLon : maxLon + 360;
+        int width = (int) Math.min(LON_CELLS, Math.floor(east / CELL) - Math.floor(minLon / CELL) + 1);
+        int fromLon = lonCell(minLon);
+        for (int la = fromLat; la <= toLat; la++) {
+            for (int i = 0; i < width; i++) {
+                List<Location> ls = cells.get(cell(la, (fromLon + i) % LON_CELLS));
+                if (ls != null) {
+                    result.addAll(ls);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int latCell(double lat) {
+        return Math.min(LAT_CELLS - 1, (int) Math.floor((lat + 90) / CELL));
+    }
+
+    /**
+     * The cell column of a longitude, wrapped into [-180, 180).
+     */
+    private static int lonCell(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / CELL), LON_CELLS);
+    }
+
+    private static int cell(int latCell, int lonCell) {
+        return latCell * LON_CELLS + lonCell;
+    }
+
+    /**
+     * The great-circle distance between two points in km, by the haversine formula.
+     * @param lat1
+     * @param lon1
+     * @param lat2
+     * @param lon2
+     * @return
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
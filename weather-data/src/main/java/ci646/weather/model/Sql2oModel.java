@@ -3,21 +3,188 @@ package ci646.weather.model;
  * The Object-Relational Mapping, using the Sql2o framework. Written for an SQLite database.
  */
 
+import ci646.weather.metrics.Histogram;
+import ci646.weather.metrics.Metrics;
+import lombok.extern.slf4j.Slf4j;
 import org.sql2o.Connection;
+import org.sql2o.Query;
 import org.sql2o.Sql2o;
+import org.sql2o.Sql2oException;
 
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
+@Slf4j
 public class Sql2oModel implements Model {
 
-    private Sql2o sql2o;
+    /*
+    The SQL used by this class. Records are always selected with the same columns, in the order
+    expected by RecordHandler.
+     */
+    private static final String RECORD_COLUMNS =
+            "SELECT record_id, loc_id, ts, temperature, humidity, wind_speed, wind_direction FROM records ";
+    private static final String INSERT_LOCATION =
+            "INSERT INTO locations(name, lat, lon, asl) VALUES (:name, :lat, :lon, :asl)";
+    private static final String SELECT_LOCATION =
+            "SELECT loc_id, name, lat, lon, asl FROM locations WHERE loc_id = :id";
+    private static final String SELECT_LOCATIONS =
+            "SELECT loc_id, name, lat, lon, asl FROM locations";
+    private static final String SELECT_LOCATIONS_AFTER =
+            "SELECT loc_id, name, lat, lon, asl FROM locations WHERE loc_id > :after";
+    private static final String INSERT_RECORD =
+            "INSERT INTO records(loc_id, ts, temperature, humidity, wind_speed, wind_direction) " +
+                    "VALUES (:locid, :ts, :temp, :hum, :ws, :wd)";
+    private static final String INSERT_RECORD_IF_NEW =
+            "INSERT OR IGNORE INTO records(loc_id, ts, temperature, humidity, wind_speed, wind_direction) " +
+                    "VALUES (:locid, :ts, :temp, :hum, :ws, :wd)";
+    private static final String LAST_INSERT_ID = "SELECT last_insert_rowid()";
+    private static final String SELECT_RECORD = RECORD_COLUMNS + "WHERE record_id = :record_id";
+    private static final String SELECT_RECORD_AT = RECORD_COLUMNS + "WHERE loc_id = :loc_id AND ts = :ts";
+    private static final String SELECT_RECORDS = RECORD_COLUMNS;
+    private static final String SELECT_RECORDS_FOR_LOCATION = RECORD_COLUMNS + "WHERE loc_id = :loc_id";
+    private static final String SELECT_RECORDS_FOR_RANGE =
+            RECORD_COLUMNS + "WHERE loc_id = :loc_id AND ts BETWEEN :from AND :to";
+    private static final String SELECT_RECORDS_PAGE = RECORD_COLUMNS +
+            "WHERE ts >= :ts AND (ts > :ts OR record_id > :record_id) " +
+            "ORDER BY ts, record_id LIMIT :limit";
+    private static final String SELECT_RECORDS_FOR_LOCATION_PAGE = RECORD_COLUMNS +
+            "WHERE loc_id = :loc_id AND ts >= :ts AND (ts > :ts OR record_id > :record_id) " +
+            "ORDER BY ts, record_id LIMIT :limit";
+    private static final String SELECT_RECORDS_FOR_RANGE_PAGE = RECORD_COLUMNS +
+            "WHERE loc_id = :loc_id AND ts >= :from AND ts <= :to AND (ts > :ts OR record_id > :record_id) " +
+            "ORDER BY ts, record_id LIMIT :limit";
+    /*
+    Aggregates are calculated from the rollup tables, and from the records in the parts of a range that
+    don't fill a whole bucket. Each rollup row, and each part's records, give one row of Totals, and the
+    rows are combined with Totals.add: adding up sums of squares instead loses most of their precision
+    when the variance is small next to the mean. A part's m2 is summed from the differences from its mean,
+    which a subquery works out first.
+     */
+    private static final String ROLLUP_COLUMNS = "SELECT loc_id, bucket, n, first_ts AS firstTs, " +
+            "last_ts AS lastTs, sum_temperature AS sumTemperature, m2_temperature AS m2Temperature, " +
+            "min_temperature AS minTemperature, max_temperature AS maxTemperature, " +
+            "sum_humidity AS sumHumidity, m2_humidity AS m2Humidity, " +
+            "min_humidity AS minHumidity, max_humidity AS maxHumidity, " +
+            "sum_wind_speed AS sumWindSpeed, m2_wind_speed AS m2WindSpeed, " +
+            "min_wind_speed AS minWindSpeed, max_wind_speed AS maxWindSpeed, " +
+            "sin_wind_direction AS sinWindDirection, cos_wind_direction AS cosWindDirection, " +
+            "min_wind_direction AS minWindDirection, max_wind_direction AS maxWindDirection ";
+    private static final String ROLLUP_ROWS = ROLLUP_COLUMNS +
+            "FROM %s WHERE loc_id = :loc_id AND bucket >= :%s AND bucket < :%s";
+    // The parts a range is split into for a bucket size never cross a bucket boundary (see Rollups.split),
+    // so the bucket of any of a part's records will do. Otherwise the bucket is NULL.
+    private static final String RECORD_ROWS = "SELECT loc_id, %1$s AS bucket, count(*) AS n, " +
+            "min(ts) AS firstTs, max(ts) AS lastTs, sum(temperature) AS sumTemperature, " +
+            "sum((temperature - mean_temperature) * (temperature - mean_temperature)) AS m2Temperature, " +
+            "min(temperature) AS minTemperature, max(temperature) AS maxTemperature, " +
+            "sum(humidity) AS sumHumidity, " +
+            "sum((humidity - mean_humidity) * (humidity - mean_humidity)) AS m2Humidity, " +
+            "min(humidity) AS minHumidity, max(humidity) AS maxHumidity, " +
+            "sum(wind_speed) AS sumWindSpeed, " +
+            "sum((wind_speed - mean_wind_speed) * (wind_speed - mean_wind_speed)) AS m2WindSpeed, " +
+            "min(wind_speed) AS minWindSpeed, max(wind_speed) AS maxWindSpeed, " +
+            "sum(sind(wind_direction)) AS sinWindDirection, sum(cosd(wind_direction)) AS cosWindDirection, " +
+            "min(wind_direction) AS minWindDirection, max(wind_direction) AS maxWindDirection " +
+            "FROM records, (SELECT avg(temperature) AS mean_temperature, avg(humidity) AS mean_humidity, " +
+            "avg(wind_speed) AS mean_wind_speed FROM records " +
+            "WHERE loc_id = :loc_id AND ts >= :%2$s AND ts < :%3$s) " +
+            "WHERE loc_id = :loc_id AND ts >= :%2$s AND ts < :%3$s GROUP BY loc_id";
+    // Every record is in exactly one month
+    private static final String SELECT_AGGREGATE_ALL = ROLLUP_COLUMNS + "FROM " +
+            Rollups.table(Aggregate.Bucket.MONTH) + " WHERE loc_id = :loc_id";
+    // A range is split at bucket boundaries (see Rollups.split) into raw records at each end, then whole
+    // hours, whole days and whole months in the middle. Any of the parts can be empty.
+    private static final String SELECT_AGGREGATE =
+            String.format(RECORD_ROWS, "NULL", "p0", "p1") + " UNION ALL " +
+            String.format(ROLLUP_ROWS, Rollups.table(Aggregate.Bucket.HOUR), "p1", "p2") + " UNION ALL " +
+            String.format(ROLLUP_ROWS, Rollups.table(Aggregate.Bucket.DAY), "p2", "p3") + " UNION ALL " +
+            String.format(ROLLUP_ROWS, Rollups.table(Aggregate.Bucket.MONTH), "p3", "p4") + " UNION ALL " +
+            String.format(ROLLUP_ROWS, Rollups.table(Aggregate.Bucket.DAY), "p4", "p5") + " UNION ALL " +
+            String.format(ROLLUP_ROWS, Rollups.table(Aggregate.Bucket.HOUR), "p5", "p6") + " UNION ALL " +
+            String.format(RECORD_ROWS, "NULL", "p6", "p7");
+    // Locations and records are only ever added, and each new one gets a larger ID than any before it, so
+    // the largest ID only goes up. The one for a location is found from the end of the records_loc_id index.
+    private static final String SELECT_LOCATIONS_VERSION = "SELECT coalesce(max(loc_id), 0) FROM locations";
+    private static final String SELECT_RECORDS_VERSION = "SELECT coalesce(max(record_id), 0) FROM records";
+    private static final String SELECT_RECORDS_VERSION_FOR_LOCATION =
+            "SELECT coalesce((SELECT max(record_id) FROM records WHERE loc_id = :loc_id), 0)";
+    // Streams are read a chunk at a time, each chunk starting after the last (ts, record_id) of the one
+    // before, so the connection can go back to the pool while a chunk is written to a slow client. The
+    // last four parameters are always the cursor's ts (twice) and record_id, and the chunk size.
+    private static final int STREAM_CHUNK = 4096;
+    private static final String STREAM_RECORDS = RECORD_COLUMNS +
+            "WHERE ts >= ? AND (ts > ? OR record_id > ?) ORDER BY ts, record_id LIMIT ?";
+    private static final String STREAM_RECORDS_FOR_LOCATION = RECORD_COLUMNS +
+            "WHERE loc_id = ? AND ts >= ? AND (ts > ? OR record_id > ?) ORDER BY ts, record_id LIMIT ?";
+    private static final String STREAM_RECORDS_FOR_RANGE = RECORD_COLUMNS +
+            "WHERE loc_id = ? AND ts <= ? AND ts >= ? AND (ts > ? OR record_id > ?) ORDER BY ts, record_id LIMIT ?";
+
+    /**
+     * The queries that are expected to be answered from an index, by name, for Schema.checkQueryPlans.
+     * Listing every location or every record is a scan by design, so those are left out.
+     * @return
+     */
+    public static Map<String, String> indexedQueries() {
+        Map<String, String> queries = new LinkedHashMap<>();
+        queries.put("getLocation", SELECT_LOCATION);
+        queries.put("indexLocations", SELECT_LOCATIONS_AFTER);
+        queries.put("getRecord(id)", SELECT_RECORD);
+        queries.put("getRecord(loc, ts)", SELECT_RECORD_AT);
+        queries.put("getRecords(loc)", SELECT_RECORDS_FOR_LOCATION);
+        queries.put("getRecords(loc, from, to)", SELECT_RECORDS_FOR_RANGE);
+        queries.put("getRecords(after, limit)", SELECT_RECORDS_PAGE);
+        queries.put("getRecords(loc, after, limit)", SELECT_RECORDS_FOR_LOCATION_PAGE);
+        queries.put("getRecords(loc, from, to, after, limit)", SELECT_RECORDS_FOR_RANGE_PAGE);
+        queries.put("streamRecords", STREAM_RECORDS);
+        queries.put("streamRecords(loc)", STREAM_RECORDS_FOR_LOCATION);
+        queries.put("streamRecords(loc, from, to)", STREAM_RECORDS_FOR_RANGE);
+        queries.put("getRecordsVersion(loc)", SELECT_RECORDS_VERSION_FOR_LOCATION);
+        queries.put("getAggregate(loc)", SELECT_AGGREGATE_ALL);
+        queries.put("getAggregate(loc, from, to)", SELECT_AGGREGATE);
+        for (Aggregate.Bucket bucket : Aggregate.Bucket.values()) {
+            queries.put("getAggregates(loc, from, to, " + bucket + ")", aggregatesSql(bucket));
+        }
+        return queries;
+    }
 
+    // The timings of each query, by the same names as indexedQueries
+    private static final Map<String, QueryMetrics> queryMetrics = new ConcurrentHashMap<>();
+
+    private Sql2o reader;   // Used for queries
+    private Sql2o writer;   // Used for inserts -- SQLite only allows one writer at a time
+    private long slowQueryNanos = Long.MAX_VALUE;   // Queries taking longer than this are logged
+    private volatile LocationIndex locationIndex;   // Loaded on first use, then kept up to date
+    private volatile SpatialIndex spatialIndex;     // Loaded just before locationIndex
+    private volatile long indexedUpTo = 0;          // The largest location ID in the indexes
+
+    /**
+     * Use the same Sql2o instance for reading and writing.
+     * @param sql2o
+     */
     public Sql2oModel(Sql2o sql2o) {
-        this.sql2o = sql2o;
+        this(sql2o, sql2o);
+    }
+
+    /**
+     * Use separate Sql2o instances for reading and writing, e.g. the reader and writer
+     * DataSources of an SqlitePool.
+     * @param reader
+     * @param writer
+     */
+    public Sql2oModel(Sql2o reader, Sql2o writer) {
+        this.reader = reader;
+        this.writer = writer;
         // The mapping from column names in the DB to field names in the DAOs.
         // Onle need to be supplied when they differ.
         Map<String, String> colMaps = new HashMap<String,String>();
@@ -26,7 +193,16 @@ public class Sql2oModel implements Model {
         colMaps.put("TS", "date");
         colMaps.put("WIND_SPEED", "windSpeed");
         colMaps.put("WIND_DIRECTION", "windDirection");
-        sql2o.setDefaultColumnMappings(colMaps);
+        reader.setDefaultColumnMappings(colMaps);
+        writer.setDefaultColumnMappings(colMaps);
+    }
+
+    /**
+     * Log every query that takes longer than this, with its SQL.
+     * @param millis
+     */
+    public void setSlowQueryMillis(long millis) {
+        this.slowQueryNanos = millis * 1000000;
     }
 
     /**
@@ -36,17 +212,24 @@ public class Sql2oModel implements Model {
      */
     @Override
     public long putLocation(Location loc) {
-        try (Connection conn = sql2o.open()) {
-            conn.createQuery("INSERT INTO locations(name, lat, lon, asl) " +
-                    "VALUES (:name, :lat, :lon, :asl)")
+        long start = System.nanoTime();
+        try (Connection conn = writer.open()) {
+            conn.createQuery(INSERT_LOCATION)
                     .addParameter("name", loc.getName())
                     .addParameter("lat", loc.getLat())
                     .addParameter("lon", loc.getLon())
                     .addParameter("asl", loc.getAsl())
                     .executeUpdate();
-            return Long.parseLong(conn.createQuery("SELECT last_insert_rowid()")
+            long id = Long.parseLong(conn.createQuery(LAST_INSERT_ID)
                     .executeScalar().toString());
+            observe("putLocation", INSERT_LOCATION, start, 1);
+            loc.setLocID(id);
         }
+        if (locationIndex != null) {
+            // Along with any that other processes have added since
+            indexLocations();
+        }
+        return loc.getLocID();
     }
 
     /**
@@ -56,13 +239,10 @@ public class Sql2oModel implements Model {
      */
     @Override
     public Optional<Location> getLocation(long locationID) {
-        try (Connection conn = sql2o.open()) {
-            List<Location> result = conn.createQuery(
-                    "SELECT loc_id, name, lat, lon, asl " +
-                            "FROM locations " +
-                            "WHERE loc_id = :id")
-                    .addParameter("id", locationID)
-                    .executeAndFetch(Location.class);
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_LOCATION)
+                    .addParameter("id", locationID);
+            List<Location> result = fetch("getLocation", q, Location.class);
             Optional<Location> l = Optional.empty();
             if (result.size() > 0) {
                 l = Optional.of(result.get(0));
@@ -72,22 +252,93 @@ public class Sql2oModel implements Model {
     }
 
     /**
-     * Get all locations whose name matches a search term.
+     * Get all locations whose name contains a search term or is similar to it, best match first, from
+     * the trigram index of location names rather than the DB.
      * @param name
      * @return
      */
     @Override
     public Optional<List<Location>> getLocationsByName(String name) {
-        try (Connection conn = sql2o.open()) {
-            List<Location> result = conn.createQuery(
-                    "SELECT loc_id, name, lat, lon, asl FROM locations WHERE name LIKE :name")
-                    .addParameter("name", "%"+name+"%")
-                    .executeAndFetch(Location.class);
-            Optional<List<Location>> l = Optional.empty();
-            if (result.size() > 0) {
-                l = Optional.of(result);
+        indexLocations();
+        return nonEmpty(locationIndex.search(name));
+    }
+
+    /**
+     * Get the k locations nearest to a point, from the spatial index.
+     * @param lat
+     * @param lon
+     * @param k
+     * @return
+     */
+    @Override
+    public Optional<List<Location>> getLocationsNear(double lat, double lon, int k) {
+        indexLocations();
+        return nonEmpty(spatialIndex.near(lat, lon, k));
+    }
+
+    /**
+     * Get all locations within a distance in km of a point, from the spatial index.
+     * @param lat
+     * @param lon
+     * @param km
+     * @return
+     */
+    @Override
+    public Optional<List<Location>> getLocationsWithin(double lat, double lon, double km) {
+        indexLocations();
+        return nonEmpty(spatialIndex.within(lat, lon, km));
+    }
+
+    /**
+     * Get all locations in a box, from the spatial index.
+     * @param minLat
+     * @param minLon
+     * @param maxLat
+     * @param maxLon
+     * @return
+     */
+    @Override
+    public Optional<List<Location>> getLocationsInBox(double minLat, double minLon, double maxLat, double maxLon) {
+        indexLocations();
+        return nonEmpty(spatialIndex.inBox(minLat, minLon, maxLat, maxLon));
+    }
+
+    private static Optional<List<Location>> nonEmpty(List<Location> result) {
+        return result.isEmpty() ? Optional.empty() : Optional.of(result);
+    }
+
+    /**
+     * Build the indexes of location names and positions from the DB, if that hasn't been done yet, or
+     * add the locations stored since they were last brought up to date, including any stored by other
+     * processes such as the loader. Locations are only ever added, with rising IDs, so any new ones have
+     * IDs above the largest indexed. The service builds the indexes at startup; otherwise it happens the
+     * first time they are needed, rather than when the model is made, since the schema may not exist yet.
+     */
+    public void indexLocations() {
+        if (locationIndex != null && getLocationsVersion() <= indexedUpTo) {
+            return;
+        }
+        synchronized (this) {
+            List<Location> added;
+            try (Connection conn = reader.open()) {
+                Query q = conn.createQuery(SELECT_LOCATIONS_AFTER)
+                        .addParameter("after", indexedUpTo);
+                added = fetch("indexLocations", q, Location.class);
             }
-            return l;
+            LocationIndex names = locationIndex != null ? locationIndex : new LocationIndex();
+            SpatialIndex positions = spatialIndex != null ? spatialIndex : new SpatialIndex();
+            long upTo = indexedUpTo;
+            for (Location l : added) {
+                names.add(l);
+                positions.add(l);
+                upTo = Math.max(upTo, l.getLocID());
+            }
+            if (locationIndex == null) {
+                log.info("Indexed the names and positions of {} locations", names.size());
+            }
+            indexedUpTo = upTo;
+            spatialIndex = positions;
+            locationIndex = names;
         }
     }
 
@@ -97,10 +348,9 @@ public class Sql2oModel implements Model {
      */
     @Override
     public Optional<List<Location>> getLocations() {
-        try (Connection conn = sql2o.open()) {
-            List<Location> result = conn.createQuery(
-                    "SELECT loc_id, name, lat, lon, asl FROM locations")
-                    .executeAndFetch(Location.class);
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_LOCATIONS);
+            List<Location> result = fetch("getLocations", q, Location.class);
             Optional<List<Location>> l = Optional.empty();
             if (result.size() > 0) {
                 l = Optional.of(result);
@@ -110,15 +360,17 @@ public class Sql2oModel implements Model {
     }
 
     /**
-     * Store a new record. Returns the ID of the new record.
+     * Store a new record and add it to the rollups. Returns the ID of the new record.
      * @param rec
      * @return
+     * @throws DuplicateRecordException if the location already has a record at that time
      */
     @Override
     public long putRecord(Record rec) {
-        try (Connection conn = sql2o.open()) {
-            conn.createQuery("INSERT INTO records(loc_id, ts, temperature, humidity, wind_speed, wind_direction) " +
-                    "VALUES (:locid, :ts, :temp, :hum, :ws, :wd)")
+        long start = System.nanoTime();
+        // The record and its rollups are stored together or not at all
+        try (Connection conn = writer.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            conn.createQuery(INSERT_RECORD)
                     .addParameter("locid", rec.getLocID())
                     .addParameter("ts", rec.getDate())
                     .addParameter("temp", rec.getTemperature())
@@ -126,8 +378,65 @@ public class Sql2oModel implements Model {
                     .addParameter("ws", rec.getWindSpeed())
                     .addParameter("wd", rec.getWindDirection())
                     .executeUpdate();
-            return Long.parseLong(conn.createQuery("SELECT last_insert_rowid()")
+            long id = Long.parseLong(conn.createQuery(LAST_INSERT_ID)
+                    .executeScalar().toString());
+            Rollups rollups = new Rollups();
+            rollups.add(rec);
+            rollups.apply(conn);
+            conn.commit();
+            observe("putRecord", INSERT_RECORD, start, 1);
+            return id;
+        } catch (Sql2oException e) {
+            // Checked once the transaction has been rolled back, as the unique index is what rejects it
+            if (getRecord(rec.getLocID(), rec.getDate()).isPresent()) {
+                throw new DuplicateRecordException(rec.getLocID(), rec.getDate(), e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Store a batch of records using a single JDBC batch in one transaction. Records that duplicate
+     * an existing (location, time) are skipped, so reloading the same data is harmless; their ID is
+     * returned as 0. Rowids are allocated one after another by the single writer, so the IDs of the
+     * rows that were inserted are the run ending at the last inserted rowid. The records that were
+     * inserted are added to the rollups in the same transaction.
+     * @param recs
+     * @return
+     */
+    @Override
+    public long[] putRecords(List<Record> recs) {
+        long[] ids = new long[recs.size()];
+        if (recs.isEmpty()) {
+            return ids;
+        }
+        long start = System.nanoTime();
+        // SQLite rejects Sql2o's default isolation level (READ_COMMITTED)
+        try (Connection conn = writer.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            Query insert = conn.createQuery(INSERT_RECORD_IF_NEW);
+            for (Record rec : recs) {
+                insert.addParameter("locid", rec.getLocID())
+                        .addParameter("ts", rec.getDate())
+                        .addParameter("temp", rec.getTemperature())
+                        .addParameter("hum", rec.getHumidity())
+                        .addParameter("ws", rec.getWindSpeed())
+                        .addParameter("wd", rec.getWindDirection())
+                        .addToBatch();
+            }
+            int[] changes = insert.executeBatch().getBatchResult();
+            long next = Long.parseLong(conn.createQuery(LAST_INSERT_ID)
                     .executeScalar().toString());
+            Rollups rollups = new Rollups();
+            for (int i = ids.length - 1; i >= 0; i--) {
+                if (changes[i] > 0) {
+                    ids[i] = next--;
+                    rollups.add(recs.get(i));
+                }
+            }
+            rollups.apply(conn);
+            conn.commit();
+            observe("putRecords", INSERT_RECORD_IF_NEW, start, recs.size());
+            return ids;
         }
     }
 
@@ -138,14 +447,11 @@ public class Sql2oModel implements Model {
      */
     @Override
     public Optional<Record> getRecord(long id) {
-        try (Connection conn = sql2o.open()) {
-            Record result = conn.createQuery(
-                    "SELECT record_id, loc_id, ts, temperature, humidity, wind_speed, wind_direction " +
-                            "FROM records " +
-                            "WHERE record_id = :record_id")
-                    .addParameter("record_id", id)
-                    .executeAndFetchFirst(Record.class);
-            return Optional.of(result);
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORD)
+                    .addParameter("record_id", id);
+            List<Record> result = fetch("getRecord(id)", q, Record.class);
+            return result.stream().findFirst();
         }
     }
 
@@ -157,14 +463,11 @@ public class Sql2oModel implements Model {
      */
     @Override
     public Optional<Record> getRecord(long locationID, Timestamp ts) {
-        try (Connection conn = sql2o.open()) {
-            List<Record> result = conn.createQuery(
-                    "SELECT record_id, loc_id, ts, temperature, humidity, wind_speed, wind_direction " +
-                            "FROM records " +
-                            "WHERE loc_id = :loc_id AND ts = :ts")
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORD_AT)
                     .addParameter("loc_id", locationID)
-                    .addParameter("ts", ts)
-                    .executeAndFetch(Record.class);
+                    .addParameter("ts", ts);
+            List<Record> result = fetch("getRecord(loc, ts)", q, Record.class);
             Optional<Record> l = Optional.empty();
             if (result.size() > 0) {
                 l = Optional.of(result.get(0));
@@ -179,11 +482,9 @@ public class Sql2oModel implements Model {
      */
     @Override
     public Optional<List<Record>> getRecords() {
-        try (Connection conn = sql2o.open()) {
-            List<Record> result = conn.createQuery(
-                    "SELECT record_id, loc_id, ts, temperature, humidity, wind_speed, wind_direction " +
-                            "FROM records ")
-                    .executeAndFetch(Record.class);
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORDS);
+            List<Record> result = fetch("getRecords", q, Record.class);
             Optional<List<Record>> l = Optional.empty();
             if (result.size() > 0) {
                 l = Optional.of(result);
@@ -199,13 +500,10 @@ public class Sql2oModel implements Model {
      */
     @Override
     public Optional<List<Record>> getRecords(long locationID) {
-        try (Connection conn = sql2o.open()) {
-            List<Record> result = conn.createQuery(
-                    "SELECT record_id, loc_id, ts, temperature, humidity, wind_speed, wind_direction " +
-                            "FROM records " +
-                            "WHERE loc_id = :loc_id")
-                    .addParameter("loc_id", locationID)
-                    .executeAndFetch(Record.class);
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORDS_FOR_LOCATION)
+                    .addParameter("loc_id", locationID);
+            List<Record> result = fetch("getRecords(loc)", q, Record.class);
             Optional<List<Record>> l = Optional.empty();
             if (result.size() > 0) {
                 l = Optional.of(result);
@@ -223,15 +521,12 @@ public class Sql2oModel implements Model {
      */
     @Override
     public Optional<List<Record>> getRecords(long locationID, Timestamp from, Timestamp to) {
-        try (Connection conn = sql2o.open()) {
-            List<Record> result = conn.createQuery(
-                    "SELECT record_id, loc_id, ts, temperature, humidity, wind_speed, wind_direction " +
-                            "FROM records " +
-                            "WHERE loc_id = :loc_id AND ts BETWEEN :from AND :to")
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORDS_FOR_RANGE)
                     .addParameter("loc_id", locationID)
                     .addParameter("from", from)
-                    .addParameter("to", to)
-                    .executeAndFetch(Record.class);
+                    .addParameter("to", to);
+            List<Record> result = fetch("getRecords(loc, from, to)", q, Record.class);
             Optional<List<Record>> l = Optional.empty();
             if (result.size() > 0) {
                 l = Optional.of(result);
@@ -239,4 +534,443 @@ public class Sql2oModel implements Model {
             return l;
         }
     }
+
+    /**
+     * Get a page of records, ordered by (ts, record_id), starting after a cursor. Seeking to the
+     * cursor uses the key rather than an OFFSET, so deep pages cost the same as the first.
+     * @param after
+     * @param limit
+     * @return
+     */
+    @Override
+    public RecordPage getRecords(RecordCursor after, int limit) {
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORDS_PAGE)
+                    .addParameter("ts", after.getTs())
+                    .addParameter("record_id", after.getRecordID())
+                    .addParameter("limit", limit + 1);
+            List<Record> result = fetch("getRecords(after, limit)", q, Record.class);
+            return toPage(result, limit);
+        }
+    }
+
+    /**
+     * Get a page of records at a given location, ordered by (ts, record_id), starting after a cursor.
+     * @param locationID
+     * @param after
+     * @param limit
+     * @return
+     */
+    @Override
+    public RecordPage getRecords(long locationID, RecordCursor after, int limit) {
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORDS_FOR_LOCATION_PAGE)
+                    .addParameter("loc_id", locationID)
+                    .addParameter("ts", after.getTs())
+                    .addParameter("record_id", after.getRecordID())
+                    .addParameter("limit", limit + 1);
+            List<Record> result = fetch("getRecords(loc, after, limit)", q, Record.class);
+            return toPage(result, limit);
+        }
+    }
+
+    /**
+     * Get a page of records at a given location within a given time range, ordered by (ts, record_id),
+     * starting after a cursor.
+     * @param locationID
+     * @param from
+     * @param to
+     * @param after
+     * @param limit
+     * @return
+     */
+    @Override
+    public RecordPage getRecords(long locationID, Timestamp from, Timestamp to, RecordCursor after, int limit) {
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORDS_FOR_RANGE_PAGE)
+                    .addParameter("loc_id", locationID)
+                    .addParameter("from", Math.max(from.getTime(), after.getTs()))
+                    .addParameter("to", to.getTime())
+                    .addParameter("ts", after.getTs())
+                    .addParameter("record_id", after.getRecordID())
+                    .addParameter("limit", limit + 1);
+            List<Record> result = fetch("getRecords(loc, from, to, after, limit)", q, Record.class);
+            return toPage(result, limit);
+        }
+    }
+
+    /**
+     * Turn the result of a page query, which asks for one row more than the limit, into a page.
+     * The extra row is only there to show whether there is another page.
+     * @param result
+     * @param limit
+     * @return
+     */
+    private static RecordPage toPage(List<Record> result, int limit) {
+        if (result.size() <= limit) {
+            return new RecordPage(result, null);
+        }
+        List<Record> records = result.subList(0, limit);
+        Record last = records.get(limit - 1);
+        return new RecordPage(records, new RecordCursor(last.getDate().getTime(), last.getRecordID()).encode());
+    }
+
+    /**
+     * Get summary statistics for all records at a given location, from the monthly rollups.
+     * @param locationID
+     * @return
+     */
+    @Override
+    public Optional<Aggregate> getAggregate(long locationID) {
+        return getTotals(locationID).map(Totals::toAggregate);
+    }
+
+    /**
+     * The totals that getAggregate(locationID) is calculated from.
+     * @param locationID
+     * @return
+     */
+    Optional<Totals> getTotals(long locationID) {
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_AGGREGATE_ALL)
+                    .addParameter("loc_id", locationID);
+            return total(fetch("getAggregate(loc)", aggregateMappings(q), Totals.class));
+        }
+    }
+
+    /**
+     * Get summary statistics for the records at a given location within a given time range. Only the
+     * records before the first whole hour and after the last are read; the rest comes from the rollups.
+     * @param locationID
+     * @param from
+     * @param to
+     * @return
+     */
+    @Override
+    public Optional<Aggregate> getAggregate(long locationID, Timestamp from, Timestamp to) {
+        return getTotals(locationID, from, to).map(Totals::toAggregate);
+    }
+
+    /**
+     * The totals that getAggregate(locationID, from, to) is calculated from.
+     * @param locationID
+     * @param from
+     * @param to
+     * @return
+     */
+    Optional<Totals> getTotals(long locationID, Timestamp from, Timestamp to) {
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_AGGREGATE)
+                    .addParameter("loc_id", locationID);
+            long[] bounds = Rollups.split(from.getTime(), to.getTime());
+            for (int i = 0; i < bounds.length; i++) {
+                q.addParameter("p" + i, bounds[i]);
+            }
+            return total(fetch("getAggregate(loc, from, to)", aggregateMappings(q), Totals.class));
+        }
+    }
+
+    /**
+     * Get summary statistics for the records at a given location within a given time range, one per
+     * hour, day or month (in UTC) that has records, in time order. Whole buckets come from the rollups,
+     * and the buckets that the range only partly covers are calculated from the records.
+     * @param locationID
+     * @param from
+     * @param to
+     * @param bucket
+     * @return
+     */
+    @Override
+    public Optional<List<Aggregate>> getAggregates(long locationID, Timestamp from, Timestamp to,
+                                                   Aggregate.Bucket bucket) {
+        List<Aggregate> result = getTotals(locationID, from, to, bucket).stream()
+                .map(Totals::toAggregate)
+                .collect(Collectors.toList());
+        Optional<List<Aggregate>> l = Optional.empty();
+        if (result.size() > 0) {
+            l = Optional.of(result);
+        }
+        return l;
+    }
+
+    /**
+     * The totals that getAggregates(locationID, from, to, bucket) are calculated from, in time order.
+     * @param locationID
+     * @param from
+     * @param to
+     * @param bucket
+     * @return
+     */
+    List<Totals> getTotals(long locationID, Timestamp from, Timestamp to, Aggregate.Bucket bucket) {
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(aggregatesSql(bucket))
+                    .addParameter("loc_id", locationID);
+            long[] bounds = Rollups.split(bucket, from.getTime(), to.getTime());
+            for (int i = 0; i < bounds.length; i++) {
+                q.addParameter("p" + i, bounds[i]);
+            }
+            return totalsByBucket(fetch("getAggregates(loc, from, to, " + bucket + ")", aggregateMappings(q),
+                    Totals.class));
+        }
+    }
+
+    /**
+     * The SQL for an aggregate query grouped by a given bucket size: records in the partial buckets
+     * at each end of the range and rollups for the whole buckets between them.
+     * @param bucket
+     * @return
+     */
+    private static String aggregatesSql(Aggregate.Bucket bucket) {
+        return String.format(RECORD_ROWS, Rollups.bucketSql(bucket), "p0", "p1") + " UNION ALL " +
+                String.format(ROLLUP_ROWS, Rollups.table(bucket), "p1", "p2") + " UNION ALL " +
+                String.format(RECORD_ROWS, Rollups.bucketSql(bucket), "p2", "p3") +
+                " ORDER BY bucket";
+    }
+
+    /**
+     * Combine rows of totals into one.
+     * @param rows
+     * @return the total, or empty if there were no rows
+     */
+    private static Optional<Totals> total(List<Totals> rows) {
+        if (rows.isEmpty()) {
+            return Optional.empty();
+        }
+        Totals total = rows.get(0);
+        for (int i = 1; i < rows.size(); i++) {
+            total.add(rows.get(i));
+        }
+        total.setBucket(null);
+        return Optional.of(total);
+    }
+
+    /**
+     * Combine rows of totals in bucket order into one per bucket.
+     * @param rows
+     * @return
+     */
+    private static List<Totals> totalsByBucket(List<Totals> rows) {
+        List<Totals> result = new ArrayList<>();
+        Totals last = null;
+        for (Totals t : rows) {
+            if (last != null && last.getBucket().equals(t.getBucket())) {
+                last.add(t);
+            } else {
+                result.add(t);
+                last = t;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Map the aggregate column whose name can't be the same as the field name, because it is an
+     * SQL keyword.
+     * @param q
+     * @return
+     */
+    private static Query aggregateMappings(Query q) {
+        return q.addColumnMapping("N", "count");
+    }
+
+    /**
+     * The largest location ID, which changes whenever a location is added.
+     * @return
+     */
+    @Override
+    public long getLocationsVersion() {
+        try (Connection conn = reader.open()) {
+            return scalar("getLocationsVersion", conn.createQuery(SELECT_LOCATIONS_VERSION));
+        }
+    }
+
+    /**
+     * The largest record ID, which changes whenever a record is added.
+     * @return
+     */
+    @Override
+    public long getRecordsVersion() {
+        try (Connection conn = reader.open()) {
+            return scalar("getRecordsVersion", conn.createQuery(SELECT_RECORDS_VERSION));
+        }
+    }
+
+    /**
+     * The largest record ID at a location, which goes up whenever a record is added there.
+     * @param locationID
+     * @return
+     */
+    @Override
+    public long getRecordsVersion(long locationID) {
+        try (Connection conn = reader.open()) {
+            Query q = conn.createQuery(SELECT_RECORDS_VERSION_FOR_LOCATION)
+                    .addParameter("loc_id", locationID);
+            return scalar("getRecordsVersion(loc)", q);
+        }
+    }
+
+    /**
+     * Pass all records to a handler, one row at a time, in time order.
+     * @param handler
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long streamRecords(RecordHandler handler) throws IOException {
+        return stream("streamRecords", STREAM_RECORDS, handler, Long.MIN_VALUE);
+    }
+
+    /**
+     * Pass all records at a given location to a handler, one row at a time, in time order.
+     * @param locationID
+     * @param handler
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long streamRecords(long locationID, RecordHandler handler) throws IOException {
+        return stream("streamRecords(loc)", STREAM_RECORDS_FOR_LOCATION, handler, Long.MIN_VALUE, locationID);
+    }
+
+    /**
+     * Pass all records at a given location within a given time range to a handler, one row at a time,
+     * in time order.
+     * @param locationID
+     * @param from
+     * @param to
+     * @param handler
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long streamRecords(long locationID, Timestamp from, Timestamp to, RecordHandler handler)
+            throws IOException {
+        return stream("streamRecords(loc, from, to)", STREAM_RECORDS_FOR_RANGE, handler, from.getTime(),
+                locationID, to.getTime());
+    }
+
+    /**
+     * Run a records query a chunk at a time, passing each row to the handler. Each chunk is read into a
+     * buffer and the connection given back before the rows are passed on, so a handler writing to a slow
+     * client doesn't hold a reader connection. This goes straight to JDBC rather than through Sql2o's
+     * object mapping so that nothing is allocated per row. Only the time spent reading is recorded as the
+     * query's duration.
+     * @param name the query's name in the metrics
+     * @param sql a query selecting the record columns in the order expected by RecordHandler, ending
+     *            with the cursor and chunk size parameters
+     * @param handler
+     * @param from the earliest time to include, in ms since the epoch
+     * @param params the parameters before the cursor
+     * @return the number of rows
+     * @throws IOException
+     */
+    private long stream(String name, String sql, RecordHandler handler, long from, Object... params)
+            throws IOException {
+        RecordBuffer chunk = new RecordBuffer(STREAM_CHUNK);
+        long afterTs = from;
+        long afterID = Long.MIN_VALUE;
+        long nanos = 0;
+        long n = 0;
+        do {
+            long start = System.nanoTime();
+            chunk.clear();
+            try (Connection conn = reader.open();
+                 PreparedStatement ps = conn.getJdbcConnection().prepareStatement(sql)) {
+                int i = 1;
+                for (Object param : params) {
+                    ps.setObject(i++, param);
+                }
+                ps.setLong(i++, afterTs);
+                ps.setLong(i++, afterTs);
+                ps.setLong(i++, afterID);
+                ps.setInt(i, STREAM_CHUNK);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        chunk.record(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getFloat(4),
+                                rs.getFloat(5), rs.getFloat(6), rs.getFloat(7));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new Sql2oException("Error streaming records: " + e.getMessage(), e);
+            }
+            nanos += System.nanoTime() - start;
+            n += chunk.replay(handler);
+            if (chunk.size() > 0) {
+                afterTs = chunk.lastTs();
+                afterID = chunk.lastRecordID();
+            }
+        } while (chunk.size() == STREAM_CHUNK);
+        record(name, sql, nanos, n);
+        return n;
+    }
+
+    /**
+     * Run a query, recording how long it took and how many rows it returned.
+     * @param name the query's name in the metrics
+     * @param q
+     * @param type
+     * @param <T>
+     * @return
+     */
+    private <T> List<T> fetch(String name, Query q, Class<T> type) {
+        long start = System.nanoTime();
+        List<T> result = q.executeAndFetch(type);
+        observe(name, q.toString(), start, result.size());
+        return result;
+    }
+
+    /**
+     * Run a query for a single number, recording how long it took.
+     * @param name the query's name in the metrics
+     * @param q
+     * @return
+     */
+    private long scalar(String name, Query q) {
+        long start = System.nanoTime();
+        long result = Long.parseLong(q.executeScalar().toString());
+        observe(name, q.toString(), start, 1);
+        return result;
+    }
+
+    /**
+     * Record how long a query took and how many rows it returned or wrote, and log it if it was slow.
+     * @param name
+     * @param sql
+     * @param start when the query started, from System.nanoTime()
+     * @param rows
+     */
+    private void observe(String name, String sql, long start, long rows) {
+        record(name, sql, System.nanoTime() - start, rows);
+    }
+
+    /**
+     * Record how long a query took and how many rows it returned or wrote, and log it if it was slow.
+     * @param name
+     * @param sql
+     * @param nanos how long it took
+     * @param rows
+     */
+    private void record(String name, String sql, long nanos, long rows) {
+        QueryMetrics m = queryMetrics.computeIfAbsent(name, QueryMetrics::new);
+        m.duration.record(nanos);
+        m.rows.record(rows);
+        if (nanos > slowQueryNanos) {
+            log.warn(String.format("Slow query %s took %.1fms for %d rows: %s", name, nanos / 1e6, rows, sql));
+        }
+    }
+
+    /**
+     * The histograms for one query.
+     */
+    private static class QueryMetrics {
+        final Histogram duration;
+        final Histogram rows;
+
+        QueryMetrics(String name) {
+            duration = Metrics.histogram("db_query_duration_seconds",
+                    "Time to run a query and read its results, by query.", Metrics.NANOS, "query", name);
+            rows = Metrics.histogram("db_query_rows",
+                    "Rows returned or written by a query, by query.", Metrics.UNITS, "query", name);
+        }
+    }
 }
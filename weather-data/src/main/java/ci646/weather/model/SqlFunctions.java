@@ -0,0 +1,34 @@
+package ci646.weather.model;
+/**
+ * Functions that SQL run on our connections can use but this version of SQLite doesn't have built in.
+ * Registered on every connection by SqlitePool.
+ */
+
+import org.sqlite.Function;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+public class SqlFunctions {
+
+    /**
+     * Register the functions on a connection.
+     * @param conn a connection from the SQLite driver
+     * @throws SQLException
+     */
+    public static void register(Connection conn) throws SQLException {
+        // sin(degrees) and cos(degrees), used to sum wind directions as vectors
+        Function.create(conn, "sind", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                result(Math.sin(Math.toRadians(value_double(0))));
+            }
+        });
+        Function.create(conn, "cosd", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                result(Math.cos(Math.toRadians(value_double(0))));
+            }
+        });
+    }
+}
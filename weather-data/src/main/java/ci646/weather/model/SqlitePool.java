@@ -0,0 +1,405 @@
+package ci646.weather.model;
+/**
+ * A small, fixed-size pool of long-lived SQLite connections. SQLite only allows one writer at a time,
+ * so the pool hands out a single writer connection and a configurable number of reader connections,
+ * each exposed as a DataSource that can be given to Sql2o. The database is put into WAL mode so that
+ * readers are not blocked by the writer.
+ *
+ * Each pooled connection keeps a cache of the statements prepared on it, keyed on the SQL text. Sql2o
+ * prepares a new statement for every query and closes it afterwards; with the pool in place "closing"
+ * a statement just resets it so that the next query with the same SQL skips SQLite's parse/plan step.
+ * Likewise, closing a pooled connection returns it to the pool rather than closing the file.
+ */
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+@Slf4j
+public class SqlitePool implements AutoCloseable {
+
+    private final Lane writer;
+    private final Lane readers;
+
+    /**
+     * Open the writer connection and the reader connections.
+     * @param url                the JDBC connection string, e.g. jdbc:sqlite:weather.db
+     * @param readers            the number of reader connections
+     * @param acquireTimeout     how long (ms) to wait for a free connection before giving up
+     * @param statementCacheSize the number of prepared statements cached per connection
+     * @param journalMode        the SQLite journal mode, normally WAL
+     * @param synchronous        the SQLite synchronous setting, normally NORMAL when using WAL
+     * @throws SQLException
+     */
+    public SqlitePool(String url, int readers, long acquireTimeout, int statementCacheSize,
+                      String journalMode, String synchronous) throws SQLException {
+        // The driver's own config enum predates WAL, so the pragmas are run by hand on each connection
+        String[] pragmas = {"PRAGMA journal_mode = " + journalMode, "PRAGMA synchronous = " + synchronous};
+        this.writer = new Lane("writer", url, pragmas, 1, acquireTimeout, statementCacheSize);
+        this.readers = new Lane("reader", url, pragmas, readers, acquireTimeout, statementCacheSize);
+        log.info(String.format("opened SQLite pool on %s: 1 writer, %d readers, journal mode %s",
+                url, readers, journalMode));
+    }
+
+    /**
+     * The DataSource handing out the single writer connection.
+     * @return
+     */
+    public DataSource writer() {
+        return writer;
+    }
+
+    /**
+     * The DataSource handing out reader connections.
+     * @return
+     */
+    public DataSource readers() {
+        return readers;
+    }
+
+    /**
+     * Close every physical connection, including any cached statements.
+     */
+    @Override
+    public void close() {
+        writer.closeAll();
+        readers.closeAll();
+    }
+
+    /**
+     * A set of interchangeable connections, handed out one at a time.
+     */
+    private static class Lane implements DataSource {
+        private final String name;
+        private final long acquireTimeout;
+        private final BlockingQueue<PooledConnection> idle;
+        private final List<PooledConnection> all = new ArrayList<>();
+
+        Lane(String name, String url, String[] pragmas, int size, long acquireTimeout,
+             int statementCacheSize) throws SQLException {
+            this.name = name;
+            this.acquireTimeout = acquireTimeout;
+            this.idle = new ArrayBlockingQueue<>(size);
+            for (int i = 0; i < size; i++) {
+                Connection c = DriverManager.getConnection(url);
+                try (Statement st = c.createStatement()) {
+                    for (String pragma : pragmas) {
+                        st.execute(pragma);
+                    }
+                }
+                SqlFunctions.register(c);
+                PooledConnection pc = new PooledConnection(c, statementCacheSize, idle);
+                all.add(pc);
+                idle.add(pc);
+            }
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            try {
+                PooledConnection pc = idle.poll(acquireTimeout, TimeUnit.MILLISECONDS);
+                if (pc == null) {
+                    throw new SQLException("timed out waiting for a " + name + " connection");
+                }
+                return pc.lease();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted waiting for a " + name + " connection", e);
+            }
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection();
+        }
+
+        void closeAll() {
+            for (PooledConnection pc : all) {
+                pc.closePhysical();
+            }
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) {
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+    }
+
+    /**
+     * Wraps a physical connection. Each time it is handed out it gets a fresh proxy (a lease) whose
+     * close() returns it to the pool and whose prepareStatement() is served from the statement cache.
+     * Sql2o may close a connection more than once, so once a lease is closed it stays closed and can
+     * no longer touch the physical connection.
+     */
+    private static class PooledConnection {
+        private final Connection physical;
+        private final BlockingQueue<PooledConnection> home;
+        private final Map<String, CachedStatement> cache;
+
+        PooledConnection(Connection physical, int cacheSize, BlockingQueue<PooledConnection> home) {
+            this.physical = physical;
+            this.home = home;
+            this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    if (size() > cacheSize && !eldest.getValue().inUse) {
+                        eldest.getValue().closePhysical();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Connection lease() {
+            InvocationHandler lease = new InvocationHandler() {
+                // Only the first close, from whichever thread, returns the connection
+                private final AtomicBoolean closed = new AtomicBoolean();
+
+                @Override
+                public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "close":
+                            if (closed.compareAndSet(false, true)) {
+                                release();
+                            }
+                            return null;
+                        case "isClosed":
+                            return closed.get() || physical.isClosed();
+                        default:
+                    }
+                    if (closed.get()) {
+                        throw new SQLException("connection has been returned to the pool");
+                    }
+                    if (method.getName().equals("prepareStatement")
+                            && (args.length == 1 || (args.length == 2 && args[1] instanceof Integer))) {
+                        return prepare(method, args);
+                    }
+                    try {
+                        return method.invoke(physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, lease);
+        }
+
+        /**
+         * Find a free cached statement for this SQL (and generated-keys flag) or prepare a new one.
+         */
+        private PreparedStatement prepare(Method method, Object[] args) throws Throwable {
+            String key = args.length == 1 ? (String) args[0] : args[1] + ":" + args[0];
+            CachedStatement cs = cache.get(key);
+            if (cs != null && !cs.inUse && cs.isDead()) {
+                // The driver finalized it after an error, so it can't be handed out again
+                cs.evict();
+                cs = null;
+            }
+            if (cs != null && !cs.inUse) {
+                cs.inUse = true;
+                return cs.proxy;
+            }
+            PreparedStatement ps;
+            try {
+                ps = (PreparedStatement) method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (cs != null) {
+                // The cached statement for this SQL is busy (a nested query), so use a throwaway one.
+                return ps;
+            }
+            cs = new CachedStatement(ps, key, cache);
+            cs.inUse = true;
+            cache.put(key, cs);
+            return cs.proxy;
+        }
+
+        /**
+         * Put the connection back in a clean state and return it to the pool.
+         */
+        private void release() throws SQLException {
+            try {
+                // Sql2o's commit() closes the connection before its statements, so reset them here (over
+                // a copy, as resetting a statement the driver has closed evicts it)
+                for (CachedStatement cs : new ArrayList<>(cache.values())) {
+                    if (cs.inUse) {
+                        cs.reset();
+                    }
+                }
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+            } finally {
+                // Never idle twice, which would hand the connection to two threads at once
+                if (home.contains(this) || !home.offer(this)) {
+                    log.error("connection returned to the pool twice");
+                }
+            }
+        }
+
+        void closePhysical() {
+            for (CachedStatement cs : cache.values()) {
+                cs.closePhysical();
+            }
+            cache.clear();
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                log.warn("could not close connection", e);
+            }
+        }
+    }
+
+    /**
+     * Wraps a physical prepared statement. close() resets it and marks it free for reuse. SQLite only
+     * resets a statement when its result set is closed, and Sql2o does not always close result sets,
+     * so the last one handed out is closed here.
+     *
+     * The driver finalizes a statement when executing it fails, so a statement that throws (or turns
+     * out to be closed) is taken out of the cache and closed rather than handed out again.
+     */
+    private static class CachedStatement implements InvocationHandler {
+        private final PreparedStatement physical;
+        private final String key;
+        private final Map<String, CachedStatement> cache;
+        private ResultSet lastResultSet;
+        final PreparedStatement proxy;
+        boolean inUse;
+
+        CachedStatement(PreparedStatement physical, String key, Map<String, CachedStatement> cache) {
+            this.physical = physical;
+            this.key = key;
+            this.cache = cache;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (inUse) {
+                        reset();
+                    }
+                    return null;
+                case "isClosed":
+                    return !inUse;
+                default:
+            }
+            Object result;
+            try {
+                result = method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                evict();
+                throw e.getCause();
+            }
+            if (isDead()) {
+                evict();
+            } else if (result instanceof ResultSet) {
+                lastResultSet = (ResultSet) result;
+            }
+            return result;
+        }
+
+        /**
+         * Whether the driver has closed the physical statement under us. The driver predates JDBC 4 and
+         * has no isClosed(), but its parameter count is just a field read once it has checked the
+         * statement is open.
+         */
+        boolean isDead() {
+            try {
+                physical.getParameterMetaData().getParameterCount();
+                return false;
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Take this statement out of the cache, if it is still there, and close it. Whoever holds the
+         * proxy can still close it, which then does nothing.
+         */
+        void evict() {
+            inUse = false;
+            lastResultSet = null;
+            cache.remove(key, this);
+            closePhysical();
+        }
+
+        void reset() throws SQLException {
+            inUse = false;
+            ResultSet rs = lastResultSet;
+            lastResultSet = null;
+            if (isDead()) {
+                evict();
+                return;
+            }
+            if (rs != null) {
+                rs.close();
+            }
+            physical.clearParameters();
+            physical.clearBatch();
+        }
+
+        void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                log.warn("could not close statement", e);
+            }
+        }
+    }
+}
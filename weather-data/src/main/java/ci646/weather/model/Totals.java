@@ -0,0 +1,143 @@
+package ci646.weather.model;
+/**
+ * A POJO for the running totals over a set of records that an Aggregate is calculated from, whether
+ * they were summed by the DB or by a RecordAggregator. For temperature, humidity and wind speed they
+ * are the sum and the sum of squared differences from the mean (m2), so the variance is m2 / count. A
+ * mean of angles is meaningless, so wind directions are summed as unit vectors instead.
+ */
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.sql.Timestamp;
+
+@Data
+@NoArgsConstructor
+public class Totals {
+    private long locID;
+    private Timestamp bucket;
+    private long count;
+    private Timestamp firstTs;
+    private Timestamp lastTs;
+    private double sumTemperature;
+    private double m2Temperature;
+    private float minTemperature;
+    private float maxTemperature;
+    private double sumHumidity;
+    private double m2Humidity;
+    private float minHumidity;
+    private float maxHumidity;
+    private double sumWindSpeed;
+    private double m2WindSpeed;
+    private float minWindSpeed;
+    private float maxWindSpeed;
+    private double sinWindDirection;    // The sum of the sines of the wind directions
+    private double cosWindDirection;    // The sum of the cosines of the wind directions
+    private float minWindDirection;
+    private float maxWindDirection;
+
+    /**
+     * The summary statistics. The mean wind direction is the direction of the sum of the unit vectors,
+     * and its standard deviation is the circular one, sqrt(-2 ln R) where R is the length of the mean
+     * unit vector. Both are in degrees; the mean is in [0, 360).
+     * @return
+     */
+    public Aggregate toAggregate() {
+        Aggregate a = new Aggregate();
+        a.setLocID(locID);
+        a.setBucket(bucket);
+        a.setFrom(firstTs);
+        a.setTo(lastTs);
+        a.setCount(count);
+        a.setAvgTemperature((float) (sumTemperature / count));
+        a.setStdTemperature(std(m2Temperature));
+        a.setMinTemperature(minTemperature);
+        a.setMaxTemperature(maxTemperature);
+        a.setAvgHumidity((float) (sumHumidity / count));
+        a.setStdHumidity(std(m2Humidity));
+        a.setMinHumidity(minHumidity);
+        a.setMaxHumidity(maxHumidity);
+        a.setAvgWindSpeed((float) (sumWindSpeed / count));
+        a.setStdWindSpeed(std(m2WindSpeed));
+        a.setMinWindSpeed(minWindSpeed);
+        a.setMaxWindSpeed(maxWindSpeed);
+        double mean = Math.toDegrees(Math.atan2(sinWindDirection, cosWindDirection));
+        a.setAvgWindDirection((float) (mean < 0 ? mean + 360 : mean));
+        double r = Math.min(1, Math.hypot(sinWindDirection, cosWindDirection) / count);
+        a.setStdWindDirection((float) Math.toDegrees(Math.sqrt(Math.max(0, -2 * Math.log(r)))));
+        a.setMinWindDirection(minWindDirection);
+        a.setMaxWindDirection(maxWindDirection);
+        return a;
+    }
+
+    /**
+     * Add in the totals over another set of records, as if they had been summed together. The sums of
+     * squared differences are combined with Chan's formula, which corrects for the two means differing.
+     * The location and bucket are left as they are.
+     * @param other
+     */
+    public void add(Totals other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (count == 0) {
+            count = other.count;
+            firstTs = other.firstTs;
+            lastTs = other.lastTs;
+            sumTemperature = other.sumTemperature;
+            m2Temperature = other.m2Temperature;
+            minTemperature = other.minTemperature;
+            maxTemperature = other.maxTemperature;
+            sumHumidity = other.sumHumidity;
+            m2Humidity = other.m2Humidity;
+            minHumidity = other.minHumidity;
+            maxHumidity = other.maxHumidity;
+            sumWindSpeed = other.sumWindSpeed;
+            m2WindSpeed = other.m2WindSpeed;
+            minWindSpeed = other.minWindSpeed;
+            maxWindSpeed = other.maxWindSpeed;
+            sinWindDirection = other.sinWindDirection;
+            cosWindDirection = other.cosWindDirection;
+            minWindDirection = other.minWindDirection;
+            maxWindDirection = other.maxWindDirection;
+            return;
+        }
+        long n = count + other.count;
+        m2Temperature = m2(m2Temperature, sumTemperature, other.m2Temperature, other.sumTemperature, other.count);
+        m2Humidity = m2(m2Humidity, sumHumidity, other.m2Humidity, other.sumHumidity, other.count);
+        m2WindSpeed = m2(m2WindSpeed, sumWindSpeed, other.m2WindSpeed, other.sumWindSpeed, other.count);
+        count = n;
+        if (other.firstTs.before(firstTs)) {
+            firstTs = other.firstTs;
+        }
+        if (other.lastTs.after(lastTs)) {
+            lastTs = other.lastTs;
+        }
+        sumTemperature += other.sumTemperature;
+        minTemperature = Math.min(minTemperature, other.minTemperature);
+        maxTemperature = Math.max(maxTemperature, other.maxTemperature);
+        sumHumidity += other.sumHumidity;
+        minHumidity = Math.min(minHumidity, other.minHumidity);
+        maxHumidity = Math.max(maxHumidity, other.maxHumidity);
+        sumWindSpeed += other.sumWindSpeed;
+        minWindSpeed = Math.min(minWindSpeed, other.minWindSpeed);
+        maxWindSpeed = Math.max(maxWindSpeed, other.maxWindSpeed);
+        sinWindDirection += other.sinWindDirection;
+        cosWindDirection += other.cosWindDirection;
+        minWindDirection = Math.min(minWindDirection, other.minWindDirection);
+        maxWindDirection = Math.max(maxWindDirection, other.maxWindDirection);
+    }
+
+    /**
+     * The m2 of this set of records combined with another, before count has been updated.
+     */
+    private double m2(double m2, double sum, double otherM2, double otherSum, long otherCount) {
+        double delta = otherSum / otherCount - sum / count;
+        return m2 + otherM2 + delta * delta * count * otherCount / (count + otherCount);
+    }
+
+    private float std(double m2) {
+        // Summing in the DB can leave a tiny negative m2 when every value is the same
+        return (float) Math.sqrt(Math.max(0, m2) / count);
+    }
+}
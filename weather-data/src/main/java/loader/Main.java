@@ -1,42 +1,113 @@
 package loader;
+/**
+ * Loads the sample locations and weather observations into the DB, creating or upgrading the
+ * schema first. Observations are inserted in chunks, each chunk being a single JDBC batch in its
+ * own transaction. Loading is idempotent: locations and records that are already in the DB are
+ * skipped, so the loader can be re-run to add new data.
+ *
+ * Extra observation files can be loaded by passing pairs of arguments: the path to the file
+ * and the name of the location (which must be in location.dat) it belongs to, e.g.
+ *   java loader.Main dump.dat "Brighton, UK"
+ *
+ * The rollup tables are kept up to date as records are loaded. If the records table has been
+ * changed some other way, recalculate them with
+ *   java loader.Main --rebuild-rollups
+ *
+ * With db.partitions.enabled, records are loaded into the partition files, as the server reads them.
+ * The server only finds partition files, and reads their record versions, when it starts, so don't
+ * run the loader while it is running. The loader refuses records past retention but never drops
+ * partition files; the server does that.
+ */
 
 import ci646.weather.model.Location;
+import ci646.weather.model.Model;
+import ci646.weather.model.PartitionedModel;
 import ci646.weather.model.Record;
+import ci646.weather.model.Rollups;
+import ci646.weather.model.Schema;
 import ci646.weather.model.Sql2oModel;
-import org.sql2o.Connection;
+import ci646.weather.model.SqlitePool;
 import org.sql2o.Sql2o;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 
 @Slf4j
 public class Main {
 
     private static Sql2o sql2o;
+    // Timestamps in the .dat files look like 20201130 0100 and are in UTC
+    private static final DateTimeFormatter DAT_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd HHmm");
+    // The argument that asks for the rollup tables to be recalculated instead of loading anything
+    private static final String REBUILD_ROLLUPS = "--rebuild-rollups";
 
     public static void main(String[] args) {
 
         Config conf = ConfigFactory.load();
 
         String dbConnString = conf.getString("db.connectionString");
-        String dbUser = conf.getString("db.user");
-        String dbPass = conf.getString("db.password");
-        // Set up the DAO
-        sql2o = new Sql2o(dbConnString, dbUser, dbPass);
-        Sql2oModel model = new Sql2oModel(sql2o);
+        String dbJournal = conf.getString("db.journalMode");
+        String dbSync = conf.getString("db.synchronous");
+        long dbAcquireTO = conf.getLong("db.pool.acquireTimeout");
+        int dbStmtCache = conf.getInt("db.pool.statementCache");
+        int chunkSize = conf.getInt("loader.chunkSize");
         try {
             Class.forName("org.sqlite.JDBC");
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
         }
-        setupDatabase();
-        // Input locations
+        // Set up the DAO. The loader only needs the writer connection, plus one reader.
+        SqlitePool pool;
+        try {
+            pool = new SqlitePool(dbConnString, 1, dbAcquireTO, dbStmtCache, dbJournal, dbSync);
+        } catch (SQLException e) {
+            throw new IllegalStateException("could not open the database " + dbConnString, e);
+        }
+        sql2o = new Sql2o(pool.writer());
+        Sql2oModel catalog = new Sql2oModel(new Sql2o(pool.readers()), sql2o);
+        setupDatabase(conf.getBoolean("db.coveringIndex"));
+        Model model = catalog;
+        PartitionedModel partitions = null;
+        if (conf.getBoolean("db.partitions.enabled")) {
+            // Records go in the partition files, as the server expects
+            partitions = new PartitionedModel(catalog, sql2o,
+                    url -> new SqlitePool(url, 1, dbAcquireTO, dbStmtCache, dbJournal, dbSync),
+                    new File(conf.getString("db.partitions.dir")),
+                    PartitionedModel.Period.valueOf(conf.getString("db.partitions.period").toUpperCase(Locale.ROOT)),
+                    conf.getInt("db.partitions.retention"), conf.getInt("db.partitions.threads"),
+                    conf.getInt("db.partitions.maxOpen"), conf.getBoolean("db.coveringIndex"));
+            try {
+                partitions.importRecords();
+            } catch (IOException e) {
+                throw new IllegalStateException("could not copy the records into partitions", e);
+            }
+            model = partitions;
+        }
+        if (args.length > 0 && args[0].equals(REBUILD_ROLLUPS)) {
+            Rollups.rebuild(sql2o);
+            if (partitions != null) {
+                partitions.rebuildRollups();
+                partitions.close();
+            }
+            pool.close();
+            return;
+        }
+        // Input locations, remembering their IDs so that records can be matched to them
+        Map<String, Long> locIDs = new HashMap<>();
         InputStream is = Main.class.getResourceAsStream("/data/location.dat");
         try (BufferedReader br
                      = new BufferedReader(new InputStreamReader(is))) {
@@ -51,15 +122,72 @@ public class Main {
                             Float.parseFloat(fields[2].trim()),
                             Float.parseFloat(fields[3].trim()),
                             Float.parseFloat(fields[4].trim()));
-                    log.info("Inserting: " + l.toString());
-                    model.putLocation(l);
+                    locIDs.put(l.getName(), findOrPutLocation(model, l));
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        // Input records from first dat file
-        is = Main.class.getResourceAsStream("/data/weather.dat");
+
+        long start = System.nanoTime();
+        long rows = 0;
+        try {
+            // Input records from the sample dat files
+            rows += loadRecords(model, Main.class.getResourceAsStream("/data/weather.dat"),
+                    locIDs.get("Alberta, Canada"), chunkSize);
+            rows += loadRecords(model, Main.class.getResourceAsStream("/data/weather2.dat"),
+                    locIDs.get("Brighton, UK"), chunkSize);
+            // Input records from any files named on the command line
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                Long locID = locIDs.get(args[i + 1]);
+                if (locID == null) {
+                    log.error("Unknown location " + args[i + 1] + ", skipping " + args[i]);
+                    continue;
+                }
+                rows += loadRecords(model, new FileInputStream(args[i]), locID, chunkSize);
+            }
+        } catch (IOException | DateTimeParseException e) {
+            e.printStackTrace();
+        } finally {
+            if (partitions != null) {
+                partitions.close();
+            }
+            pool.close();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        log.info(String.format("Loaded %d records in %.2fs (%.0f rows/sec)", rows, secs, rows / secs));
+    }
+
+    /**
+     * Get the ID of the location with exactly this name, inserting it if it isn't there yet,
+     * so that the loader can be run more than once against the same DB.
+     * @param model
+     * @param l
+     * @return
+     */
+    private static long findOrPutLocation(Model model, Location l) {
+        Optional<Location> existing = model.getLocationsByName(l.getName())
+                .flatMap(ls -> ls.stream().filter(x -> x.getName().equals(l.getName())).findFirst());
+        if (existing.isPresent()) {
+            return existing.get().getLocID();
+        }
+        log.info("Inserting: " + l.toString());
+        return model.putLocation(l);
+    }
+
+    /**
+     * Read weather observations for one location and insert them in chunks.
+     * @param model
+     * @param is
+     * @param locID
+     * @param chunkSize
+     * @return the number of records inserted
+     * @throws IOException
+     */
+    private static long loadRecords(Model model, InputStream is, long locID, int chunkSize)
+            throws IOException {
+        long rows = 0;
+        List<Record> chunk = new ArrayList<>(chunkSize);
         try (BufferedReader br
                      = new BufferedReader(new InputStreamReader(is))) {
             String line;
@@ -69,71 +197,49 @@ public class Main {
                     // do nothing
                 } else {
                     fields = line.split(",");
-                    long locID1 = model.getLocationsByName("Alberta, Canada").get().get(0).getLocID();
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd hhmm");
-                    Date parsedDate = dateFormat.parse(fields[0]);
-                    Timestamp timestamp = new Timestamp(parsedDate.getTime());
-                    Record r = new Record(locID1, timestamp, Float.parseFloat(fields[1].trim()),
+                    Timestamp timestamp = Timestamp.from(LocalDateTime.parse(fields[0], DAT_FORMAT)
+                            .toInstant(ZoneOffset.UTC));
+                    Record r = new Record(locID, timestamp, Float.parseFloat(fields[1].trim()),
                             Float.parseFloat(fields[2].trim()),
                             Float.parseFloat(fields[3].trim()),
                             Float.parseFloat(fields[4].trim()));
-                    log.info("Inserting: " + r.toString());
-                    model.putRecord(r);
+                    chunk.add(r);
+                    if (chunk.size() == chunkSize) {
+                        rows += flush(model, chunk);
+                    }
                 }
             }
+        }
+        rows += flush(model, chunk);
+        return rows;
+    }
 
-            // Input records from second dat file
-            is = Main.class.getResourceAsStream("/data/weather2.dat");
-            try (BufferedReader br2
-                         = new BufferedReader(new InputStreamReader(is))) {
-                while ((line = br2.readLine()) != null) {
-                    if (line.isEmpty() || line.startsWith("#")) {
-                        // do nothing
-                    } else {
-                        fields = line.split(",");
-                        long locID2 = model.getLocationsByName("Brighton, UK").get().get(0).getLocID();
-                        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd hhmm");
-                        Date parsedDate = dateFormat.parse(fields[0]);
-                        Timestamp timestamp = new Timestamp(parsedDate.getTime());
-                        Record r = new Record(locID2, timestamp, Float.parseFloat(fields[1].trim()),
-                                Float.parseFloat(fields[2].trim()),
-                                Float.parseFloat(fields[3].trim()),
-                                Float.parseFloat(fields[4].trim()));
-                        log.info("Inserting: " + r.toString());
-                        model.putRecord(r);
-                    }
+    /**
+     * Insert a chunk of records as one batch and empty the chunk. Returns the number of records
+     * actually inserted, which is fewer than the chunk size if some were already in the DB.
+     */
+    private static int flush(Model model, List<Record> chunk) {
+        int n = 0;
+        if (!chunk.isEmpty()) {
+            for (long id : model.putRecords(chunk)) {
+                if (id != 0) {
+                    n++;
                 }
-            } catch (IOException | ParseException e) {
-                e.printStackTrace();
             }
-        } catch (ParseException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            log.debug("Inserted " + n + " of a chunk of " + chunk.size() + " records");
+            chunk.clear();
         }
+        return n;
     }
 
-        public static void setupDatabase() {
-        try (Connection conn = sql2o.open()) {
-            conn.createQuery("DROP TABLE IF EXISTS records")
-                    .executeUpdate();
-            conn.createQuery("DROP TABLE IF EXISTS locations")
-                    .executeUpdate();
-            conn.createQuery("CREATE TABLE locations ( loc_id INTEGER PRIMARY KEY, " +
-                    "name VARCHAR(200) NOT NULL, " +
-                    "lat REAL NOT NULL, " +
-                    "lon REAL NOT NULL, " +
-                    "asl REAL NOT NULL );")
-                    .executeUpdate();
-            conn.createQuery("CREATE TABLE records ( record_id INTEGER PRIMARY KEY, " +
-                    "loc_id INTEGER NOT NULL, " +
-                    "ts TIMESTAMP NOT NULL, " +
-                    "temperature REAL NOT NULL, " +
-                    "humidity REAL NOT NULL, " +
-                    "wind_direction REAL NOT NULL, " +
-                    "wind_speed REAL NOT NULL, " +
-                    "FOREIGN KEY(loc_id) REFERENCES locations(loc_id) );")
-                    .executeUpdate();
-        }
+    /**
+     * Create the tables, or upgrade them in place if the DB already exists, and check that the
+     * Model queries will use the indexes.
+     * @param covering whether to add the optional covering index
+     */
+    public static void setupDatabase(boolean covering) {
+        Schema.migrate(sql2o);
+        Schema.setCoveringIndex(sql2o, covering);
+        Schema.checkQueryPlans(sql2o);
     }
 }
@@ -1,90 +1,148 @@
+var live = null; // the stream of new records for the location being drawn
+
+// Draw the records at a location, then keep the graph up to date as records are added. The history is
+// loaded once, and after that only the new records are sent, by the live stream.
 function drawGraph(locID)
 {
-    var url = records + locID;
-    svg.selectAll('*').remove(); // reset the svg
-    d3.json(url,
+    if (live) {
+        live.close();
+    }
+    var source = new EventSource(records + locID + "/live");
+    live = source;
+    var data = null;  // the records drawn, oldest first, or null while the history is loading
+    var seen = {};    // their IDs
+    var pending = []; // records streamed while the history was loading
+    var timer = null;
 
-        function (data) {
-            // Add X axis --> it is a date format
-            var x = d3.scaleTime()
-                .domain(d3.extent(data, function (d) {
-                    return d3.timeParse("%Y-%m-%dT%H:%M")(d.date);
-                }))
-                .range([0, width]);
-            svg.append("g")
-                .attr("transform", "translate(0," + height + ")")
-                .call(d3.axisBottom(x));
-            // Add Y axis
-            var y = d3.scaleLinear()
-                .domain(d3.extent(data, function (d) {
-                    return d.temperature;
-                }))
-                .range([height, 0]);
-            svg.append("g")
-                .call(d3.axisLeft(y));
-            // Add the line
-            svg.append("path")
-                .datum(data)
-                .attr("fill", "none")
-                .attr("stroke", "#69b3a2")
-                .attr("stroke-width", 1.5)
-                .attr("d", d3.line()
-                    .curve(d3.curveBasis)
-                    .x(function (d) {
-                        return x(d3.timeParse("%Y-%m-%dT%H:%M")(d.date))
-                    })
-                    .y(function (d) {
-                        return y(d.temperature)
-                    })
-                );
+    function add(d) {
+        if (!seen[d.recordID]) {
+            seen[d.recordID] = true;
+            data.splice(d3.bisector(function (e) { return e.date; }).right(data, d.date), 0, d);
+        }
+    }
 
-            // create a tooltip
-            var Tooltip = d3.select("#my_dataviz")
-                .append("div")
-                .style("opacity", 0)
-                .style("position", "absolute")
-                .attr("class", "tooltip")
-                .style("background-color", "white")
-                .style("border", "solid")
-                .style("border-width", "1px")
-                .style("border-radius", "5px")
-                .style("padding", "5px");
+    // Redraw at most a few times a second, however quickly records arrive
+    function update() {
+        if (timer === null) {
+            timer = setTimeout(function () {
+                timer = null;
+                render(data);
+            }, 250);
+        }
+    }
 
-            // Three functions that change the tooltip when user hover / move / leave a cell
-            var mouseover = function (d) {
-                Tooltip
-                    .style("opacity", 1)
-            };
-            var mousemove = function (d) {
-                return Tooltip
-                    .html("Wind speed: " + d.windSpeed.toFixed(2))
-                    .style("left", event.clientX + "px")
-                    .style("top", event.clientY + "px");
-            };
-            var mouseleave = function (d) {
-                Tooltip
-                    .style("opacity", 0)
-            };
-            // Add the points
-            svg
-                .append("g")
-                .selectAll("dot")
-                .data(data)
-                .enter()
-                .append("circle")
-                .attr("class", "myCircle")
-                .attr("cx", function (d) {
-                    return x(d3.timeParse("%Y-%m-%dT%H:%M")(d.date))
-                })
-                .attr("cy", function (d) {
-                    return y(d.temperature)
-                })
-                .attr("r", 5)
-                .attr("stroke", "#69b3a2")
-                .attr("stroke-width", 1)
-                .attr("fill", "white")
-                .on("mouseover", mouseover)
-                .on("mousemove", mousemove)
-                .on("mouseleave", mouseleave);
+    // Load the history once the stream is open, so that no record is missed between the two. This also
+    // happens when the browser reopens the stream after losing it, since records may have been missed.
+    source.onopen = function () {
+        data = null;
+        // No more points than the chart is wide, however many records there are
+        d3.json(records + locID + "?points=" + Math.round(width), function (history) {
+            if (source !== live) {
+                return;
+            }
+            // An empty result is {} rather than []
+            data = Array.isArray(history) ? history : [];
+            seen = {};
+            data.forEach(function (d) { seen[d.recordID] = true; });
+            pending.forEach(add);
+            pending = [];
+            render(data);
         });
-}
\ No newline at end of file
+    };
+    source.addEventListener("record", function (e) {
+        var d = JSON.parse(e.data);
+        if (data === null) {
+            pending.push(d);
+        } else {
+            add(d);
+            update();
+        }
+    });
+}
+
+function render(data)
+{
+    svg.selectAll('*').remove(); // reset the svg
+    d3.select("#my_dataviz").selectAll(".tooltip").remove();
+    // Add X axis --> it is a date format
+    var x = d3.scaleTime()
+        .domain(d3.extent(data, function (d) {
+            return d3.timeParse("%Y-%m-%dT%H:%M")(d.date);
+        }))
+        .range([0, width]);
+    svg.append("g")
+        .attr("transform", "translate(0," + height + ")")
+        .call(d3.axisBottom(x));
+    // Add Y axis
+    var y = d3.scaleLinear()
+        .domain(d3.extent(data, function (d) {
+            return d.temperature;
+        }))
+        .range([height, 0]);
+    svg.append("g")
+        .call(d3.axisLeft(y));
+    // Add the line
+    svg.append("path")
+        .datum(data)
+        .attr("fill", "none")
+        .attr("stroke", "#69b3a2")
+        .attr("stroke-width", 1.5)
+        .attr("d", d3.line()
+            .curve(d3.curveBasis)
+            .x(function (d) {
+                return x(d3.timeParse("%Y-%m-%dT%H:%M")(d.date))
+            })
+            .y(function (d) {
+                return y(d.temperature)
+            })
+        );
+
+    // create a tooltip
+    var Tooltip = d3.select("#my_dataviz")
+        .append("div")
+        .style("opacity", 0)
+        .style("position", "absolute")
+        .attr("class", "tooltip")
+        .style("background-color", "white")
+        .style("border", "solid")
+        .style("border-width", "1px")
+        .style("border-radius", "5px")
+        .style("padding", "5px");
+
+    // Three functions that change the tooltip when user hover / move / leave a cell
+    var mouseover = function (d) {
+        Tooltip
+            .style("opacity", 1)
+    };
+    var mousemove = function (d) {
+        return Tooltip
+            .html("Wind speed: " + d.windSpeed.toFixed(2))
+            .style("left", event.clientX + "px")
+            .style("top", event.clientY + "px");
+    };
+    var mouseleave = function (d) {
+        Tooltip
+            .style("opacity", 0)
+    };
+    // Add the points
+    svg
+        .append("g")
+        .selectAll("dot")
+        .data(data)
+        .enter()
+        .append("circle")
+        .attr("class", "myCircle")
+        .attr("cx", function (d) {
+            return x(d3.timeParse("%Y-%m-%dT%H:%M")(d.date))
+        })
+        .attr("cy", function (d) {
+            return y(d.temperature)
+        })
+        .attr("r", 5)
+        .attr("stroke", "#69b3a2")
+        .attr("stroke-width", 1)
+        .attr("fill", "white")
+        .on("mouseover", mouseover)
+        .on("mousemove", mousemove)
+        .on("mouseleave", mouseleave);
+}
@@ -0,0 +1,61 @@
+package ci646.weather;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownsamplerTest {
+
+    private static final long MINUTE = 60000;
+
+    /**
+     * Downsample n records a minute apart, whose temperatures rise and fall, and return the IDs passed on.
+     */
+    private static List<Long> downsample(int n, int points) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        Downsampler d = new Downsampler((recordID, locID, ts, temperature, humidity, windSpeed, windDirection)
+                -> ids.add(recordID), 0, (n - 1) * MINUTE, points);
+        for (int i = 0; i < n; i++) {
+            d.record(i + 1, 1, i * MINUTE, (float) Math.sin(i / 10.0) * 20, 50, 5, 180);
+        }
+        d.finish();
+        return ids;
+    }
+
+    @Test
+    void keepsFirstAndLastRecords() throws IOException {
+        for (int points : new int[]{2, 3, 4, 7, 10, 101}) {
+            List<Long> ids = downsample(1000, points);
+            assertEquals(1, ids.get(0), "first record with " + points + " points");
+            assertEquals(1000, ids.get(ids.size() - 1), "last record with " + points + " points");
+        }
+    }
+
+    @Test
+    void passesOnAtMostPoints() throws IOException {
+        for (int points = 2; points <= 60; points++) {
+            List<Long> ids = downsample(1000, points);
+            assertTrue(ids.size() <= points, ids.size() + " records for " + points + " points");
+            // Every pair of slots is filled when each bucket has varying temperatures
+            assertEquals(points / 2 * 2, ids.size(), "records for " + points + " points");
+        }
+    }
+
+    @Test
+    void passesOnRecordsInTimeOrder() throws IOException {
+        List<Long> ids = downsample(1000, 50);
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i) > ids.get(i - 1));
+        }
+    }
+
+    @Test
+    void passesOnASingleRecordOnce() throws IOException {
+        assertEquals(List.of(1L), downsample(1, 10));
+    }
+}
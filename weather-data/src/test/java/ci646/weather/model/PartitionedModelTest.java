@@ -0,0 +1,201 @@
+package ci646.weather.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.sql2o.Sql2o;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartitionedModelTest {
+
+    @TempDir
+    File dir;
+
+    private SqlitePool catalogPool;
+    private Sql2o catalogWriter;
+    private Sql2oModel catalog;
+    private final List<PartitionedModel> models = new ArrayList<>();
+
+    @BeforeEach
+    void open() throws SQLException, ClassNotFoundException {
+        Class.forName("org.sqlite.JDBC");
+        catalogPool = pool("jdbc:sqlite:" + new File(dir, "weather.db").getPath());
+        catalogWriter = new Sql2o(catalogPool.writer());
+        Schema.migrate(catalogWriter);
+        catalog = new Sql2oModel(new Sql2o(catalogPool.readers()), catalogWriter);
+    }
+
+    @AfterEach
+    void close() {
+        models.forEach(PartitionedModel::close);
+        catalogPool.close();
+    }
+
+    private static SqlitePool pool(String url) throws SQLException {
+        return new SqlitePool(url, 2, 1000, 16, "WAL", "NORMAL");
+    }
+
+    /**
+     * A model over monthly partitions that keeps at most one idle partition file open.
+     */
+    private PartitionedModel partitioned(int retention) {
+        PartitionedModel m = new PartitionedModel(catalog, catalogWriter, PartitionedModelTest::pool,
+                new File(dir, "partitions"), PartitionedModel.Period.MONTH, retention, 2, 1, false);
+        models.add(m);
+        return m;
+    }
+
+    private static Timestamp at(String time) {
+        return Timestamp.from(LocalDateTime.parse(time).toInstant(ZoneOffset.UTC));
+    }
+
+    private static Record record(long loc, String time, float temp) {
+        return new Record(loc, at(time), temp, 50, 5, 180);
+    }
+
+    /**
+     * Three records at each end of January 2020 and the start of February and March, at location 1.
+     */
+    private static List<Record> acrossMonths() {
+        List<Record> recs = new ArrayList<>();
+        String[] hours = {"2020-01-31T21:00", "2020-01-31T22:00", "2020-01-31T23:00",
+                "2020-02-01T00:00", "2020-02-01T01:00", "2020-02-01T02:00",
+                "2020-03-01T00:00", "2020-03-01T01:00", "2020-03-01T02:00"};
+        for (int i = 0; i < hours.length; i++) {
+            recs.add(record(1, hours[i], i));
+        }
+        return recs;
+    }
+
+    private static List<Float> temperatures(List<Record> recs) {
+        return recs.stream().map(Record::getTemperature).collect(Collectors.toList());
+    }
+
+    @Test
+    void pagesAcrossPartitionBoundaries() {
+        PartitionedModel model = partitioned(0);
+        List<Record> recs = acrossMonths();
+        model.putRecords(recs);
+        model.putRecord(record(2, "2020-02-01T00:30", 100));
+        for (int limit : new int[]{1, 2, 3, 4}) {
+            List<Record> seen = new ArrayList<>();
+            RecordCursor after = RecordCursor.START;
+            while (true) {
+                RecordPage page = model.getRecords(1, after, limit);
+                assertTrue(page.getRecords().size() <= limit);
+                seen.addAll(page.getRecords());
+                if (page.getNext() == null) {
+                    break;
+                }
+                after = RecordCursor.decode(page.getNext());
+            }
+            assertEquals(temperatures(recs), temperatures(seen), "pages of " + limit);
+        }
+        // Every location, in time order, one page per partition boundary and more
+        RecordPage first = model.getRecords(RecordCursor.START, 4);
+        assertEquals(List.of(0f, 1f, 2f, 3f), temperatures(first.getRecords()));
+        RecordPage second = model.getRecords(RecordCursor.decode(first.getNext()), 4);
+        assertEquals(List.of(100f, 4f, 5f, 6f), temperatures(second.getRecords()));
+        RecordPage third = model.getRecords(RecordCursor.decode(second.getNext()), 4);
+        assertEquals(List.of(7f, 8f), temperatures(third.getRecords()));
+        assertNull(third.getNext());
+    }
+
+    @Test
+    void mergesPartitionsInTimeOrder() throws IOException {
+        PartitionedModel model = partitioned(0);
+        List<Record> recs = acrossMonths();
+        // The months stored newest first, so the partitions are created out of order
+        for (int month = 2; month >= 0; month--) {
+            for (Record r : recs.subList(month * 3, month * 3 + 3)) {
+                model.putRecord(r);
+            }
+        }
+        assertEquals(temperatures(recs), temperatures(model.getRecords(1).orElseThrow()));
+        assertEquals(temperatures(recs.subList(1, 7)),
+                temperatures(model.getRecords(1, at("2020-01-31T22:00"), at("2020-03-01T00:00")).orElseThrow()));
+        List<Float> streamed = new ArrayList<>();
+        model.streamRecords(1, (recordID, locID, ts, temperature, humidity, windSpeed, windDirection)
+                -> streamed.add(temperature));
+        assertEquals(temperatures(recs), streamed);
+        assertEquals(recs.size(), model.getAggregate(1).orElseThrow().getCount());
+    }
+
+    @Test
+    void getsRecordsByGlobalID() {
+        PartitionedModel model = partitioned(0);
+        long[] ids = model.putRecords(acrossMonths());
+        // The first record in each partition has rowid 1, so only the partition tells them apart
+        assertNotEquals(ids[0], ids[3]);
+        for (int i = 0; i < ids.length; i++) {
+            Record r = model.getRecord(ids[i]).orElseThrow();
+            assertEquals(ids[i], r.getRecordID());
+            assertEquals(i, r.getTemperature());
+        }
+        assertEquals(ids[4], model.getRecord(1, at("2020-02-01T01:00")).orElseThrow().getRecordID());
+        assertEquals(Optional.empty(), model.getRecord(ids[8] + 1));
+        assertEquals(Optional.empty(), model.getRecord(ids[8] + (1L << 40)));
+        assertEquals(Optional.empty(), model.getRecord(-1));
+    }
+
+    @Test
+    void importIsResumedAndRunsOnce() throws IOException {
+        List<Record> recs = acrossMonths();
+        catalog.putRecords(recs);
+        PartitionedModel model = partitioned(0);
+        // As if an earlier import had copied the first few records before it was cut short
+        model.putRecords(recs.subList(0, 4));
+        assertEquals(recs.size() - 4, model.importRecords());
+        assertEquals(Optional.empty(), catalog.getRecords());
+        assertEquals(temperatures(recs), temperatures(model.getRecords(1).orElseThrow()));
+        // Nothing is left in the catalog, so running it again copies nothing
+        long version = model.getRecordsVersion();
+        assertEquals(0, model.importRecords());
+        assertEquals(temperatures(recs), temperatures(model.getRecords(1).orElseThrow()));
+        assertEquals(version, model.getRecordsVersion());
+    }
+
+    @Test
+    void dropsExpiredPartitions() throws InterruptedException {
+        PartitionedModel keepAll = partitioned(0);
+        long[] ids = keepAll.putRecords(List.of(record(1, "2000-01-01T00:00", 1), record(1, "2000-02-01T00:00", 2)));
+        Record recent = record(1, LocalDateTime.now(ZoneOffset.UTC).withNano(0).toString(), 3);
+        long recentID = keepAll.putRecord(recent);
+        long version = keepAll.getRecordsVersion();
+        keepAll.close();
+        models.remove(keepAll);
+
+        PartitionedModel model = partitioned(2);
+        assertTrue(model.getRecord(ids[0]).isPresent());
+        model.dropExpired();
+        File old = new File(new File(dir, "partitions"), "records-2000-01.db");
+        for (int i = 0; i < 100 && old.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(old.exists());
+        assertEquals(Optional.empty(), model.getRecord(ids[0]));
+        assertEquals(Optional.empty(), model.getRecord(ids[1]));
+        assertEquals(recentID, model.getRecord(recentID).orElseThrow().getRecordID());
+        assertArrayEquals(new long[]{0}, model.putRecords(List.of(record(1, "2000-01-01T01:00", 4))));
+        // Versions still go up once the old partitions are gone
+        assertTrue(model.getRecordsVersion() >= version);
+    }
+}
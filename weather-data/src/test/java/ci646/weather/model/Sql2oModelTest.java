@@ -0,0 +1,119 @@
+package ci646.weather.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.sql2o.Sql2o;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class Sql2oModelTest {
+
+    @TempDir
+    File dir;
+
+    private SqlitePool pool;
+    private Sql2oModel model;
+
+    @BeforeEach
+    void open() throws SQLException, ClassNotFoundException {
+        Class.forName("org.sqlite.JDBC");
+        pool = new SqlitePool("jdbc:sqlite:" + new File(dir, "weather.db").getPath(), 2, 1000, 16, "WAL", "NORMAL");
+        Sql2o writer = new Sql2o(pool.writer());
+        Schema.migrate(writer);
+        model = new Sql2oModel(new Sql2o(pool.readers()), writer);
+    }
+
+    @AfterEach
+    void close() {
+        pool.close();
+    }
+
+    private static Record record(long loc, long ts, float temp) {
+        return new Record(loc, new Timestamp(ts), temp, 50, 5, 180);
+    }
+
+    private static Timestamp at(String time) {
+        return Timestamp.from(LocalDateTime.parse(time).toInstant(ZoneOffset.UTC));
+    }
+
+    private static Record record(long loc, String time, float temp) {
+        return new Record(loc, at(time), temp, 50, 5, 180);
+    }
+
+    /**
+     * The start and count of each bucket of aggregates, as e.g. "10:00=2".
+     */
+    private List<String> buckets(String from, String to, Aggregate.Bucket bucket) {
+        return model.getAggregates(1, at(from), at(to), bucket).orElse(List.of()).stream()
+                .map(a -> a.getBucket().toInstant().atOffset(ZoneOffset.UTC).toLocalTime() + "=" + a.getCount())
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void duplicateRecordIsRejectedAndLaterRecordsAreStored() {
+        long first = model.putRecord(record(1, 3600000, 10));
+        assertThrows(DuplicateRecordException.class, () -> model.putRecord(record(1, 3600000, 11)));
+        long second = model.putRecord(record(1, 7200000, 12));
+        assertNotEquals(first, second);
+        assertEquals(10, model.getRecord(first).orElseThrow().getTemperature());
+        assertEquals(2, model.getAggregate(1).orElseThrow().getCount());
+    }
+
+    @Test
+    void rangeCrossingOneBucketBoundaryGivesTwoBuckets() {
+        model.putRecords(List.of(record(1, "2020-01-01T10:30", 1), record(1, "2020-01-01T11:10", 2)));
+        assertEquals(List.of("10:00=1", "11:00=1"),
+                buckets("2020-01-01T10:30", "2020-01-01T11:20", Aggregate.Bucket.HOUR));
+        assertEquals(List.of("10:00=1"), buckets("2020-01-01T10:15", "2020-01-01T10:45", Aggregate.Bucket.HOUR));
+    }
+
+    @Test
+    void bucketedAggregatesCombineRecordsAndRollups() {
+        model.putRecords(List.of(record(1, "2020-01-01T09:20", 1), record(1, "2020-01-01T10:00", 2),
+                record(1, "2020-01-01T10:30", 3), record(1, "2020-01-01T11:45", 4),
+                record(1, "2020-01-01T12:10", 5), record(1, "2020-01-01T12:30", 6),
+                record(2, "2020-01-01T10:10", 7)));
+        assertEquals(List.of("09:00=1", "10:00=2", "11:00=1", "12:00=2"),
+                buckets("2020-01-01T09:15", "2020-01-01T12:40", Aggregate.Bucket.HOUR));
+        assertEquals(List.of("00:00=6"), buckets("2020-01-01T09:15", "2020-01-01T12:40", Aggregate.Bucket.DAY));
+        Aggregate hours = model.getAggregate(1, at("2020-01-01T09:15"), at("2020-01-01T12:20")).orElseThrow();
+        assertEquals(5, hours.getCount());
+        assertEquals(3, hours.getAvgTemperature(), 1e-6);
+        assertEquals(1, hours.getMinTemperature());
+        assertEquals(5, hours.getMaxTemperature());
+    }
+
+    @Test
+    void findsLocationsAddedByAnotherProcess() throws SQLException {
+        model.putLocation(new Location("Brighton", 50.82f, -0.14f, 10));
+        model.indexLocations();
+        // The loader has a pool and model of its own on the same file
+        try (SqlitePool other = new SqlitePool("jdbc:sqlite:" + new File(dir, "weather.db").getPath(), 1, 1000,
+                16, "WAL", "NORMAL")) {
+            Sql2o otherWriter = new Sql2o(other.writer());
+            new Sql2oModel(new Sql2o(other.readers()), otherWriter)
+                    .putLocation(new Location("Hove", 50.83f, -0.17f, 15));
+        }
+        assertEquals("Hove", model.getLocationsByName("hove").orElseThrow().get(0).getName());
+        assertEquals(2, model.getLocationsWithin(50.82, -0.15, 10).orElseThrow().size());
+        model.putLocation(new Location("Lewes", 50.87f, 0.01f, 20));
+        assertEquals("Lewes", model.getLocationsByName("lewes").orElseThrow().get(0).getName());
+    }
+
+    @Test
+    void queriesUseIndexes() {
+        Schema.checkQueryPlans(new Sql2o(pool.readers()));
+    }
+}
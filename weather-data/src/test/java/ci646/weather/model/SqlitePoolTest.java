@@ -0,0 +1,78 @@
+package ci646.weather.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sql2o.Sql2oException;
+
+import java.io.File;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SqlitePoolTest {
+
+    private static final String INSERT = "INSERT INTO t(k) VALUES (:k)";
+
+    @TempDir
+    File dir;
+
+    private SqlitePool pool;
+    private Sql2o writer;
+
+    @BeforeEach
+    void open() throws SQLException, ClassNotFoundException {
+        Class.forName("org.sqlite.JDBC");
+        pool = new SqlitePool("jdbc:sqlite:" + new File(dir, "pool.db").getPath(), 1, 1000, 8, "WAL", "NORMAL");
+        writer = new Sql2o(pool.writer());
+        try (Connection conn = writer.open()) {
+            conn.createQuery("CREATE TABLE t ( k INTEGER NOT NULL UNIQUE )").executeUpdate();
+        }
+    }
+
+    @AfterEach
+    void close() {
+        pool.close();
+    }
+
+    private void insert(int k) {
+        try (Connection conn = writer.open()) {
+            conn.createQuery(INSERT).addParameter("k", k).executeUpdate();
+        }
+    }
+
+    private int count() {
+        try (Connection conn = writer.open()) {
+            return conn.createQuery("SELECT count(*) FROM t").executeScalar(Integer.class);
+        }
+    }
+
+    @Test
+    void failedStatementIsNotReused() {
+        insert(1);
+        assertThrows(Sql2oException.class, () -> insert(1));
+        insert(2);
+        insert(3);
+        assertEquals(3, count());
+    }
+
+    @Test
+    void failedStatementInTransactionIsNotReused() {
+        insert(1);
+        assertThrows(Sql2oException.class, () -> {
+            try (Connection conn = writer.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+                conn.createQuery(INSERT).addParameter("k", 1).executeUpdate();
+                conn.commit();
+            }
+        });
+        try (Connection conn = writer.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            conn.createQuery(INSERT).addParameter("k", 2).executeUpdate();
+            conn.commit();
+        }
+        assertEquals(2, count());
+    }
+}